@@ -0,0 +1,74 @@
+package com.example.android.BluetoothChat;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.provider.OpenableColumns;
+
+/**
+ * The app's storage: history and partial transfers in its files
+ * directory, received files on the external storage, and content to send
+ * read through the ContentResolver. Name and length come from the content
+ * metadata, or from the file itself for file:// uris, instead of
+ * InputStream.available() which only reports what can be read without
+ * blocking.
+ */
+public class AndroidStorage implements ChatStorage {
+	private final Context mContext;
+
+	public AndroidStorage(Context context) {
+		mContext = context;
+	}
+
+	public File getFilesDir() {
+		return mContext.getFilesDir();
+	}
+
+	public File getDownloadDir() {
+		return Environment.getExternalStorageDirectory();
+	}
+
+	public OutgoingFile open(String content) throws IOException {
+		final ContentResolver resolver = mContext.getContentResolver();
+		final Uri uri = Uri.parse(content);
+		String name = null;
+		long size = -1;
+
+		Cursor cursor = null;
+		try {
+			cursor = resolver.query(uri, new String[] {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, null, null, null);
+			if (cursor != null && cursor.moveToFirst()) {
+				int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+				int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+				if (nameIndex >= 0 && !cursor.isNull(nameIndex)) name = cursor.getString(nameIndex);
+				if (sizeIndex >= 0 && !cursor.isNull(sizeIndex)) size = cursor.getLong(sizeIndex);
+			}
+		} catch (Exception e) {
+			// Not every provider supports OpenableColumns, fall back below
+		} finally {
+			if (cursor != null) cursor.close();
+		}
+
+		if ("file".equals(uri.getScheme())) {
+			File f = new File(uri.getPath());
+			if (name == null) name = f.getName();
+			if (size < 0) size = f.length();
+		}
+		if (name == null) {
+			name = new File(content).getName();
+		}
+		return new OutgoingFile(name, size) {
+			@Override
+			public InputStream open() throws FileNotFoundException {
+				return resolver.openInputStream(uri);
+			}
+		};
+	}
+}
@@ -0,0 +1,46 @@
+package com.example.android.BluetoothChat;
+
+import java.util.Random;
+
+/**
+ * Delays between retries that double with every attempt, up to a maximum,
+ * with half of each delay random so that clients that lost the same hub at
+ * the same moment do not all come back at the same moment.
+ */
+public class Backoff {
+	private final long mBase;
+	private final long mMax;
+	private final Random mRandom = new Random();
+	private int mAttempts;
+
+	/**
+	 * @param baseMillis  Ceiling of the first delay
+	 * @param maxMillis  Ceiling of any delay
+	 */
+	public Backoff(long baseMillis, long maxMillis) {
+		mBase = baseMillis;
+		mMax = maxMillis;
+	}
+
+	/**
+	 * @return How long to wait before the next attempt, in milliseconds:
+	 * between half the current ceiling and the ceiling
+	 */
+	public long next() {
+		long ceiling = Math.min(mMax, mBase << Math.min(mAttempts, 30));
+		mAttempts++;
+		long half = ceiling / 2;
+		return half + (long) (mRandom.nextDouble() * (ceiling - half));
+	}
+
+	/**
+	 * @return Delays handed out since the last reset
+	 */
+	public int getAttempts() {
+		return mAttempts;
+	}
+
+	public void reset() {
+		mAttempts = 0;
+	}
+}
@@ -18,11 +18,9 @@ package com.example.android.BluetoothChat;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Date;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
@@ -37,7 +35,6 @@ import android.view.View;
 import android.view.Window;
 import android.view.View.OnClickListener;
 import android.view.inputmethod.EditorInfo;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -79,8 +76,8 @@ public class BluetoothChat extends Activity {
 
 	// Name of the connected device
 	private String mConnectedDeviceName = null;
-	// Array adapter for the conversation thread
-	private ArrayAdapter<String> mConversationArrayAdapter;
+	// Adapter for the conversation thread
+	private ConversationAdapter mConversationAdapter;
 	// String buffer for outgoing messages
 	private StringBuffer mOutStringBuffer;
 	// Local Bluetooth adapter
@@ -151,10 +148,10 @@ public class BluetoothChat extends Activity {
 	private void setupChat() {
 		Log.d(TAG, "setupChat()");
 
-		// Initialize the array adapter for the conversation thread
-		mConversationArrayAdapter = new ArrayAdapter<String>(this, R.layout.message);
+		// Initialize the adapter for the conversation thread
 		mConversationView = (ListView) findViewById(R.id.in);
-		mConversationView.setAdapter(mConversationArrayAdapter);
+		mConversationAdapter = new ConversationAdapter(this, mConversationView, R.layout.message,
+				new File(getFilesDir(), "conversation"));
 
 		// Initialize the compose field with a listener for the return key
 		mOutEditText = (EditText) findViewById(R.id.edit_text_out);
@@ -172,7 +169,8 @@ public class BluetoothChat extends Activity {
 		});
 
 		// Initialize the BluetoothChatService to perform bluetooth connections
-		mChatService = new BluetoothChatService(this, mHandler);
+		mChatService = new BluetoothChatService(new AndroidStorage(this), mListener,
+				new RfcommTransport(mBluetoothAdapter));
 
 		// Initialize the buffer for outgoing messages
 		mOutStringBuffer = new StringBuffer("");
@@ -193,8 +191,9 @@ public class BluetoothChat extends Activity {
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
-		// Stop the Bluetooth chat services
-		if (mChatService != null) mChatService.stop();
+		// Stop the Bluetooth chat services and release their threads and history
+		if (mChatService != null) mChatService.close();
+		if (mConversationAdapter != null) mConversationAdapter.close();
 		if(D) Log.e(TAG, "--- ON DESTROY ---");
 	}
 
@@ -222,13 +221,13 @@ public class BluetoothChat extends Activity {
 		// Check that there's actually something to send
 		if (message.length() > 0) {
 			// Get the message bytes and tell the BluetoothChatService to write
-			Date d = new Date();
-			String date = pad(d.getHours()) + ":"+ pad(d.getMinutes())+ ":"+ pad(d.getSeconds()); 
+			String date = BluetoothMessage.now();
 
 			BluetoothMessage m = new BluetoothMessage(BluetoothAdapter.getDefaultAdapter().getName(), date, message);
+			m.stamp();
 
 			//byte[] send = message.getBytes();
-			byte[] send = m.getJSONStr();
+			byte[] send = m.getBytes();
 			mChatService.write(send);
 
 			// Reset out string buffer to zero and clear the edit text field
@@ -238,13 +237,6 @@ public class BluetoothChat extends Activity {
 	}
 
 
-	static String pad(int c) {
-		if (c >= 10)
-			return String.valueOf(c);
-		else
-			return "0" + String.valueOf(c);
-	}
-
 	// The action listener for the EditText widget, to listen for the return key
 	private TextView.OnEditorActionListener mWriteListener =
 			new TextView.OnEditorActionListener() {
@@ -270,7 +262,7 @@ public class BluetoothChat extends Activity {
 				case BluetoothChatService.STATE_CONNECTED:
 					mTitle.setText(R.string.title_connected_to);
 					mTitle.append(mConnectedDeviceName);
-					//mConversationArrayAdapter.clear();
+					//mConversationAdapter.clear();
 					break;
 				case BluetoothChatService.STATE_CONNECTING:
 					mTitle.setText(R.string.title_connecting);
@@ -284,26 +276,17 @@ public class BluetoothChat extends Activity {
 			case MESSAGE_WRITE:
 			{
 				byte[] writeBuf = (byte[]) msg.obj;
-				// construct a string from the buffer
-				String writeMessage = new String(writeBuf);
-				BluetoothMessage m = new BluetoothMessage(writeMessage);
+				// decode the message that was sent
+				BluetoothMessage m = BluetoothMessage.fromBytes(writeBuf, 0, writeBuf.length);
 
-				if ( mChatService.isServer){
-					mChatService.addMessageToHistory(m);
-				}
-
-				mConversationArrayAdapter.add("Me ("+ m.date +"):  " + m.text);
+				mConversationAdapter.append("Me ("+ m.date +"):  " + m.text);
 				break;
 			}
 			case MESSAGE_READ:
 			{
-				BluetoothMessage m = (BluetoothMessage) msg.obj;
+				MessageView m = (MessageView) msg.obj;
 
-				if ( mChatService.isServer){
-					mChatService.addMessageToHistory(m);
-				}
-
-				mConversationArrayAdapter.add(m.author+ "(" + m.date +"):  " + m.text);
+				mConversationAdapter.append(m.getAuthor()+ "(" + m.getDate() +"):  " + m.getText());
 				break;
 			}
 			case MESSAGE_DEVICE_NAME:
@@ -320,13 +303,44 @@ public class BluetoothChat extends Activity {
 		}
 	};
 
+	// Hands what the BluetoothChatService reports to the Handler, on the UI thread
+	private final ChatListener mListener = new ChatListener() {
+		public void onStateChange(int state) {
+			mHandler.obtainMessage(MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+		}
+
+		public void onDeviceName(String name) {
+			Message msg = mHandler.obtainMessage(MESSAGE_DEVICE_NAME);
+			Bundle bundle = new Bundle();
+			bundle.putString(DEVICE_NAME, name);
+			msg.setData(bundle);
+			mHandler.sendMessage(msg);
+		}
+
+		public void onMessageRead(MessageView message) {
+			mHandler.obtainMessage(MESSAGE_READ, message).sendToTarget();
+		}
+
+		public void onMessageWritten(byte[] message) {
+			mHandler.obtainMessage(MESSAGE_WRITE, message).sendToTarget();
+		}
+
+		public void onToast(String text) {
+			Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
+			Bundle bundle = new Bundle();
+			bundle.putString(TOAST, text);
+			msg.setData(bundle);
+			mHandler.sendMessage(msg);
+		}
+	};
+
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
 		if(D) Log.d(TAG, "onActivityResult " + resultCode);
 		switch (requestCode) {
 		case ACTIVITY_CHOOSE_FILE: {
 			if (resultCode == RESULT_OK){
 				Uri uri = data.getData();
-				mChatService.writeFile(uri);
+				mChatService.writeFile(uri.toString());
 			}
 		}
 		break;
@@ -360,10 +374,8 @@ public class BluetoothChat extends Activity {
 		// Get the device MAC address
 		String address = data.getExtras()
 				.getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
-		// Get the BLuetoothDevice object
-		BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
 		// Attempt to connect to the device
-		mChatService.connect(device);
+		mChatService.connect(address);
 	}
 
 	@Override
@@ -379,7 +391,7 @@ public class BluetoothChat extends Activity {
 		switch (item.getItemId()) {
 		case R.id.secure_connect_scan:
 			// Launch the DeviceListActivity to see devices and do scan
-			mConversationArrayAdapter.clear();
+			mConversationAdapter.clear();
 			mChatService.setServer(false);
 			serverIntent = new Intent(this, DeviceListActivity.class);
 			startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE_SECURE);
@@ -387,7 +399,7 @@ public class BluetoothChat extends Activity {
 		case R.id.start_server:
 			// Launch the DeviceListActivity to see devices and do scan
 			mChatService.startServer();
-			mConversationArrayAdapter.clear();
+			mConversationAdapter.clear();
 
 			Intent shareIntent = new Intent(android.content.Intent.ACTION_SEND);
 			shareIntent.setType("text/plain");
@@ -16,28 +16,21 @@
 
 package com.example.android.BluetoothChat;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
-import org.apache.http.util.ByteArrayBuffer;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
-import android.os.Bundle;
-import android.os.Environment;
-import android.os.Handler;
-import android.os.Message;
-import android.provider.MediaStore;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
 import android.util.Log;
 
 /**
@@ -62,10 +55,12 @@ public class BluetoothChatService {
 			UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
 
 	// Member fields
-	private final BluetoothAdapter mAdapter;
-	private final Handler mHandler;
+	private final Transport mTransport;
+	private final ChatListener mListener;
+	private final ChatStorage mStorage;
 	private AcceptThread mSecureAcceptThread;
 	private ConnectThread mConnectThread;
+	private ReconnectThread mReconnectThread;
 	private int mState;
 
 	// Constants that indicate the current connection state
@@ -79,30 +74,254 @@ public class BluetoothChatService {
 
 	public boolean isServer = true;
 
-	private Context bc;
+	private final ClientRegistry bluetoothClients = new ClientRegistry();
+	// Chat history served to peers that join, null if it could not be opened
+	private MessageJournal mJournal;
+
+	// Number of past messages sent to a peer that has none, and how many are read at a time
+	public static final int HISTORY_REPLAY = 100;
+	private static final int HISTORY_BATCH = 32;
+	// Held while a message is journaled and queued, so peers get them in
+	// sequence order; nothing waits for a peer's queue while holding it
+	private final Object mHistoryLock = new Object();
+
+	// Client side: the hub we last synced with, the id of its journal and
+	// the newest entry of it we have
+	private String mHubAddress;
+	private volatile long mHubJournal;
+	private volatile long mLastSeq;
+	// Client side: go back to the hub when its link drops, waiting longer
+	// after every failed attempt, and give up after this many
+	private boolean mAutoReconnect = true;
+	private static final long RECONNECT_BASE_DELAY = 500;
+	private static final long RECONNECT_MAX_DELAY = 30 * 1000;
+	public static final int RECONNECT_MAX_ATTEMPTS = 12;
+
+	// Outbound queue settings, applied to new connections
+	public static final int DEFAULT_SEND_QUEUE_CAPACITY = 64;
+	private int mSendQueueCapacity = DEFAULT_SEND_QUEUE_CAPACITY;
+	private OutboundQueue.Policy mSlowConsumerPolicy = OutboundQueue.Policy.DROP_OLDEST;
+	// Offer DEFLATE to peers that connect from now on
+	private boolean mCompression = true;
+	// Heartbeats for peers that connect from now on: how often one is sent
+	// when there is nothing else to send, and how many intervals without
+	// a frame from the peer get it evicted; 0 for none
+	public static final int DEFAULT_HEARTBEAT_INTERVAL = 2000;
+	public static final int DEFAULT_HEARTBEAT_MISSES = 3;
+	private int mHeartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+	private int mHeartbeatMisses = DEFAULT_HEARTBEAT_MISSES;
+	// How often the connections are checked
+	private static final int HEARTBEAT_TICK = 250;
+	private HeartbeatThread mHeartbeatThread;
+	// Send side of the link to each peer by address, kept across reconnects
+	// until the peer has been gone for LINK_EXPIRY; longer than a client
+	// keeps trying to reconnect
+	private final HashMap<String, OutboundQueue> mLinks = new HashMap<String, OutboundQueue>();
+	private static final long LINK_EXPIRY = 10 * 60 * 1000;
+	// Decides which peer's writer may use the radio next, paced to what the transport sustains
+	private final EgressScheduler mEgress;
+
+	// Threads handling received frames, shared by all connections
+	public static final int DEFAULT_WORKERS = 6;
+	private final WorkerPool mWorkers = new WorkerPool("Worker", DEFAULT_WORKERS);
+	// Payloads of frames read and relayed, shared by all connections
+	private final BufferPool mBuffers = new BufferPool(FrameCodec.MAX_PAYLOAD);
+	// Messages typed here are journaled and queued off the UI thread, in
+	// the order they were typed. Under the BLOCK policy their thread waits
+	// for room in the peers' queues, so it is not taken from the workers
+	private final WorkerPool mLocalSender = new WorkerPool("LocalSender", 1);
+	private final WorkerPool.Lane mLocalLane = mLocalSender.serial();
+
+	// Files are sent off the caller's thread, up to FILE_STREAMS at once;
+	// each is a stream of its own and they share the link in turns. Their
+	// threads wait for room in the peers' queues, which paces reading the
+	// file, so they are not taken from the workers
+	private static final int FILE_STREAMS = 3;
+	private final WorkerPool mFileSenders = new WorkerPool("FileSender", FILE_STREAMS);
+	private final Executor mFileExecutor = mFileSenders.lane(FILE_STREAMS);
+	// Files sent and not yet confirmed by every peer, by transfer id
+	private final HashMap<Long, Transfer> mTransfers = new HashMap<Long, Transfer>();
+	// Times the hub asks for a relayed file again when its own copy fails
+	private static final int RELAY_ATTEMPTS = 3;
+	private final Random mRandom = new Random();
+	// Files being received, by transfer id, and where their manifests are kept
+	private final HashMap<Long, FileReceiver> mIncoming = new HashMap<Long, FileReceiver>();
+	private final File mTransferDir;
+	// Partial files nobody came back for are deleted after this long
+	private static final long TRANSFER_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+	// Traffic, latency and transfer figures, always on
+	private final ChatMetrics mMetrics = new ChatMetrics();
 
-	private ArrayList<BluetoothClient> bluetoothClients = new ArrayList<BluetoothClient>();
-	private ArrayList<BluetoothMessage> messages = new ArrayList<BluetoothMessage>();
+	/**
+	 * A file being sent, kept until every peer it went to has confirmed it.
+	 */
+	private static class Transfer {
+		final long id;
+		// Where chunks are read from when sent again; for a file being
+		// relayed, set once the hub's own copy is complete
+		volatile OutgoingFile source;
+		// Who sent the file, null for this device
+		final String author;
+		// Addresses of the peers that have not confirmed it yet
+		final HashSet<String> pending = new HashSet<String>();
+		// For a file being relayed, times the hub's copy failed
+		int failures;
+
+		Transfer(long id, OutgoingFile source, String author) {
+			this.id = id;
+			this.source = source;
+			this.author = author;
+		}
+	}
 
 	/**
 	 * Constructor. Prepares a new BluetoothChat session.
-	 * @param context  The UI Activity Context
-	 * @param handler  A Handler to send messages back to the UI Activity
+	 * @param storage  Where history and files are kept
+	 * @param listener  Told of connections and messages, for the UI Activity
+	 * @param transport  The link to run on
 	 */
-	public BluetoothChatService(Context context, Handler handler) {
-		bc = context;
-		mAdapter = BluetoothAdapter.getDefaultAdapter();
+	public BluetoothChatService(ChatStorage storage, ChatListener listener, Transport transport) {
+		mStorage = storage;
+		mTransport = transport;
+		mEgress = new EgressScheduler(transport.getLinkRate());
 		mState = STATE_NONE;
-		mHandler = handler;
+		mListener = listener;
+
+		try {
+			mJournal = new MessageJournal(new File(storage.getFilesDir(), "journal"));
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to open the message journal, history is disabled", e);
+		}
+		mTransferDir = new File(storage.getFilesDir(), "transfers");
+		FileReceiver.prune(storage.getDownloadDir(), mTransferDir, TRANSFER_MAX_AGE);
+	}
+
+	/**
+	 * Limit how much history is kept on disk.
+	 * @param maxBytes  Total size of the journal
+	 * @param maxAgeMillis  Age after which messages are dropped
+	 */
+	public void setHistoryRetention(long maxBytes, long maxAgeMillis) {
+		if (mJournal != null) mJournal.setRetention(maxBytes, maxAgeMillis);
+	}
+
+	/**
+	 * Configure the per-peer send queue used by connections made from now on.
+	 * @param capacity  Number of frames a peer may have waiting
+	 * @param policy  What to do when a peer's queue is full
+	 */
+	public synchronized void setSendQueue(int capacity, OutboundQueue.Policy policy) {
+		mSendQueueCapacity = capacity;
+		mSlowConsumerPolicy = policy;
 	}
 
-	public void addMessageToHistory(BluetoothMessage m){
-		messages.add(m);
-		if (messages.size()>11){
-			messages.remove(0);
+	/**
+	 * Offer compression to peers that connect from now on. It is used on a
+	 * connection when both sides offer it.
+	 */
+	public synchronized void setCompression(boolean enabled) {
+		mCompression = enabled;
+	}
+
+	/**
+	 * Client side: reconnect to the hub by itself when the link drops,
+	 * rather than going back to listening. On by default.
+	 */
+	public synchronized void setAutoReconnect(boolean enabled) {
+		mAutoReconnect = enabled;
+		if (!enabled) cancelReconnect();
+	}
+
+	private void cancelReconnect() {
+		if (mReconnectThread != null) {
+			mReconnectThread.cancel();
+			mReconnectThread = null;
 		}
 	}
 
+	/**
+	 * Set the heartbeat of peers that connect from now on. A peer that
+	 * sends nothing, not even a heartbeat, for misses intervals is taken
+	 * for gone and dropped at once, rather than when a read on its socket
+	 * finally fails. Used on a connection when both sides offer it; both
+	 * ends should use the same interval.
+	 * @param intervalMillis  Quiet time after which a heartbeat is sent, 0 for none
+	 * @param misses  Intervals without a frame from the peer before it is evicted
+	 */
+	public synchronized void setHeartbeat(int intervalMillis, int misses) {
+		mHeartbeatInterval = intervalMillis;
+		mHeartbeatMisses = Math.max(1, misses);
+	}
+
+	/**
+	 * Set what this device may send in all. Chat keeps within the latency
+	 * target while files are being sent as long as the rate is below what
+	 * the radio actually achieves. Starts at the transport's link rate.
+	 * @param bytesPerSecond  Total egress rate, 0 for no limit
+	 * @param latencyTargetMillis  How long chat may wait behind file data
+	 */
+	public void setEgressLimits(long bytesPerSecond, int latencyTargetMillis) {
+		mEgress.setLinkRate(bytesPerSecond, latencyTargetMillis);
+	}
+
+	/**
+	 * Limit the rate at which file data is sent to a peer.
+	 * @param address  The peer, or null for the default of every peer
+	 * @param bytesPerSecond  The limit, 0 for none
+	 */
+	public void setPeerRate(String address, long bytesPerSecond) {
+		mEgress.setPeerRate(address, bytesPerSecond);
+	}
+
+	/**
+	 * Set how many threads handle received frames, for all connections
+	 * together.
+	 */
+	public void setWorkerThreads(int threads) {
+		mWorkers.setThreads(threads);
+	}
+
+	/**
+	 * @return The worker pool, for its queue and latency statistics
+	 */
+	public WorkerPool getWorkerPool() {
+		return mWorkers;
+	}
+
+	/**
+	 * @return Traffic per peer, link latencies, file rates and reconnects
+	 */
+	public ChatMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * @return The metrics and the worker and buffer pools' statistics, as text
+	 */
+	public String dumpMetrics() {
+		StringBuilder sb = new StringBuilder(mMetrics.snapshot());
+		sb.append("workers ").append(mWorkers.getPoolSize()).append('/').append(mWorkers.getThreads())
+				.append(" active=").append(mWorkers.getActive())
+				.append(" queued=").append(mWorkers.getQueued())
+				.append(" tasks=").append(mWorkers.getTasks())
+				.append(" wait us=").append(mWorkers.getAverageWaitMicros()).append('/').append(mWorkers.getMaxWaitMicros())
+				.append(" run us=").append(mWorkers.getAverageRunMicros()).append('/').append(mWorkers.getMaxRunMicros())
+				.append(" failed=").append(mWorkers.getFailures())
+				.append('\n');
+		sb.append("buffers reused=").append(mBuffers.getHits())
+				.append(" allocated=").append(mBuffers.getMisses())
+				.append(" free=").append(mBuffers.getFree())
+				.append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * @return The peers connected now, with their link and compression statistics
+	 */
+	public BluetoothClient[] getClients() {
+		return bluetoothClients.snapshot();
+	}
+
 	public void setServer(boolean b){
 		isServer = b;
 		accepting = b;
@@ -116,8 +335,6 @@ public class BluetoothChatService {
 				mSecureAcceptThread.start();
 				setState(STATE_LISTEN);
 			}
-		}else{ 
-			messages.clear();
 		}
 	}
 
@@ -137,8 +354,8 @@ public class BluetoothChatService {
 		if (D) Log.d(TAG, "setState() " + mState + " -> " + state);
 		mState = state;
 
-		// Give the new state to the Handler so the UI Activity can update
-		mHandler.obtainMessage(BluetoothChat.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+		// Give the new state to the listener so the UI Activity can update
+		mListener.onStateChange(state);
 	}
 
 	/**
@@ -171,36 +388,46 @@ public class BluetoothChatService {
 
 	/**
 	 * Start the ConnectThread to initiate a connection to a remote device.
-	 * @param device  The BluetoothDevice to connect
-	 * @param secure Socket Security type - Secure (true) , Insecure (false)
+	 * @param address  The transport address of the device to connect
 	 */
-	public synchronized void connect(BluetoothDevice device) {
-		if (D) Log.d(TAG, "connect to: " + device);
+	public synchronized void connect(String address) {
+		if (D) Log.d(TAG, "connect to: " + address);
 
 		// Cancel any thread attempting to make a connection
 		if (mState == STATE_CONNECTING) {
 			if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
 		}
+		// The user picked a device, stop going back to the last one
+		cancelReconnect();
 
 		// Cancel any thread currently running a connection
 
 		// Start the thread to connect with the given device
-		mConnectThread = new ConnectThread(device);
+		mConnectThread = new ConnectThread(address);
 		mConnectThread.start();
 		setState(STATE_CONNECTING);
 	}
 
 	/**
-	 * Start the ConnectedThread to begin managing a Bluetooth connection
-	 * @param socket  The BluetoothSocket on which the connection was made
-	 * @param device  The BluetoothDevice that has been connected
+	 * Start the ConnectedThread to begin managing a connection
+	 * @param socket  The connection that was made
 	 */
-	public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-			device, final String socketType) {
+	public synchronized void connected(Transport.Connection socket, final String socketType) {
+		connected(socket, socketType, System.nanoTime(), false);
+	}
+
+	/**
+	 * @param startedAt  System.nanoTime() when the connection was started
+	 * or accepted, the link's latency is measured from it
+	 * @param outgoing  true if this device opened the connection
+	 */
+	private synchronized void connected(Transport.Connection socket, final String socketType, long startedAt, boolean outgoing) {
 		if (D) Log.d(TAG, "connected, Socket Type:" + socketType);
 
 		// Cancel the thread that completed the connection
 		if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+		// A reconnect that succeeded has already let go of its thread
+		cancelReconnect();
 
 		// Cancel any thread currently running a connection
 
@@ -208,26 +435,47 @@ public class BluetoothChatService {
 		// Cancel the accept thread because we only want to connect to one device
 
 		// Start the thread to manage the connection and perform transmissions
-		ConnectedThread _mConnectedThread = new ConnectedThread(socket, socketType);
+		ConnectedThread _mConnectedThread = new ConnectedThread(socket, socketType, startedAt, outgoing);
 		_mConnectedThread.start();
+		if (mHeartbeatThread == null) {
+			mHeartbeatThread = new HeartbeatThread();
+			mHeartbeatThread.start();
+		}
 
 		//creating new client
 		BluetoothClient bc = new BluetoothClient(socket,_mConnectedThread);
 
-		bluetoothClients.add(bc);
+		BluetoothClient previous = bluetoothClients.add(bc);
+		if (previous != null) {
+			// The device reconnected before its old link timed out
+			previous.connectedThread.cancel();
+		}
 
 
 		// Send the name of the connected device back to the UI Activity
-		Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_DEVICE_NAME);
-		Bundle bundle = new Bundle();
-		bundle.putString(BluetoothChat.DEVICE_NAME, device.getName());
-		msg.setData(bundle);
-		mHandler.sendMessage(msg);
+		mListener.onDeviceName(socket.getRemoteName());
 
 		setState(STATE_CONNECTED);
 
-		bc.connectedThread.sendLogs(); //write(messages.get(i).getJSONStr());		
+		// Ask the hub for what was said since we last saw it. The hub answers
+		// on the peer's lane of the worker pool, never from here.
+		if (!isServer) {
+			if (!socket.getRemoteAddress().equals(mHubAddress)) {
+				mHubAddress = socket.getRemoteAddress();
+				mHubJournal = 0;
+				mLastSeq = 0;
+			}
+			_mConnectedThread.requestHistory(mHubJournal, mLastSeq);
+		}
 
+		// Files this peer did not confirm before it was lost: ask what it is missing
+		synchronized (mTransfers) {
+			for (Transfer t : mTransfers.values()) {
+				if (t.pending.contains(socket.getRemoteAddress())) {
+					_mConnectedThread.sendTransferFrame(FrameCodec.FRAME_FILE_QUERY, t.id);
+				}
+			}
+		}
 	}
 
 	/**
@@ -240,58 +488,533 @@ public class BluetoothChatService {
 			mConnectThread.cancel();
 			mConnectThread = null;
 		}
+		cancelReconnect();
 
 		if (mSecureAcceptThread != null) {
 			mSecureAcceptThread.cancel();
 			mSecureAcceptThread = null;
 		}
-		for (int i = 0; i < bluetoothClients.size(); i++){
-			bluetoothClients.get(i).connectedThread.cancel();
-			bluetoothClients.get(i).connectedThread = null;
+
+		if (mHeartbeatThread != null) {
+			mHeartbeatThread.interrupt();
+			mHeartbeatThread = null;
+		}
+		BluetoothClient[] clients = bluetoothClients.clear();
+		for (int i = 0; i < clients.length; i++){
+			clients[i].connectedThread.cancel();
+		}
+		for (OutboundQueue link : mLinks.values()) {
+			link.close();
+		}
+		mLinks.clear();
+		synchronized (mTransfers) {
+			mTransfers.clear();
+		}
+		synchronized (mIncoming) {
+			for (FileReceiver f : mIncoming.values()) {
+				f.close();
+			}
+			mIncoming.clear();
 		}
-		bluetoothClients.clear();
-		messages.clear();
 
 		setState(STATE_NONE);
 	}
 
 	/**
-	 * Write to the ConnectedThread in an unsynchronized manner
+	 * Stop all threads and release what the service keeps between
+	 * connections: the history journal and the worker pools. The service
+	 * cannot be started again.
+	 */
+	public void close() {
+		stop();
+		mWorkers.shutdown();
+		mLocalSender.shutdown();
+		mFileSenders.shutdown();
+		synchronized (mHistoryLock) {
+			if (mJournal != null) mJournal.close();
+		}
+	}
+
+	/**
+	 * Queue a message for every peer. This only hands the message on, it
+	 * is journaled and queued on a worker and written by each connection's
+	 * writer thread.
 	 * @param out The bytes to write
-	 * @see ConnectedThread#write(byte[])
+	 * @see ConnectedThread#send(OutboundFrame)
+	 */
+	public void write(final byte[] out) {
+		mLocalLane.execute(new Runnable() {
+			public void run() {
+				try {
+					awaitRoom();
+				} catch (InterruptedException e) {
+					Log.w(TAG, "Interrupted while waiting for room to send a message");
+					return;
+				}
+				if (isServer) {
+					publish(out, 0, out.length, MessageCodec.sentAt(out, 0, out.length), null);
+				} else {
+					broadcast(new OutboundFrame(FrameCodec.FRAME_MESSAGE, out), null);
+				}
+			}
+		});
+		mListener.onMessageWritten(out);
+	}
+
+	/**
+	 * Under the BLOCK policy, wait until every peer's queue has room for a
+	 * message typed here; publishing queues under the history lock, so it
+	 * cannot wait itself. Returns at once under the other policies.
+	 */
+	private void awaitRoom() throws InterruptedException {
+		BluetoothClient[] clients = bluetoothClients.snapshot();
+		for (int i = 0; i < clients.length; i++) {
+			clients[i].connectedThread.getOutbound().blockForRoom();
+		}
+	}
+
+	/**
+	 * Queue the same frame for every peer but one. The frame and its payload
+	 * are shared by all the queues, nothing is copied or re-encoded per peer.
+	 * @param except  The connection the frame came from, or null
+	 */
+	private void broadcast(OutboundFrame frame, ConnectedThread except) {
+		BluetoothClient[] clients = bluetoothClients.snapshot();
+		for (int i = 0 ; i < clients.length; i++){
+			ConnectedThread t = clients[i].connectedThread;
+			if (t != except){
+				t.send(frame);
+			}
+		}
+	}
+
+	/**
+	 * Hub side: give a chat message the next history sequence number, add it
+	 * to the journal and queue it for every synced peer but one; that one,
+	 * the sender, is only sent the number, so it stays in step with the
+	 * history without being sent its own message back. Journaling
+	 * and queueing happen under one lock, so every peer receives messages
+	 * in sequence order and none falls between its history and live traffic.
+	 * Queueing never waits: a peer whose queue is full loses the message
+	 * and asks for it again with the history.
+	 * A timestamped message goes out with the hub's trace, see
+	 * MessageCodec.appendTrace(); the journal keeps it as it was sent.
+	 * The message is only handled as bytes, it is not decoded.
+	 * @param sentAt  The sender's timestamp in the message, 0 if it has none
+	 * @param except  The connection the message came from, or null
+	 */
+	private void publish(byte[] message, int offset, int length, long sentAt, ConnectedThread except) {
+		long now = 0;
+		long uplink = -1;
+		if (sentAt != 0) {
+			now = ChatMetrics.now();
+			if (except == null) {
+				uplink = now - sentAt;
+			} else if (except.mmMetrics.hasClock()) {
+				uplink = Math.max(0, now - except.mmMetrics.toLocal(sentAt));
+				mMetrics.firstHopLatency.record(uplink);
+			}
+		}
+		OutboundFrame frame = ChatRelay.message(mBuffers, message, offset, length, sentAt, now, uplink);
+		synchronized (mHistoryLock) {
+			long seq = ChatRelay.number(mJournal, frame, length);
+			BluetoothClient[] clients = bluetoothClients.snapshot();
+			for (int i = 0 ; i < clients.length; i++){
+				ConnectedThread t = clients[i].connectedThread;
+				// Peers still syncing get this message with the tail of their history
+				if (t != except && t.mmSynced){
+					t.send(frame);
+				}
+			}
+			// The queues hold it from here
+			frame.release();
+
+			if (except != null && except.mmSynced && seq != 0) {
+				OutboundFrame echo = ChatRelay.echo(mBuffers, seq);
+				except.send(echo);
+				echo.release();
+			}
+		}
+	}
+
+	/**
+	 * Send a file to every peer. Returns at once, the file is streamed from
+	 * a background thread.
+	 * @param uri  The content to send, as ChatStorage.open() takes it
 	 */
-	public void write(byte[] out) {
-		// Create temporary object
-		// Synchronize a copy of the ConnectedThread
-		//synchronized (this) {
-		//	if (mState != STATE_CONNECTED) return;
-		//  r = mConnectedThread;
+	public void writeFile(String uri) {
+		sendFile(uri, null);
+	}
 
-		//}
-		// Perform the write unsynchronized
-		Log.d("write", "Send message");
+	private void sendFile(final String uri, final ConnectedThread except) {
+		mFileExecutor.execute(new Runnable() {
+			public void run() {
+				OutgoingFile source;
+				try {
+					source = mStorage.open(uri);
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to open " + uri, e);
+					return;
+				}
+				long id;
+				do {
+					// The id is the transfer's stream, which must not be the chat stream
+					id = mRandom.nextLong();
+				} while (id == OutboundFrame.CHAT_STREAM);
+				Transfer transfer = new Transfer(id, source, null);
+				ArrayList<OutboundQueue> targets = new ArrayList<OutboundQueue>();
+				BluetoothClient[] clients = bluetoothClients.snapshot();
+				for (int i = 0 ; i < clients.length; i++){
+					if (clients[i].connectedThread != except){
+						transfer.pending.add(clients[i].deviceAdress);
+						targets.add(clients[i].outbound);
+					}
+				}
+				if (targets.isEmpty()) return;
 
-		for (int i = 0 ; i < bluetoothClients.size(); i++){
-			bluetoothClients.get(i).connectedThread.write(out);
+				synchronized (mTransfers) {
+					mTransfers.put(transfer.id, transfer);
+				}
+				try {
+					streamFile(transfer, targets, null);
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to send " + uri, e);
+					forgetTransfer(transfer.id);
+				} catch (InterruptedException e) {
+					Log.w(TAG, "Interrupted while sending " + uri);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send the chunks of a file a peer reported missing, from the file
+	 * thread like the first attempt.
+	 * @param ranges  Pairs of first chunk and count, as in FRAME_FILE_MISSING
+	 */
+	private void resendFile(final long id, final int[] ranges, final String address) {
+		final Transfer transfer;
+		synchronized (mTransfers) {
+			transfer = mTransfers.get(id);
+		}
+		if (transfer == null) {
+			Log.w(TAG, "Transfer " + Long.toHexString(id) + " is not known anymore");
+			return;
+		}
+		if (transfer.source == null) {
+			// Still being relayed; the peer asks again when the end is forwarded
+			return;
+		}
+		final OutboundQueue link = linkFor(address);
+		mFileExecutor.execute(new Runnable() {
+			public void run() {
+				ArrayList<OutboundQueue> targets = new ArrayList<OutboundQueue>();
+				targets.add(link);
+				try {
+					streamFile(transfer, targets, ranges);
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to send " + transfer.source.getName(), e);
+					forgetTransfer(transfer.id);
+				} catch (InterruptedException e) {
+					Log.w(TAG, "Interrupted while sending " + transfer.source.getName());
+				}
+			}
+		});
+	}
+
+	/**
+	 * A peer has the file, or gave up on it; once none is left the
+	 * transfer is forgotten.
+	 */
+	private void transferDone(long id, String address) {
+		synchronized (mTransfers) {
+			Transfer transfer = mTransfers.get(id);
+			if (transfer != null) {
+				transfer.pending.remove(address);
+				if (transfer.pending.isEmpty()) mTransfers.remove(id);
+			}
+		}
+	}
+
+	private void forgetTransfer(long id) {
+		synchronized (mTransfers) {
+			mTransfers.remove(id);
+		}
+	}
+
+	/**
+	 * Hub side: a peer started sending a file. It is forwarded to every
+	 * other peer as it arrives, under the same transfer id, rather than
+	 * sent on once it has been stored.
+	 * @param from  The connection the file comes from
+	 * @param header  The FRAME_FILE_START payload
+	 */
+	private void relayStart(long id, String author, ConnectedThread from, byte[] header, int offset, int length) {
+		synchronized (mTransfers) {
+			// Sent again because the hub's copy failed; the peers have the header
+			if (mTransfers.containsKey(id)) return;
+		}
+		Transfer transfer = new Transfer(id, null, author);
+		ArrayList<OutboundQueue> targets = new ArrayList<OutboundQueue>();
+		BluetoothClient[] clients = bluetoothClients.snapshot();
+		for (int i = 0 ; i < clients.length; i++){
+			if (clients[i].connectedThread != from){
+				transfer.pending.add(clients[i].deviceAdress);
+				targets.add(clients[i].outbound);
+			}
+		}
+		if (targets.isEmpty()) return;
+
+		synchronized (mTransfers) {
+			mTransfers.put(id, transfer);
+		}
+		byte[] payload = new byte[length];
+		System.arraycopy(header, offset, payload, 0, length);
+		// Not waited for, this is the sender's lane; see relay()
+		OutboundFrame frame = new OutboundFrame(FrameCodec.FRAME_FILE_START, id, payload, 0, length);
+		for (int i = 0; i < targets.size(); i++) {
+			targets.get(i).offerNow(frame);
+		}
+	}
+
+	/**
+	 * Hub side: forward a frame of a file being relayed to the peers that
+	 * still need it. One copy of the payload is shared by all of them.
+	 * Nothing is waited for, this runs on the sender's lane. A peer whose
+	 * stream is full skips a chunk, reports it missing at the end and gets
+	 * it from the hub's copy, so the slowest peer does not hold up the
+	 * sender or the others. The end of the file must not be lost, so it is
+	 * put() from the file thread, which may wait for room in the streams.
+	 */
+	private void relay(long id, int type, byte[] buffer, int offset, int length) {
+		String[] addresses;
+		synchronized (mTransfers) {
+			Transfer transfer = mTransfers.get(id);
+			if (transfer == null) return;
+			addresses = transfer.pending.toArray(new String[transfer.pending.size()]);
+		}
+		if (addresses.length == 0) return;
+
+		if (type != FrameCodec.FRAME_FILE_DATA) {
+			byte[] payload = new byte[length];
+			System.arraycopy(buffer, offset, payload, 0, length);
+			final OutboundFrame frame = new OutboundFrame(type, id, payload, 0, length);
+			final OutboundQueue[] links = new OutboundQueue[addresses.length];
+			for (int i = 0; i < addresses.length; i++) {
+				links[i] = linkFor(addresses[i]);
+			}
+			mFileExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < links.length; i++) {
+							links[i].put(frame);
+						}
+					} catch (InterruptedException e) {
+						Log.w(TAG, "Interrupted while relaying the end of a file");
+					}
+				}
+			});
+			return;
 		}
 
-		mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, out).sendToTarget();
+		byte[] payload = mBuffers.acquire(length);
+		System.arraycopy(buffer, offset, payload, 0, length);
+		OutboundFrame frame = new OutboundFrame(type, id, payload, 0, length, mBuffers);
+		for (int i = 0; i < addresses.length; i++) {
+			linkFor(addresses[i]).tryPut(frame);
+		}
+		// The queues hold it from here
+		frame.release();
+	}
 
+	/**
+	 * Hub side: the hub's copy of a relayed file is complete, chunks the
+	 * other peers missed are sent from it from now on.
+	 */
+	private void relaySaved(long id, File saved) {
+		synchronized (mTransfers) {
+			Transfer transfer = mTransfers.get(id);
+			if (transfer != null) transfer.source = OutgoingFile.of(saved);
+		}
 	}
 
-	public void writeFile(Uri uri) {
-		try{
+	/**
+	 * Hub side: the hub's copy of a relayed file could not be saved. The
+	 * peers it went to are sent the chunks they missed from that copy, so
+	 * the file is asked for again, up to RELAY_ATTEMPTS times, and then
+	 * given up on.
+	 * @return true if the sender should send the whole file again
+	 */
+	private boolean relayFailed(long id) {
+		synchronized (mTransfers) {
+			Transfer transfer = mTransfers.get(id);
+			if (transfer == null || transfer.source != null) return false;
+			if (++transfer.failures < RELAY_ATTEMPTS) return true;
+			Log.e(TAG, "Giving up on relaying " + Long.toHexString(id));
+			mTransfers.remove(id);
+			return false;
+		}
+	}
 
-			for (int i = 0 ; i < bluetoothClients.size(); i++){
-				bluetoothClients.get(i).connectedThread.writeFile(uri);
+	/**
+	 * Stream a file to the given peers. The header goes out first, then the
+	 * content in CHUNK_SIZE chunks, each with its index and CRC32, then the
+	 * end frame with the number of chunks, all on the transfer's own stream
+	 * so chat is not held up behind them. Each chunk is read once and the
+	 * same frame is queued to every peer; a full stream makes put() wait,
+	 * which paces reading to the peers.
+	 * @param ranges  Pairs of first chunk and count to send, null for all
+	 */
+	private void streamFile(Transfer transfer, ArrayList<OutboundQueue> targets, int[] ranges) throws IOException, InterruptedException {
+		OutgoingFile file = transfer.source;
+		InputStream inputStream = file.open();
+		try {
+			String author = (transfer.author != null) ? transfer.author : mTransport.getLocalName();
+			BluetoothMessage m = new BluetoothMessage(author, String.valueOf(file.getSize()), file.getName(), BluetoothMessage.TYPE_FILE_START);
+			byte[] header = m.getBytes();
+			byte[] start = new byte[8 + header.length];
+			FrameCodec.writeLong(start, 0, transfer.id);
+			System.arraycopy(header, 0, start, 8, header.length);
+			putAll(targets, new OutboundFrame(FrameCodec.FRAME_FILE_START, transfer.id, start, 0, start.length));
+
+			Log.d(TAG, "sending " + file.getName() + " (" + file.getSize() + " bytes)");
+			long startedAt = System.nanoTime();
+			long sent = 0;
+			CRC32 crc = new CRC32();
+			byte[] skipped = null;
+			int index = 0;
+			while (true) {
+				// Chunks the peer has are read past, not sent
+				boolean wanted = isWanted(ranges, index);
+				byte[] chunk;
+				if (wanted) {
+					chunk = new byte[16 + OutgoingFile.CHUNK_SIZE];
+				} else {
+					if (skipped == null) skipped = new byte[16 + OutgoingFile.CHUNK_SIZE];
+					chunk = skipped;
+				}
+				int len = readChunk(inputStream, chunk, 16, OutgoingFile.CHUNK_SIZE);
+				if (len == 0) break;
+				if (wanted) {
+					crc.reset();
+					crc.update(chunk, 16, len);
+					FrameCodec.writeLong(chunk, 0, transfer.id);
+					FrameCodec.writeInt(chunk, 8, index);
+					FrameCodec.writeInt(chunk, 12, (int) crc.getValue());
+					putAll(targets, new OutboundFrame(FrameCodec.FRAME_FILE_DATA, transfer.id, chunk, 0, 16 + len));
+					sent += len;
+				}
+				index++;
+				if (len < OutgoingFile.CHUNK_SIZE) break;
 			}
-		}catch (Exception e){
 
+			byte[] end = new byte[12];
+			FrameCodec.writeLong(end, 0, transfer.id);
+			FrameCodec.writeInt(end, 8, index);
+			putAll(targets, new OutboundFrame(FrameCodec.FRAME_FILE_END, transfer.id, end, 0, end.length));
+			// Queued, not yet confirmed; chunks sent again are not a file's rate
+			if (ranges == null) mMetrics.fileSent(sent, System.nanoTime() - startedAt);
+		} finally {
+			inputStream.close();
 		}
+	}
 
+	private static boolean isWanted(int[] ranges, int index) {
+		if (ranges == null) return true;
+		for (int i = 0; i + 1 < ranges.length; i += 2) {
+			if (index >= ranges[i] && index - ranges[i] < ranges[i + 1]) return true;
+		}
+		return false;
+	}
 
-		//mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, out).sendToTarget();
+	/**
+	 * Read until the chunk is full or the stream ends, so every chunk but
+	 * the last has exactly CHUNK_SIZE bytes whatever read() returns.
+	 * @return The number of bytes read, 0 at the end of the stream
+	 */
+	private static int readChunk(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+		int n = 0;
+		while (n < length) {
+			int r = in.read(buffer, offset + n, length - n);
+			if (r < 0) break;
+			n += r;
+		}
+		return n;
+	}
 
+	private static void putAll(ArrayList<OutboundQueue> targets, OutboundFrame frame) throws InterruptedException {
+		for (int i = 0; i < targets.size(); i++) {
+			targets.get(i).put(frame);
+		}
+	}
+
+	/**
+	 * @return The incoming transfer with the given id, picked up from its
+	 * manifest if it is not open, or null if there is none
+	 */
+	private FileReceiver incoming(long id) {
+		synchronized (mIncoming) {
+			FileReceiver f = mIncoming.get(id);
+			if (f == null) {
+				f = FileReceiver.resume(mStorage.getDownloadDir(), mTransferDir, id);
+				if (f != null && !f.isDone()) mIncoming.put(id, f);
+			}
+			return f;
+		}
+	}
+
+	private void forgetIncoming(long id) {
+		synchronized (mIncoming) {
+			mIncoming.remove(id);
+		}
+	}
+
+	/**
+	 * @return The link to a peer, the one left by its last connection if any
+	 */
+	private synchronized OutboundQueue linkFor(String address) {
+		OutboundQueue link = mLinks.get(address);
+		if (link == null) {
+			link = new OutboundQueue(mSendQueueCapacity, mSlowConsumerPolicy);
+			mLinks.put(address, link);
+		}
+		return link;
+	}
+
+	/**
+	 * Let go of the links of peers gone for longer than LINK_EXPIRY, with
+	 * what was still queued for them, their figures and the files they
+	 * were yet to confirm. A peer that comes back later starts afresh.
+	 * @param now  System.nanoTime()
+	 */
+	private void expireLinks(long now) {
+		ArrayList<String> expired = null;
+		synchronized (this) {
+			Iterator<Map.Entry<String, OutboundQueue>> it = mLinks.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, OutboundQueue> e = it.next();
+				if (e.getValue().detachedFor(now) > LINK_EXPIRY * 1000000L) {
+					e.getValue().close();
+					it.remove();
+					if (expired == null) expired = new ArrayList<String>();
+					expired.add(e.getKey());
+				}
+			}
+		}
+		if (expired == null) return;
+
+		for (int i = 0; i < expired.size(); i++) {
+			String address = expired.get(i);
+			if (D) Log.d(TAG, "Link to " + address + " expired");
+			mMetrics.forget(address);
+			synchronized (mTransfers) {
+				Iterator<Transfer> it = mTransfers.values().iterator();
+				while (it.hasNext()) {
+					Transfer t = it.next();
+					if (t.pending.remove(address) && t.pending.isEmpty()) it.remove();
+				}
+			}
+		}
 	}
 
 	/**
@@ -299,11 +1022,7 @@ public class BluetoothChatService {
 	 */
 	private void connectionFailed() {
 		// Send a failure message back to the Activity
-		Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
-		Bundle bundle = new Bundle();
-		bundle.putString(BluetoothChat.TOAST, "Unable to connect device");
-		msg.setData(bundle);
-		mHandler.sendMessage(msg);
+		mListener.onToast("Unable to connect device");
 
 		// Start the service over to restart listening mode
 		BluetoothChatService.this.start();
@@ -311,19 +1030,43 @@ public class BluetoothChatService {
 
 	/**
 	 * Indicate that the connection was lost and notify the UI Activity.
+	 * @param address  The address of the peer that was lost
+	 * @param connection  Its connection, which is dropped from the registry
 	 */
-	private void connectionLost() {
+	private void connectionLost(String address, ConnectedThread connection) {
+		if (!bluetoothClients.remove(address, connection)) {
+			// Already replaced by a newer connection or removed by stop()
+			return;
+		}
+		if (isServer && bluetoothClients.size() == 0) {
+			setState(STATE_LISTEN);
+		}
+
 		// Send a failure message back to the Activity
-		Message msg = mHandler.obtainMessage(BluetoothChat.MESSAGE_TOAST);
-		Bundle bundle = new Bundle();
-		bundle.putString(BluetoothChat.TOAST, "Device connection was lost");
-		msg.setData(bundle);
-		mHandler.sendMessage(msg);
+		mListener.onToast("Device connection was lost");
+
+		synchronized (this) {
+			if (!isServer && mAutoReconnect && address.equals(mHubAddress)) {
+				// Go back to the hub; the link and the history position are kept
+				cancelReconnect();
+				mReconnectThread = new ReconnectThread(address);
+				mReconnectThread.start();
+				setState(STATE_CONNECTING);
+				return;
+			}
+		}
 
 		// Start the service over to restart listening mode
 		BluetoothChatService.this.start();
 	}
 
+	/**
+	 * Tell the UI Activity something in a toast.
+	 */
+	private void toast(String text) {
+		mListener.onToast(text);
+	}
+
 	/**
 	 * This thread runs while listening for incoming connections. It behaves
 	 * like a server-side client. It runs until a connection is accepted
@@ -331,18 +1074,17 @@ public class BluetoothChatService {
 	 */
 	private class AcceptThread extends Thread {
 		// The local server socket
-		private final BluetoothServerSocket mmServerSocket;
+		private final Transport.Server mmServerSocket;
 		private String mSocketType;
 
 		public AcceptThread() {
-			BluetoothServerSocket tmp = null;
+			Transport.Server tmp = null;
 			mSocketType = "Secure";
 
 			// Create a new listening server socket
 			try {
 
-				tmp = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE,
-						MY_UUID_SECURE);
+				tmp = mTransport.listen(NAME_SECURE, MY_UUID_SECURE);
 			} catch (IOException e) {
 				Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
 			}
@@ -354,7 +1096,7 @@ public class BluetoothChatService {
 					"BEGIN mAcceptThread" + this);
 			setName("AcceptThread" + mSocketType);
 
-			BluetoothSocket socket = null;
+			Transport.Connection socket = null;
 
 			accepting = true;
 
@@ -371,19 +1113,18 @@ public class BluetoothChatService {
 
 				// If a connection was accepted
 				if (socket != null) {
+					long acceptedAt = System.nanoTime();
 					synchronized (BluetoothChatService.this) {
 						switch (mState) {
 						case STATE_LISTEN:
 						case STATE_CONNECTING:
 							// Situation normal. Start the connected thread.
-							connected(socket, socket.getRemoteDevice(),
-									mSocketType);
+							connected(socket, mSocketType, acceptedAt, false);
 							break;
 						case STATE_NONE:
 						case STATE_CONNECTED:
 							// Either not ready or already connected. Terminate new socket.
-							connected(socket, socket.getRemoteDevice(),
-									mSocketType);
+							connected(socket, mSocketType, acceptedAt, false);
 							break;
 						}
 					}
@@ -404,27 +1145,128 @@ public class BluetoothChatService {
 	}
 
 
+	/**
+	 * This thread checks the heartbeat of every connection, from the first
+	 * connection until stop(): it has quiet ones send a heartbeat and
+	 * evicts peers that have gone silent. It also lets go of the links of
+	 * peers that did not come back.
+	 */
+	private class HeartbeatThread extends Thread {
+		public void run() {
+			setName("HeartbeatThread");
+			try {
+				while (!isInterrupted()) {
+					Thread.sleep(HEARTBEAT_TICK);
+					long now = System.nanoTime();
+					BluetoothClient[] clients = bluetoothClients.snapshot();
+					for (int i = 0; i < clients.length; i++) {
+						clients[i].connectedThread.checkHeartbeat(now);
+					}
+					expireLinks(now);
+				}
+			} catch (InterruptedException e) {
+				// stop()
+			}
+		}
+	}
+
+	/**
+	 * Client side: this thread runs after the link to the hub dropped,
+	 * trying to connect to it again with a jittered exponential backoff
+	 * until it succeeds, gives up or is cancelled. The hub's link keeps
+	 * what was not acknowledged and the history request asks for what came
+	 * after the last message seen, so the session carries on where it was.
+	 */
+	private class ReconnectThread extends Thread {
+		private final String mmAddress;
+		private final long mmLostAt = System.nanoTime();
+		private final Backoff mmBackoff = new Backoff(RECONNECT_BASE_DELAY, RECONNECT_MAX_DELAY);
+		private volatile Transport.Connection mmSocket;
+		private volatile boolean mmCancelled;
+
+		public ReconnectThread(String address) {
+			mmAddress = address;
+		}
+
+		public void run() {
+			setName("ReconnectThread");
+			try {
+				while (mmBackoff.getAttempts() < RECONNECT_MAX_ATTEMPTS) {
+					Thread.sleep(mmBackoff.next());
+					if (mmCancelled) return;
+					mMetrics.reconnectAttempts.incrementAndGet();
+					Transport.Connection socket = null;
+					try {
+						socket = mTransport.open(mmAddress, MY_UUID_SECURE);
+						mmSocket = socket;
+						socket.connect();
+					} catch (IOException e) {
+						Log.w(TAG, "Reconnect attempt " + mmBackoff.getAttempts() + " to " + mmAddress + " failed", e);
+						close(socket);
+						continue;
+					}
+					synchronized (BluetoothChatService.this) {
+						if (mmCancelled) {
+							close(socket);
+							return;
+						}
+						mReconnectThread = null;
+						connected(socket, "Secure", System.nanoTime(), true);
+					}
+					long millis = (System.nanoTime() - mmLostAt) / 1000000;
+					mMetrics.reconnectTime.record(millis);
+					Log.i(TAG, "Reconnected to " + mmAddress + " after " + millis + " ms, "
+							+ mmBackoff.getAttempts() + " attempts");
+					toast("Reconnected after " + millis + " ms");
+					return;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			// Out of attempts: back to listening, as without reconnecting
+			synchronized (BluetoothChatService.this) {
+				if (mmCancelled) return;
+				mReconnectThread = null;
+			}
+			mMetrics.reconnectFailures.incrementAndGet();
+			connectionFailed();
+		}
+
+		private void close(Transport.Connection socket) {
+			if (socket == null) return;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				Log.e(TAG, "close() of reconnect socket failed", e);
+			}
+		}
+
+		public void cancel() {
+			mmCancelled = true;
+			interrupt();
+			close(mmSocket);
+		}
+	}
+
 	/**
 	 * This thread runs while attempting to make an outgoing connection
 	 * with a device. It runs straight through; the connection either
 	 * succeeds or fails.
 	 */
 	private class ConnectThread extends Thread {
-		private final BluetoothSocket mmSocket;
-		private final BluetoothDevice mmDevice;
+		private final Transport.Connection mmSocket;
 		private String mSocketType;
+		private final long mmStartedAt = System.nanoTime();
 
-		public ConnectThread(BluetoothDevice device) {
-			mmDevice = device;
-			BluetoothSocket tmp = null;
+		public ConnectThread(String address) {
+			Transport.Connection tmp = null;
 			mSocketType = "Secure";
 
-			// Get a BluetoothSocket for a connection with the
-			// given BluetoothDevice
+			// Get a connection to the device at the given address
 			try {
 
-				tmp = device.createRfcommSocketToServiceRecord(
-						MY_UUID_SECURE);
+				tmp = mTransport.open(address, MY_UUID_SECURE);
 			} catch (IOException e) {
 				Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
 			}
@@ -435,10 +1277,7 @@ public class BluetoothChatService {
 			Log.i(TAG, "BEGIN mConnectThread SocketType:" + mSocketType);
 			setName("ConnectThread" + mSocketType);
 
-			// Always cancel discovery because it will slow down a connection
-			mAdapter.cancelDiscovery();
-
-			// Make a connection to the BluetoothSocket
+			// Make the connection
 			try {
 				// This is a blocking call and will only return on a
 				// successful connection or an exception
@@ -461,7 +1300,7 @@ public class BluetoothChatService {
 			}
 
 			// Start the connected thread
-			connected(mmSocket, mmDevice, mSocketType);
+			connected(mmSocket, mSocketType, mmStartedAt, true);
 		}
 
 		public void cancel() {
@@ -474,21 +1313,57 @@ public class BluetoothChatService {
 	}
 
 	/**
-	 * This thread runs during a connection with a remote device.
-	 * It handles all incoming and outgoing transmissions.
+	 * This thread runs during a connection with a remote device. It reads
+	 * frames and deals with the link's own (acknowledgements, the hello)
+	 * at once; every other frame is handled on the connection's lane of
+	 * the worker pool, in the order it arrived. Writing is done by its
+	 * WriterThread.
 	 */
-	public class ConnectedThread extends Thread {
-		private final BluetoothSocket mmSocket;
+	public class ConnectedThread extends Thread implements FrameCodec.FrameListener {
+		private final Transport.Connection mmSocket;
+		private final String mmAddress;
 		private final InputStream mmInStream;
 		private final OutputStream mmOutStream;
-
-		public ConnectedThread(BluetoothSocket socket, String socketType) {
+		private final FrameCodec.Decoder mmDecoder = new FrameCodec.Decoder(this);
+		private final OutboundQueue mmOutbound;
+		private final int mmGeneration;
+		private final WriterThread mmWriter;
+		private final FrameCompressor mmCompressor = new FrameCompressor();
+		private final EgressScheduler.Flow mmFlow;
+		private final WorkerPool.Lane mmLane = mWorkers.serial();
+		// FrameTasks done with, reused for the next frames
+		private final ArrayDeque<FrameTask> mmFreeTasks = new ArrayDeque<FrameTask>();
+		// Messages are read through this on the lane, and copied only for the UI
+		private final MessageView mmView = new MessageView();
+		private final ChatMetrics.Peer mmMetrics;
+		// When the link was started, until the peer's hello shows it is up
+		private final long mmStartedAt;
+		private final boolean mmOutgoing;
+		private boolean mmHelloSeen;
+		// Heartbeat settings of this connection, and when it last read and wrote
+		private final long mmHeartbeatNanos;
+		private final int mmHeartbeatMisses;
+		private volatile long mmLastRead = System.nanoTime();
+		private volatile long mmLastWrite = System.nanoTime();
+		// Hub side: set once the peer has its history, live messages are held back until then
+		private volatile boolean mmSynced;
+		// Hub side: the history request being answered, on the lane; a newer one takes over
+		private int mmSyncRequest;
+		// Client side: history was asked for after a gap, on the lane
+		private boolean mmResyncing;
+
+		public ConnectedThread(Transport.Connection socket, String socketType, long startedAt, boolean outgoing) {
 			Log.d(TAG, "create ConnectedThread: " + socketType);
 			mmSocket = socket;
+			mmAddress = socket.getRemoteAddress();
+			mmStartedAt = startedAt;
+			mmOutgoing = outgoing;
+			mmHeartbeatNanos = mHeartbeatInterval * 1000000L;
+			mmHeartbeatMisses = mHeartbeatMisses;
 			InputStream tmpIn = null;
 			OutputStream tmpOut = null;
 
-			// Get the BluetoothSocket input and output streams
+			// Get the connection's input and output streams
 			try {
 				tmpIn = socket.getInputStream();
 				tmpOut = socket.getOutputStream();
@@ -498,6 +1373,16 @@ public class BluetoothChatService {
 
 			mmInStream = tmpIn;
 			mmOutStream = tmpOut;
+			mmOutbound = linkFor(mmAddress);
+			mmGeneration = mmOutbound.attach((mCompression ? FrameCodec.CAP_DEFLATE : 0)
+					| ((mmHeartbeatNanos > 0) ? FrameCodec.CAP_HEARTBEAT : 0));
+			mmFlow = mEgress.register(mmAddress);
+			mmMetrics = mMetrics.connected(mmAddress, mmOutbound, mmCompressor);
+			mmWriter = new WriterThread();
+		}
+
+		public OutboundQueue getOutbound() {
+			return mmOutbound;
 		}
 
 		public void run() {
@@ -505,148 +1390,666 @@ public class BluetoothChatService {
 			byte[] buffer = new byte[1024];
 			int bytes;
 
-			boolean fileMode = false;
-			ByteArrayBuffer file = null;
-			long fileSize = 0;
-			long totalSize = 0;
-			String fileName = "tmp";
-			String fileAuthor = "";
+			mmWriter.start();
 
 			// Keep listening to the InputStream while connected
 			while (true) {
 				try {
-					// Read from the InputStream
+					// Read from the InputStream and let the decoder rebuild whole
+					// frames, it calls onFrame() once for each of them
 					bytes = mmInStream.read(buffer);
+					if (bytes < 0) {
+						throw new IOException("end of stream");
+					}
+					mmMetrics.bytesIn.addAndGet(bytes);
+					mmLastRead = System.nanoTime();
+					mmDecoder.feed(buffer, 0, bytes);
+					// Acknowledged once the lane has handled what was just read
+					mmLane.execute(mmAcknowledge);
+				} catch (IOException e) {
+					Log.e(TAG, "disconnected", e);
+					// Files being received stay resumable, the sender asks after them
+					mmOutbound.detach(mmGeneration);
+					mmFlow.close();
+					mmLane.execute(new Runnable() {
+						public void run() {
+							mmCompressor.endInflate();
+						}
+					});
+					connectionLost(mmAddress, this);
+					break;
+				}
+			}
+		}
 
-					// construct a string from the buffer
-					String writeMessage = new String(buffer);
-					BluetoothMessage m = new BluetoothMessage(writeMessage);
-
-					if (m.type == BluetoothMessage.TYPE_TEXT) {
-						// Send the obtained bytes to the UI Activity
-						mHandler.obtainMessage(BluetoothChat.MESSAGE_READ, bytes, -1, m).sendToTarget();
-					} else if (m.type == BluetoothMessage.TYPE_FILE_START) {
-						fileMode = true;
-						fileSize = 0;
-						totalSize = Long.parseLong(m.date);// Integer.parseInt(m.date);
-						fileName = m.text;
-						fileAuthor = m.author;
-						file = new ByteArrayBuffer((int)totalSize);
-						continue;
+		private final Runnable mmAcknowledge = new Runnable() {
+			public void run() {
+				mmOutbound.acknowledge();
+			}
+		};
+
+		/**
+		 * Called on the reader thread for each frame read.
+		 */
+		public void onFrame(int type, int seq, byte[] buffer, int offset, int length) throws IOException {
+			mmMetrics.framesIn.incrementAndGet();
+			if (seq != 0 && !mmOutbound.accept(seq)) {
+				// Already read before a reconnect
+				return;
+			}
+			switch (type) {
+			case FrameCodec.FRAME_ACK:
+				if (length >= 4) mmOutbound.onAck(FrameCodec.readInt(buffer, offset));
+				break;
+			case FrameCodec.FRAME_PING:
+				// Answered from here, so the pong's timestamps leave out the lane
+				if (length >= FrameCodec.PING_SIZE) mmOutbound.pong(FrameCodec.readLong(buffer, offset), ChatMetrics.now());
+				break;
+			case FrameCodec.FRAME_PONG:
+				if (length >= FrameCodec.PONG_SIZE) {
+					mmMetrics.onPong(FrameCodec.readLong(buffer, offset), FrameCodec.readLong(buffer, offset + 8),
+							FrameCodec.readLong(buffer, offset + 16), ChatMetrics.now());
+				}
+				break;
+			case FrameCodec.FRAME_HEARTBEAT:
+				// Reading it was all it was for
+				break;
+			case FrameCodec.FRAME_LINK_HELLO:
+				if (length < FrameCodec.HELLO_SIZE) {
+					throw new IOException("Malformed link hello");
+				}
+				mmOutbound.onHello(FrameCodec.readLong(buffer, offset), FrameCodec.readLong(buffer, offset + 8),
+						FrameCodec.readInt(buffer, offset + 16), FrameCodec.readInt(buffer, offset + 20));
+				if (!mmHelloSeen) {
+					// The link is up both ways
+					mmHelloSeen = true;
+					long micros = (System.nanoTime() - mmStartedAt) / 1000;
+					(mmOutgoing ? mMetrics.connectLatency : mMetrics.acceptLatency).record(micros);
+				}
+				break;
+			default:
+				// The payload is only valid during this call
+				byte[] payload = mBuffers.acquire(length);
+				System.arraycopy(buffer, offset, payload, 0, length);
+				FrameTask task;
+				synchronized (mmFreeTasks) {
+					task = mmFreeTasks.pollFirst();
+				}
+				if (task == null) task = new FrameTask();
+				task.type = type;
+				task.seq = seq;
+				task.payload = payload;
+				task.length = length;
+				mmLane.execute(task);
+			}
+		}
+
+		/**
+		 * A frame waiting on the connection's lane to be handled. Its
+		 * payload goes back to the pool, and the task to the connection,
+		 * once it has been; handleFrame() keeps nothing of the payload.
+		 */
+		private class FrameTask implements Runnable {
+			int type;
+			int seq;
+			byte[] payload;
+			int length;
+
+			public void run() {
+				try {
+					handleFrame(type, payload, 0, length);
+				} catch (IOException e) {
+					Log.e(TAG, "Bad frame from " + mmAddress, e);
+					cancel();
+				} finally {
+					// Done with even if it threw, the lane logs that and goes on
+					if (seq != 0) mmOutbound.processed(seq);
+					mBuffers.release(payload);
+					payload = null;
+					synchronized (mmFreeTasks) {
+						mmFreeTasks.addLast(this);
 					}
+				}
+			}
+		}
 
+		/**
+		 * Handle a frame, on the connection's lane.
+		 */
+		private void handleFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+			if ((type & FrameCodec.FLAG_COMPRESSED) != 0) {
+				length = mmCompressor.inflate(buffer, offset, length);
+				buffer = mmCompressor.input();
+				offset = 0;
+				type &= ~FrameCodec.FLAG_COMPRESSED;
+			}
+			switch (type) {
+			case FrameCodec.FRAME_MESSAGE:
+			{
+				MessageView m = mmView;
+				if (m.wrap(buffer, offset, length) && m.isText()) {
+					if (!isServer && m.getSentAt() != 0 && mmMetrics.hasClock()) {
+						// Straight from its sender
+						mMetrics.endToEndLatency.record(ChatMetrics.now() - mmMetrics.toLocal(m.getSentAt()));
+					}
+					// Send the obtained message to the UI Activity, which decodes its text
+					mListener.onMessageRead(m.copy());
 
-					if (fileMode){
-						file.append(buffer, 0, bytes);
-						fileSize += bytes;
-						if (fileSize >= totalSize) {
-							fileMode = false;
-							File savedFile = new File (Environment.getExternalStorageDirectory().getPath()+"/"+ ( (!fileName.isEmpty()) ? fileName : "tmp.txt"));
-							FileOutputStream fos = new FileOutputStream(savedFile);
-				            fos.write(file.toByteArray());
-				            fos.close();
-				            
-				    		Date d = new Date();
-							String date = BluetoothChat.pad(d.getHours()) + ":"+ BluetoothChat.pad(d.getMinutes())+ ":"+ BluetoothChat.pad(d.getSeconds());
-				            
-				            BluetoothMessage bm = new BluetoothMessage(fileAuthor, date, "file "+fileName+" sent");
-				            
-				            mHandler.obtainMessage(BluetoothChat.MESSAGE_READ, bytes, -1, bm).sendToTarget();
-				            
-				            Uri uri = Uri.fromFile(savedFile);
-				            if (bluetoothClients.size()>1){
-								for (int i = 0; i < bluetoothClients.size(); i++){
-									if (!bluetoothClients.get(i).deviceAdress.equals(mmSocket.getRemoteDevice().getAddress())){
-										bluetoothClients.get(i).connectedThread.writeFile(uri);
-									}
-								}
-							}
-				        }
-					}else{
-						String str = new String(buffer, 0, bytes);
-
-						if (bluetoothClients.size()>1){
-							for (int i = 0; i < bluetoothClients.size(); i++){
-								if (!bluetoothClients.get(i).deviceAdress.equals(mmSocket.getRemoteDevice().getAddress())){
-									bluetoothClients.get(i).connectedThread.write(str.getBytes());
-								}
-							}
-						}
+					if (isServer) {
+						// The hub keeps the history, so chat goes out with its sequence number
+						publish(buffer, offset, length, m.getSentAt(), this);
+						break;
+					}
+				}
 
+				if (bluetoothClients.size()>1){
+					// Forward the frame as received: one copy out of the read
+					// buffer, then the same bytes are queued to every other peer
+					byte[] payload = mBuffers.acquire(length);
+					System.arraycopy(buffer, offset, payload, 0, length);
+					OutboundFrame frame = new OutboundFrame(FrameCodec.FRAME_MESSAGE, OutboundFrame.CHAT_STREAM,
+							payload, 0, length, mBuffers);
+					broadcast(frame, this);
+					frame.release();
+				}
+				break;
+			}
+			case FrameCodec.FRAME_SEQ_MESSAGE:
+			{
+				if (length < 8) {
+					Log.w(TAG, "Malformed message");
+					break;
+				}
+				long historySeq = FrameCodec.readLong(buffer, offset);
+				if (!isNextInHistory(historySeq)) break;
+				MessageView m = mmView;
+				boolean valid = m.wrap(buffer, offset + 8, length - 8);
+				if (valid && m.getRelayedAt() != 0 && mmMetrics.hasClock()) {
+					long downlink = Math.max(0, ChatMetrics.now() - mmMetrics.toLocal(m.getRelayedAt()));
+					mMetrics.lastHopLatency.record(downlink);
+					if (m.getUplink() >= 0) mMetrics.endToEndLatency.record(m.getUplink() + downlink);
+				}
+				if (valid && m.isText()) {
+					mListener.onMessageRead(m.copy());
+				}
+				if (historySeq > mLastSeq) mLastSeq = historySeq;
+				break;
+			}
+			case FrameCodec.FRAME_SEQ_ECHO:
+			{
+				if (length < 8) {
+					Log.w(TAG, "Malformed sequence number");
+					break;
+				}
+				// A message of ours, shown when it was sent
+				long historySeq = FrameCodec.readLong(buffer, offset);
+				if (historySeq != 0 && isNextInHistory(historySeq)) mLastSeq = historySeq;
+				break;
+			}
+			case FrameCodec.FRAME_HISTORY:
+				mmResyncing = false;
+				receiveHistory(buffer, offset, length);
+				break;
+			case FrameCodec.FRAME_SYNC_REQUEST:
+				if (!isServer || length < 8) {
+					Log.w(TAG, "Unexpected history request");
+					break;
+				}
+				sendHistory((length >= 16) ? FrameCodec.readLong(buffer, offset + 8) : 0, FrameCodec.readLong(buffer, offset));
+				break;
+			case FrameCodec.FRAME_FILE_START:
+			{
+				MessageView m = (length >= 8 && mmView.wrap(buffer, offset + 8, length - 8)) ? mmView : null;
+				if (m == null) {
+					Log.w(TAG, "Malformed file header");
+					break;
+				}
+				long id = FrameCodec.readLong(buffer, offset);
+				if (incoming(id) != null) {
+					// Sent again to resume it
+					break;
+				}
+				long size;
+				try {
+					// The size is sent as the header's date
+					size = Long.parseLong(m.getDate());
+				} catch (NumberFormatException e) {
+					Log.w(TAG, "Malformed file size " + m.getDate());
+					break;
+				}
+				// The header is forwarded as it came; its fields are only
+				// decoded to save the file here
+				if (isServer && bluetoothClients.size() > 1) {
+					relayStart(id, m.getAuthor(), this, buffer, offset, length);
+				}
+				try {
+					FileReceiver f = FileReceiver.create(mStorage.getDownloadDir(), mTransferDir,
+							id, m.getAuthor(), m.getText(), size);
+					synchronized (mIncoming) {
+						mIncoming.put(id, f);
 					}
 				} catch (IOException e) {
-					Log.e(TAG, "disconnected", e);
-					connectionLost();
+					// Drop the transfer but keep the connection, the data frames are skipped
+					Log.e(TAG, "Unable to save file " + m.getText(), e);
+				}
+				break;
+			}
+			case FrameCodec.FRAME_FILE_DATA:
+			{
+				if (length < 16) {
+					Log.w(TAG, "Malformed file chunk");
 					break;
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
 				}
+				long id = FrameCodec.readLong(buffer, offset);
+				FileReceiver f = incoming(id);
+				boolean intact = true;
+				if (f != null) {
+					try {
+						// A damaged or misplaced chunk is left out, the transfer goes
+						// on and what it lacks is reported missing at the end; only
+						// failing to write to disk ends it
+						intact = f.writeChunk(FrameCodec.readInt(buffer, offset + 8), FrameCodec.readInt(buffer, offset + 12),
+								buffer, offset + 16, length - 16);
+					} catch (IOException e) {
+						Log.e(TAG, "Unable to write file " + f.getName(), e);
+						f.abort();
+						forgetIncoming(id);
+						intact = false;
+					}
+				}
+				if (intact) relay(id, FrameCodec.FRAME_FILE_DATA, buffer, offset, length);
+				break;
+			}
+			case FrameCodec.FRAME_FILE_END:
+				if (length < 12) {
+					Log.w(TAG, "Malformed file end");
+					break;
+				}
+				fileEnded(FrameCodec.readLong(buffer, offset), FrameCodec.readInt(buffer, offset + 8), buffer, offset, length);
+				break;
+			case FrameCodec.FRAME_FILE_QUERY:
+			{
+				if (length < 8) break;
+				long id = FrameCodec.readLong(buffer, offset);
+				FileReceiver f = incoming(id);
+				if (f == null) {
+					sendMissing(id, new int[] {0, FileReceiver.TO_END});
+				} else if (f.isDone()) {
+					sendTransferFrame(FrameCodec.FRAME_FILE_DONE, id);
+				} else {
+					sendMissing(id, f.getMissing());
+				}
+				break;
+			}
+			case FrameCodec.FRAME_FILE_MISSING:
+			{
+				if (length < 8) break;
+				int[] ranges = new int[(length - 8) / 8 * 2];
+				for (int i = 0; i < ranges.length; i++) {
+					ranges[i] = FrameCodec.readInt(buffer, offset + 8 + i * 4);
+				}
+				resendFile(FrameCodec.readLong(buffer, offset), ranges, mmAddress);
+				break;
+			}
+			case FrameCodec.FRAME_FILE_DONE:
+				if (length >= 8) transferDone(FrameCodec.readLong(buffer, offset), mmAddress);
+				break;
+			default:
+				Log.w(TAG, "Unknown frame type " + type);
 			}
 		}
 
 		/**
-		 * Write to the connected OutStream.
-		 * @param buffer  The bytes to write
+		 * The sender says it has sent every chunk. Save the file if they all
+		 * arrived intact, otherwise tell the sender which ones to send again.
+		 * The end of a relayed file is only forwarded once the hub's copy is
+		 * complete, so it can send the other peers what they missed; if the
+		 * copy could not be saved, the whole file is asked for again.
 		 */
-		public void write(byte[] buffer) {
-			try {
-				mmOutStream.write(buffer);
-				mmOutStream.flush();	
-				// Share the sent message back to the UI Activity
+		private void fileEnded(long id, int chunkCount, byte[] buffer, int offset, int length) {
+			FileReceiver f = incoming(id);
+			if (f == null) {
+				// Its header could not be saved, or writing it failed
+				Log.w(TAG, "End of unknown file " + Long.toHexString(id));
+				if (relayFailed(id)) {
+					sendMissing(id, new int[] {0, FileReceiver.TO_END});
+				} else {
+					sendTransferFrame(FrameCodec.FRAME_FILE_DONE, id);
+				}
+				return;
+			}
+			if (f.isDone()) {
+				sendTransferFrame(FrameCodec.FRAME_FILE_DONE, id);
+				return;
+			}
 
+			File savedFile;
+			try {
+				f.setChunkCount(chunkCount);
+				if (!f.isComplete()) {
+					sendMissing(id, f.getMissing());
+					return;
+				}
+				savedFile = f.finish();
 			} catch (IOException e) {
-				Log.e(TAG, "Exception during write", e);
+				Log.e(TAG, "Unable to save received file", e);
+				f.abort();
+				forgetIncoming(id);
+				if (relayFailed(id)) {
+					sendMissing(id, new int[] {0, FileReceiver.TO_END});
+				} else {
+					sendTransferFrame(FrameCodec.FRAME_FILE_DONE, id);
+				}
+				return;
 			}
+			forgetIncoming(id);
+			mMetrics.fileReceived(f.getReceivedThisRun(), System.nanoTime() - f.getStartedAt());
+			sendTransferFrame(FrameCodec.FRAME_FILE_DONE, id);
+			relaySaved(id, savedFile);
+			relay(id, FrameCodec.FRAME_FILE_END, buffer, offset, length);
+
+			String date = BluetoothMessage.now();
+
+			byte[] bm = new BluetoothMessage(f.getAuthor(), date, "file "+savedFile.getName()+" sent").getBytes();
+
+			mListener.onMessageRead(MessageView.of(bm, 0, bm.length));
 		}
 
-		
-		
-		public void writeFile(Uri uri) throws IOException, InterruptedException {
-			File f = new File(uri.toString());
-			
-			String fileName = f.getName();
-			InputStream inputStream = bc.getContentResolver().openInputStream(uri);
-			
-			long fileSize = inputStream.available();
-			
-			BluetoothMessage m = new BluetoothMessage(BluetoothAdapter.getDefaultAdapter().getName(), String.valueOf(fileSize), fileName, BluetoothMessage.TYPE_FILE_START);
-			write(m.getJSONStr());
-			
-			sleep(100);
-			
-			ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();			
+		/**
+		 * Queue a file control frame whose payload is just the transfer id.
+		 */
+		void sendTransferFrame(int type, long id) {
+			byte[] payload = new byte[8];
+			FrameCodec.writeLong(payload, 0, id);
+			send(new OutboundFrame(type, payload));
+		}
 
-			int buffersize = 1024;
-			byte[] buffer = new byte[buffersize];
+		private void sendMissing(long id, int[] ranges) {
+			// Ranges beyond what fits in a frame are asked for next time
+			int count = Math.min(ranges.length / 2, (FrameCodec.MAX_PAYLOAD - 8) / 8);
+			byte[] payload = new byte[8 + count * 8];
+			FrameCodec.writeLong(payload, 0, id);
+			for (int i = 0; i < count * 2; i++) {
+				FrameCodec.writeInt(payload, 8 + i * 4, ranges[i]);
+			}
+			send(new OutboundFrame(FrameCodec.FRAME_FILE_MISSING, payload));
+		}
 
-			int len = 0;
-			while((len = inputStream.read(buffer)) != -1){
-				byteBuffer.write(buffer, 0, len);
+		/**
+		 * Queue a frame for this peer, applying the slow consumer policy if
+		 * its queue is full. Never waits, see OutboundQueue.offerNow(), as
+		 * it is called from the worker pool and under the history lock.
+		 */
+		public void send(OutboundFrame frame) {
+			if (!mmOutbound.offerNow(frame)) {
+				Log.w(TAG, "Send queue full, disconnecting " + mmAddress);
+				cancel();
 			}
+		}
+
+		/**
+		 * Client side: ask the hub for the history after lastSeq.
+		 * @param journal  The id of the hub's journal lastSeq is from, 0 for none
+		 * @param lastSeq  The newest entry already shown, 0 for none
+		 */
+		public void requestHistory(long journal, long lastSeq) {
+			byte[] payload = new byte[16];
+			FrameCodec.writeLong(payload, 0, lastSeq);
+			FrameCodec.writeLong(payload, 8, journal);
+			send(new OutboundFrame(FrameCodec.FRAME_SYNC_REQUEST, payload));
+		}
 
-			Log.d(TAG, "sending data to connected thread");
-			write(byteBuffer.toByteArray());
+		/**
+		 * Hub side: answer a history request. The peer gets the entries after
+		 * lastSeq, or the last HISTORY_REPLAY if it has none of the journal
+		 * still kept, or its lastSeq is from another journal, one wiped
+		 * since; live messages are held back from it until it has them.
+		 * @param journal  The id of the journal lastSeq is from
+		 * @see HistorySync
+		 */
+		private void sendHistory(long journal, long lastSeq) {
+			synchronized (mHistoryLock) {
+				mmSynced = false;
+			}
+			long from = 0;
+			if (mJournal != null) {
+				long next = mJournal.getNextSeq();
+				if (journal != mJournal.getId()) lastSeq = 0;
+				from = (lastSeq > 0 && lastSeq < next) ? lastSeq + 1 : next - HISTORY_REPLAY;
+				from = Math.max(from, mJournal.getFirstSeq());
+			}
+			new HistorySync(++mmSyncRequest, from).run();
 		}
 
-		public void sendLogs(){
-			for (int i = 0; i < messages.size(); i++){
-				write(messages.get(i).getJSONStr());
+		/**
+		 * Hub side: queues the history a peer asked for, on the connection's
+		 * lane, packed into as few FRAME_HISTORY frames as fit. History must
+		 * not be dropped, and the lane must not wait for the peer, so frames
+		 * are queued only while there is room; when the queue is full the
+		 * sync goes on once the writer has made some. Once it has caught up
+		 * with the journal, the last frame, empty if there is nothing left,
+		 * is queued under the history lock and the peer is marked synced,
+		 * after which it receives live messages in order.
+		 */
+		private class HistorySync implements Runnable {
+			// The request this answers
+			final int request;
+			// The next entry to queue, and the frame being filled
+			long next;
+			byte[] frame;
+			int used;
+
+			private final Runnable resume = new Runnable() {
+				public void run() {
+					mmLane.execute(HistorySync.this);
+				}
+			};
+
+			HistorySync(int request, long from) {
+				this.request = request;
+				next = from;
+			}
+
+			public void run() {
+				if (request != mmSyncRequest || !mmOutbound.isAttached(mmGeneration)) return;
 				try {
-					sleep(100);
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					while (mJournal != null) {
+						long end = mJournal.getNextSeq();
+						if (next >= end) {
+							synchronized (mHistoryLock) {
+								// Nothing is published while the lock is held
+								if (next >= mJournal.getNextSeq()) {
+									finish();
+									return;
+								}
+							}
+							continue;
+						}
+						ArrayList<MessageJournal.Entry> batch = mJournal.read(next, (int) Math.min(HISTORY_BATCH, end - next));
+						if (batch.isEmpty()) {
+							next = end;
+							continue;
+						}
+						for (int i = 0; i < batch.size(); i++) {
+							MessageJournal.Entry e = batch.get(i);
+							int size = 8 + 4 + e.payload.length;
+							if (8 + size > FrameCodec.MAX_PAYLOAD) {
+								Log.w(TAG, "History entry " + e.seq + " too large, skipped");
+								continue;
+							}
+							if (frame != null && used + size > FrameCodec.MAX_PAYLOAD) {
+								if (!mmOutbound.tryPut(new OutboundFrame(FrameCodec.FRAME_HISTORY, frame, 0, used))) {
+									// Go on from this entry once there is room
+									next = e.seq;
+									mmOutbound.whenRoom(mmGeneration, resume);
+									return;
+								}
+								frame = null;
+							}
+							if (frame == null) frame = newFrame(FrameCodec.MAX_PAYLOAD);
+							FrameCodec.writeLong(frame, used, e.seq);
+							FrameCodec.writeInt(frame, used + 8, e.payload.length);
+							System.arraycopy(e.payload, 0, frame, used + 12, e.payload.length);
+							used += size;
+						}
+						next = batch.get(batch.size() - 1).seq + 1;
+					}
+				} catch (IOException e) {
+					// The peer finds the gap and asks again
+					Log.e(TAG, "Unable to read history", e);
+				}
+				synchronized (mHistoryLock) {
+					finish();
+				}
+			}
+
+			/**
+			 * Queue the last frame and let live messages through; called
+			 * holding the history lock.
+			 */
+			private void finish() {
+				if (frame == null) frame = newFrame(8);
+				send(new OutboundFrame(FrameCodec.FRAME_HISTORY, frame, 0, used));
+				mmSynced = true;
+			}
+
+			/**
+			 * @return A frame that starts with the journal's id
+			 */
+			private byte[] newFrame(int size) {
+				byte[] f = new byte[size];
+				FrameCodec.writeLong(f, 0, (mJournal != null) ? mJournal.getId() : 0);
+				used = 8;
+				return f;
+			}
+		}
+
+		/**
+		 * Client side: whether the message numbered historySeq, 0 if it has
+		 * none, comes next after what was shown. One shown already, with
+		 * the history, does not. After a gap, the hub dropped messages for
+		 * us while our queue was full; they are in its history, which is
+		 * asked for once, and what comes until it arrives is part of it.
+		 */
+		private boolean isNextInHistory(long historySeq) {
+			if (historySeq == 0) return true;
+			if (historySeq <= mLastSeq) return false;
+			if (historySeq != mLastSeq + 1) {
+				if (!mmResyncing) {
+					mmResyncing = true;
+					mMetrics.resyncs.incrementAndGet();
+					requestHistory(mHubJournal, mLastSeq);
+				}
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Client side: show the entries of a FRAME_HISTORY frame that are
+		 * newer than what was already shown. History from another journal
+		 * than before, the hub's was wiped, is all new.
+		 */
+		private void receiveHistory(byte[] buffer, int offset, int length) {
+			if (length < 8) {
+				Log.w(TAG, "Malformed history frame");
+				return;
+			}
+			long journal = FrameCodec.readLong(buffer, offset);
+			if (journal != mHubJournal) {
+				mHubJournal = journal;
+				mLastSeq = 0;
+			}
+			int end = offset + length;
+			offset += 8;
+			while (end - offset >= 12) {
+				long seq = FrameCodec.readLong(buffer, offset);
+				int size = FrameCodec.readInt(buffer, offset + 8);
+				offset += 12;
+				if (size < 0 || size > end - offset) break;
+				if (seq > mLastSeq) {
+					if (mmView.wrap(buffer, offset, size) && mmView.isText()) {
+						mListener.onMessageRead(mmView.copy());
+					}
+					mLastSeq = seq;
 				}
+				offset += size;
+			}
+			if (offset != end) {
+				Log.w(TAG, "Malformed history frame");
 			}
 		}
 
+		/**
+		 * Called by the HeartbeatThread: send a heartbeat if nothing was
+		 * written for an interval, evict the peer if nothing was read for
+		 * too many. Only once both sides have agreed on heartbeats.
+		 * @param now  System.nanoTime()
+		 */
+		void checkHeartbeat(long now) {
+			if ((mmOutbound.getCapabilities() & FrameCodec.CAP_HEARTBEAT) == 0) return;
+			if (now - mmLastRead > mmHeartbeatNanos * mmHeartbeatMisses) {
+				evict();
+				return;
+			}
+			if (now - mmLastWrite >= mmHeartbeatNanos) {
+				mmOutbound.heartbeat();
+			}
+		}
+
+		/**
+		 * Drop a peer that went silent: it is out of the fan-out at once, its
+		 * threads end as the socket is closed and queued file data is let go;
+		 * chat not yet acknowledged is kept for when it comes back.
+		 */
+		private void evict() {
+			Log.w(TAG, "No heartbeat from " + mmAddress + ", evicting");
+			mMetrics.evictions.incrementAndGet();
+			cancel();
+			mmOutbound.dropStreams();
+			connectionLost(mmAddress, this);
+		}
+
 		public void cancel() {
+			mmOutbound.detach(mmGeneration);
+			mmFlow.close();
 			try {
 				mmSocket.close();
 			} catch (IOException e) {
 				Log.e(TAG, "close() of connect socket failed", e);
 			}
 		}
+
+		/**
+		 * Drains the outbound queue into the socket through a FrameWriter.
+		 * Frames are collected in a buffer and flushed once there is nothing
+		 * more to write right now, because the queue ran empty or the send
+		 * window is full, so a burst of small messages goes out in few writes.
+		 */
+		private class WriterThread extends Thread {
+			public void run() {
+				setName("WriterThread");
+				OutputStream out = new BufferedOutputStream(mmOutStream, FrameCodec.HEADER_SIZE + OutgoingFile.CHUNK_SIZE);
+				FrameWriter writer = new FrameWriter(out, mmOutbound, mmCompressor, mEgress, mmFlow, mmMetrics);
+				try {
+					OutboundFrame frame;
+					while ((frame = mmOutbound.take(mmGeneration)) != null) {
+						if (!writer.write(frame)) break;
+						mmLastWrite = System.nanoTime();
+						if (!mmOutbound.isReady()) {
+							out.flush();
+						}
+					}
+				} catch (IOException e) {
+					Log.e(TAG, "Exception during write", e);
+					ConnectedThread.this.cancel();
+				} catch (InterruptedException e) {
+					Log.w(TAG, "WriterThread interrupted");
+				} finally {
+					mmMetrics.retire(mmCompressor);
+					mmCompressor.endCompress();
+				}
+			}
+		}
 	}
 }
@@ -2,16 +2,16 @@ package com.example.android.BluetoothChat;
 
 import com.example.android.BluetoothChat.BluetoothChatService.ConnectedThread;
 
-import android.bluetooth.BluetoothSocket;
-
 public class BluetoothClient {
 	public String deviceName;
 	public String deviceAdress;
 	public ConnectedThread connectedThread;
+	public OutboundQueue outbound;
 	
-	public BluetoothClient (BluetoothSocket bluetoothSocket, ConnectedThread connectedThread){
-		deviceName = bluetoothSocket.getRemoteDevice().getName();
-		deviceAdress = bluetoothSocket.getRemoteDevice().getAddress();
+	public BluetoothClient (Transport.Connection connection, ConnectedThread connectedThread){
+		deviceName = connection.getRemoteName();
+		deviceAdress = connection.getRemoteAddress();
 		this.connectedThread = connectedThread;
+		this.outbound = connectedThread.getOutbound();
 	}
 }
@@ -1,5 +1,9 @@
 package com.example.android.BluetoothChat;
 
+import java.util.Calendar;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.json.JSONObject;
 
 public class BluetoothMessage {
@@ -13,6 +17,15 @@ public class BluetoothMessage {
 	public String date;
 	public String text;
 	public int type;
+	// Tracing, 0 if not known: the sender's message id, its clock when
+	// sent, the hub's when relayed and the time between the two, see MessageCodec
+	public long id;
+	public long sentAt;
+	public long relayedAt;
+	public long uplink;
+
+	// Ids start at a random point, so those of different devices do not meet
+	private static final AtomicLong sNextId = new AtomicLong(new Random().nextLong());
 
 	public BluetoothMessage(String author, String date, String text){
 		this.author = author;
@@ -40,8 +53,64 @@ public class BluetoothMessage {
 		}
 	}
 
+	/**
+	 * @return The local time now, as a message's date: HH:mm:ss
+	 */
+	static String now() {
+		Calendar c = Calendar.getInstance();
+		return pad(c.get(Calendar.HOUR_OF_DAY)) + ":" + pad(c.get(Calendar.MINUTE)) + ":" + pad(c.get(Calendar.SECOND));
+	}
+
+	/**
+	 * @return Two digits of a message's time
+	 */
+	private static String pad(int c) {
+		if (c >= 10)
+			return String.valueOf(c);
+		else
+			return "0" + String.valueOf(c);
+	}
+
+	/**
+	 * Give the message a new id and the time it is sent.
+	 * @return This message
+	 */
+	public BluetoothMessage stamp() {
+		long next;
+		do {
+			next = sNextId.incrementAndGet();
+		} while (next == 0);
+		id = next;
+		sentAt = ChatMetrics.now();
+		return this;
+	}
+
+	private static final ThreadLocal<MessageCodec> sCodec = new ThreadLocal<MessageCodec>() {
+		@Override
+		protected MessageCodec initialValue() {
+			return new MessageCodec();
+		}
+	};
 
+	/**
+	 * Decode a message sent by a peer, in the binary or the JSON encoding.
+	 * @return The message, or null if the bytes are not a message
+	 */
+	public static BluetoothMessage fromBytes(byte[] buffer, int offset, int length){
+		return MessageCodec.decode(buffer, offset, length);
+	}
+
+	/**
+	 * @return The message in the binary wire encoding
+	 * @see MessageCodec
+	 */
+	public byte[] getBytes(){
+		return sCodec.get().toBytes(this);
+	}
 
+	/**
+	 * @return The message in the JSON encoding used by older peers
+	 */
 	public byte[] getJSONStr(){
 		JSONObject jobj = new JSONObject();
 		try{
@@ -0,0 +1,133 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * Byte arrays for frame payloads, reused instead of allocated for every
+ * frame read or relayed, one pool shared by all connections. Arrays come
+ * in powers of two from MIN_LENGTH to the largest frame payload; each size
+ * keeps a limited number of free arrays, about POOLED_BYTES worth, and
+ * anything beyond that, or larger, is left to the garbage collector.
+ *
+ * An array acquired may be longer than asked for. It must not be used
+ * once released; one that is never released is simply collected.
+ * All methods may be called from any thread.
+ */
+public class BufferPool {
+	// The smallest array handed out, 2^MIN_SHIFT bytes
+	private static final int MIN_SHIFT = 6;
+	public static final int MIN_LENGTH = 1 << MIN_SHIFT;
+	// What each size may keep free, and the bounds on the count of arrays
+	private static final int POOLED_BYTES = 128 * 1024;
+	private static final int MIN_FREE = 4;
+	private static final int MAX_FREE = 256;
+
+	private final int mMaxShift;
+	// Free arrays of each size, a stack guarded by itself, with its statistics
+	private final byte[][][] mFree;
+	private final int[] mCount;
+	private final long[] mHits;
+	private final long[] mMisses;
+
+	/**
+	 * @param maxLength  Longest array pooled, rounded up to a power of two
+	 */
+	public BufferPool(int maxLength) {
+		mMaxShift = shift(Math.max(maxLength, MIN_LENGTH));
+		mFree = new byte[mMaxShift - MIN_SHIFT + 1][][];
+		mCount = new int[mFree.length];
+		mHits = new long[mFree.length];
+		mMisses = new long[mFree.length];
+		for (int i = 0; i < mFree.length; i++) {
+			int free = (POOLED_BYTES >> (i + MIN_SHIFT));
+			mFree[i] = new byte[Math.min(MAX_FREE, Math.max(MIN_FREE, free))][];
+		}
+	}
+
+	/**
+	 * @return The exponent of the smallest power of two at least length
+	 */
+	private static int shift(int length) {
+		return 32 - Integer.numberOfLeadingZeros(length - 1);
+	}
+
+	/**
+	 * @return An array at least length long, with any content
+	 */
+	public byte[] acquire(int length) {
+		int shift = shift(Math.max(length, MIN_LENGTH));
+		if (shift > mMaxShift) {
+			return new byte[length];
+		}
+		int size = shift - MIN_SHIFT;
+		byte[][] free = mFree[size];
+		byte[] buffer = null;
+		synchronized (free) {
+			if (mCount[size] > 0) {
+				buffer = free[--mCount[size]];
+				free[mCount[size]] = null;
+				mHits[size]++;
+			} else {
+				mMisses[size]++;
+			}
+		}
+		return (buffer != null) ? buffer : new byte[1 << shift];
+	}
+
+	/**
+	 * Give an array back for reuse. Arrays of a length this pool does not
+	 * hand out are ignored.
+	 */
+	public void release(byte[] buffer) {
+		int length = buffer.length;
+		if (length < MIN_LENGTH || (length & (length - 1)) != 0) return;
+		int shift = shift(length);
+		if (shift > mMaxShift) return;
+		int size = shift - MIN_SHIFT;
+		byte[][] free = mFree[size];
+		synchronized (free) {
+			if (mCount[size] < free.length) {
+				free[mCount[size]++] = buffer;
+			}
+		}
+	}
+
+	/**
+	 * @return Arrays handed out that were reused
+	 */
+	public long getHits() {
+		return sum(mHits);
+	}
+
+	/**
+	 * @return Arrays handed out that had to be allocated
+	 */
+	public long getMisses() {
+		return sum(mMisses);
+	}
+
+	/**
+	 * @return Free arrays held, of all sizes
+	 */
+	public long getFree() {
+		return sum(mCount);
+	}
+
+	private long sum(long[] counts) {
+		long sum = 0;
+		for (int i = 0; i < mFree.length; i++) {
+			synchronized (mFree[i]) {
+				sum += counts[i];
+			}
+		}
+		return sum;
+	}
+
+	private long sum(int[] counts) {
+		long sum = 0;
+		for (int i = 0; i < mFree.length; i++) {
+			synchronized (mFree[i]) {
+				sum += counts[i];
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,36 @@
+package com.example.android.BluetoothChat;
+
+/**
+ * What BluetoothChatService reports to the UI. The calls come from the
+ * service's threads; an Activity hands them on to its own.
+ */
+public interface ChatListener {
+	/**
+	 * @param state  One of the BluetoothChatService.STATE_ constants
+	 */
+	void onStateChange(int state);
+
+	/**
+	 * A device connected.
+	 * @param name  The name it is known by
+	 */
+	void onDeviceName(String name);
+
+	/**
+	 * A message was received, or a file was, in which case the message
+	 * says so.
+	 * @param message  A copy the listener may keep
+	 */
+	void onMessageRead(MessageView message);
+
+	/**
+	 * A message typed here was sent.
+	 * @param message  Its bytes, as BluetoothMessage.getBytes() gives them
+	 */
+	void onMessageWritten(byte[] message);
+
+	/**
+	 * Something to tell the user in passing.
+	 */
+	void onToast(String text);
+}
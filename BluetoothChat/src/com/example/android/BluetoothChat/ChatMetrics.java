@@ -0,0 +1,312 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the chat service has been doing: traffic per peer, how long links
+ * take to come up, how fast files go and how often peers come back.
+ *
+ * Counters are updated on the read and write paths, so they are plain
+ * atomics held by the connection and never looked up per frame; queue
+ * depths are read only when a snapshot is taken. Per-peer figures are kept
+ * by address across reconnects, like the peer's link.
+ *
+ * Chat messages are timed hop by hop: the sender stamps each with its
+ * monotonic clock, the hub measures the first hop and adds its own stamp
+ * when it relays, and receivers measure the last hop. Clocks of different
+ * devices are compared through each peer's clock offset, estimated from
+ * ping and pong exchanges the NTP way.
+ */
+public class ChatMetrics {
+	/**
+	 * The traffic of one peer, over all its connections.
+	 */
+	public static class Peer {
+		public final String address;
+		public final AtomicLong bytesIn = new AtomicLong();
+		public final AtomicLong bytesOut = new AtomicLong();
+		public final AtomicLong framesIn = new AtomicLong();
+		public final AtomicLong framesOut = new AtomicLong();
+		public final AtomicLong connections = new AtomicLong();
+		// Round trip times measured by pings, in microseconds
+		public final Histogram rtt = new Histogram();
+		// The peer's send queue, read for its depth
+		volatile OutboundQueue link;
+		// The compressor of the connection's writer, and what those of
+		// earlier connections saved
+		volatile FrameCompressor compressor;
+		private final AtomicLong mBytesSaved = new AtomicLong();
+		private final AtomicLong mFramesCompressed = new AtomicLong();
+		private final AtomicLong mFramesSkipped = new AtomicLong();
+
+		// The peer's clock less ours, from the sample with the shortest round
+		// trip of the last CLOCK_SAMPLES, which has the least queuing in it
+		private volatile long mClockOffset;
+		private volatile boolean mClockKnown;
+		private final long[] mSampleRtt = new long[CLOCK_SAMPLES];
+		private final long[] mSampleOffset = new long[CLOCK_SAMPLES];
+		private int mSamples;
+
+		Peer(String address) {
+			this.address = address;
+		}
+
+		/**
+		 * A pong came back.
+		 * @param sent  Our clock when the ping was sent
+		 * @param peerReceived  The peer's when it read the ping
+		 * @param peerSent  The peer's when it sent the pong
+		 * @param received  Ours when the pong was read
+		 */
+		public void onPong(long sent, long peerReceived, long peerSent, long received) {
+			long roundTrip = (received - sent) - (peerSent - peerReceived);
+			if (roundTrip < 0) return;
+			rtt.record(roundTrip);
+			long offset = ((peerReceived - sent) + (peerSent - received)) / 2;
+			synchronized (this) {
+				int slot = mSamples++ % CLOCK_SAMPLES;
+				mSampleRtt[slot] = roundTrip;
+				mSampleOffset[slot] = offset;
+				int best = 0;
+				int n = Math.min(mSamples, CLOCK_SAMPLES);
+				for (int i = 1; i < n; i++) {
+					if (mSampleRtt[i] < mSampleRtt[best]) best = i;
+				}
+				mClockOffset = mSampleOffset[best];
+				mClockKnown = true;
+			}
+		}
+
+		/**
+		 * @return true once a pong has come back
+		 */
+		public boolean hasClock() {
+			return mClockKnown;
+		}
+
+		/**
+		 * @return The peer's clock less ours, in microseconds
+		 */
+		public long getClockOffset() {
+			return mClockOffset;
+		}
+
+		/**
+		 * @return A time of the peer's clock as a time of ours
+		 */
+		public long toLocal(long peerTime) {
+			return peerTime - mClockOffset;
+		}
+
+		/**
+		 * @return Frames waiting to be sent to the peer, 0 if it never connected
+		 */
+		public int getQueued() {
+			OutboundQueue l = link;
+			return (l == null) ? 0 : l.size();
+		}
+
+		/**
+		 * @return Frames sent and not acknowledged yet
+		 */
+		public int getInFlight() {
+			OutboundQueue l = link;
+			return (l == null) ? 0 : l.inFlight();
+		}
+
+		/**
+		 * A connection's writer is done with its compressor; its figures
+		 * are kept with the peer's.
+		 */
+		public void retire(FrameCompressor c) {
+			// Undercounted rather than counted twice while this runs
+			if (compressor == c) compressor = null;
+			mBytesSaved.addAndGet(c.getBytesSaved());
+			mFramesCompressed.addAndGet(c.getFramesCompressed());
+			mFramesSkipped.addAndGet(c.getFramesSkipped());
+		}
+
+		/**
+		 * @return Bytes compression kept off the link to the peer
+		 */
+		public long getBytesSaved() {
+			FrameCompressor c = compressor;
+			return mBytesSaved.get() + ((c == null) ? 0 : c.getBytesSaved());
+		}
+
+		public long getFramesCompressed() {
+			FrameCompressor c = compressor;
+			return mFramesCompressed.get() + ((c == null) ? 0 : c.getFramesCompressed());
+		}
+
+		/**
+		 * @return Frames sent as they were because they would not compress
+		 */
+		public long getFramesSkipped() {
+			FrameCompressor c = compressor;
+			return mFramesSkipped.get() + ((c == null) ? 0 : c.getFramesSkipped());
+		}
+	}
+
+	// Pong samples the clock offset is picked from
+	private static final int CLOCK_SAMPLES = 8;
+
+	private final ConcurrentHashMap<String, Peer> mPeers = new ConcurrentHashMap<String, Peer>();
+	private final long mStarted = System.currentTimeMillis();
+
+	// From starting to open a link, or accepting one, to the peer's hello, in microseconds
+	public final Histogram connectLatency = new Histogram();
+	public final Histogram acceptLatency = new Histogram();
+	// Rate of each file sent or received, in bytes per second
+	public final Histogram fileSendRate = new Histogram();
+	public final Histogram fileReceiveRate = new Histogram();
+
+	public final AtomicLong filesSent = new AtomicLong();
+	public final AtomicLong filesReceived = new AtomicLong();
+	public final AtomicLong fileBytesSent = new AtomicLong();
+	public final AtomicLong fileBytesReceived = new AtomicLong();
+	// Connections from a peer that had been connected before
+	public final AtomicLong reconnects = new AtomicLong();
+	// Peers dropped because their heartbeat stopped
+	public final AtomicLong evictions = new AtomicLong();
+	// Client side: history asked for again after a gap in the hub's numbering
+	public final AtomicLong resyncs = new AtomicLong();
+	// Client side: attempts to go back to the hub, times it gave up, and
+	// how long it took from losing the link to having it again, in milliseconds
+	public final AtomicLong reconnectAttempts = new AtomicLong();
+	public final AtomicLong reconnectFailures = new AtomicLong();
+	public final Histogram reconnectTime = new Histogram();
+
+	// Chat latency in microseconds: from the sender to the hub relaying it,
+	// from the hub to a receiver, and the two together
+	public final Histogram firstHopLatency = new Histogram();
+	public final Histogram lastHopLatency = new Histogram();
+	public final Histogram endToEndLatency = new Histogram();
+
+	/**
+	 * @return The clock messages and pings are stamped with: monotonic, in
+	 * microseconds, from an arbitrary origin that differs between devices
+	 */
+	public static long now() {
+		return System.nanoTime() / 1000;
+	}
+
+	/**
+	 * @return The figures of a peer, created on first use
+	 */
+	public Peer peer(String address) {
+		Peer p = mPeers.get(address);
+		if (p == null) {
+			Peer created = new Peer(address);
+			p = mPeers.putIfAbsent(address, created);
+			if (p == null) p = created;
+		}
+		return p;
+	}
+
+	/**
+	 * Drop the figures of a peer that is gone for good; the totals keep
+	 * what it did.
+	 */
+	public void forget(String address) {
+		mPeers.remove(address);
+	}
+
+	/**
+	 * @return Every peer seen so far, in no particular order
+	 */
+	public Peer[] getPeers() {
+		return mPeers.values().toArray(new Peer[0]);
+	}
+
+	/**
+	 * Count a connection of a peer.
+	 * @param link  Its send queue
+	 * @param compressor  Its writer's compressor, until it is retired
+	 * @return The peer's figures, for the connection to update
+	 */
+	public Peer connected(String address, OutboundQueue link, FrameCompressor compressor) {
+		Peer p = peer(address);
+		p.link = link;
+		p.compressor = compressor;
+		if (p.connections.incrementAndGet() > 1) reconnects.incrementAndGet();
+		return p;
+	}
+
+	/**
+	 * Count a file sent or received in full.
+	 * @param bytes  Its size
+	 * @param nanos  How long it took
+	 */
+	public void fileSent(long bytes, long nanos) {
+		filesSent.incrementAndGet();
+		fileBytesSent.addAndGet(bytes);
+		fileSendRate.record(rate(bytes, nanos));
+	}
+
+	public void fileReceived(long bytes, long nanos) {
+		filesReceived.incrementAndGet();
+		fileBytesReceived.addAndGet(bytes);
+		fileReceiveRate.record(rate(bytes, nanos));
+	}
+
+	private static long rate(long bytes, long nanos) {
+		return (nanos <= 0) ? bytes : (long) (bytes * 1e9 / nanos);
+	}
+
+	/**
+	 * @return Everything, one line per figure, for a log or a bug report
+	 */
+	public String snapshot() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("uptime ").append((System.currentTimeMillis() - mStarted) / 1000).append(" s\n");
+		sb.append("connect latency us: ");
+		connectLatency.appendTo(sb);
+		sb.append("\naccept latency us: ");
+		acceptLatency.appendTo(sb);
+		sb.append("\nreconnects ").append(reconnects.get());
+		sb.append("\nevictions ").append(evictions.get());
+		sb.append("\nresyncs ").append(resyncs.get());
+		sb.append("\nreconnect attempts ").append(reconnectAttempts.get())
+				.append(" failed ").append(reconnectFailures.get()).append(", ms: ");
+		reconnectTime.appendTo(sb);
+		sb.append("\nfiles sent ").append(filesSent.get())
+				.append(" (").append(fileBytesSent.get()).append(" bytes), B/s: ");
+		fileSendRate.appendTo(sb);
+		sb.append("\nfiles received ").append(filesReceived.get())
+				.append(" (").append(fileBytesReceived.get()).append(" bytes), B/s: ");
+		fileReceiveRate.appendTo(sb);
+		sb.append("\nfirst hop us: ");
+		firstHopLatency.appendTo(sb);
+		sb.append("\nlast hop us: ");
+		lastHopLatency.appendTo(sb);
+		sb.append("\nend to end us: ");
+		endToEndLatency.appendTo(sb);
+		sb.append('\n');
+
+		ArrayList<String> addresses = new ArrayList<String>(mPeers.keySet());
+		Collections.sort(addresses);
+		for (int i = 0; i < addresses.size(); i++) {
+			Peer p = mPeers.get(addresses.get(i));
+			sb.append("peer ").append(p.address)
+					.append(" connections=").append(p.connections.get())
+					.append(" in=").append(p.bytesIn.get()).append("B/").append(p.framesIn.get())
+					.append(" out=").append(p.bytesOut.get()).append("B/").append(p.framesOut.get())
+					.append(" queued=").append(p.getQueued())
+					.append(" inflight=").append(p.getInFlight())
+					.append(" deflated=").append(p.getFramesCompressed())
+					.append(" saved=").append(p.getBytesSaved()).append('B')
+					.append(" incompressible=").append(p.getFramesSkipped());
+			if (p.hasClock()) {
+				sb.append(" rtt us p50=").append(p.rtt.getPercentile(50))
+						.append(" max=").append(p.rtt.getMax())
+						.append(" clock offset us=").append(p.getClockOffset());
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
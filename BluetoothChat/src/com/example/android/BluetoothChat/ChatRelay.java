@@ -0,0 +1,70 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * The frames the hub relays a chat message in, built from the message's
+ * bytes without decoding it. BluetoothChatService.publish() puts them
+ * together and decides who gets them.
+ */
+public final class ChatRelay {
+	private static final String TAG = "ChatRelay";
+
+	private ChatRelay() {
+	}
+
+	/**
+	 * A FRAME_SEQ_MESSAGE for a message, in a pooled payload: 8 bytes for
+	 * the history sequence number, see number(), then the message, then
+	 * the hub's trace if the message is timestamped, see
+	 * MessageCodec.appendTrace().
+	 * @param sentAt  The sender's timestamp in the message, 0 if it has none
+	 * @param now  The hub's clock, ChatMetrics.now()
+	 * @param uplink  For the trace
+	 */
+	public static OutboundFrame message(BufferPool buffers, byte[] message, int offset, int length,
+			long sentAt, long now, long uplink) {
+		int size = 8 + length + ((sentAt != 0) ? MessageCodec.TRACE_SIZE : 0);
+		byte[] payload = buffers.acquire(size);
+		System.arraycopy(message, offset, payload, 8, length);
+		if (sentAt != 0) {
+			MessageCodec.appendTrace(payload, 8 + length, now, uplink);
+		}
+		return new OutboundFrame(FrameCodec.FRAME_SEQ_MESSAGE, OutboundFrame.CHAT_STREAM,
+				payload, 0, size, buffers);
+	}
+
+	/**
+	 * Add the message in a frame from message() to the journal, as it was
+	 * sent, and write its sequence number into the frame. Must be called
+	 * before the frame is queued.
+	 * @param journal  Null if the hub keeps no history
+	 * @param length  The length of the message, without the trace
+	 * @return The sequence number, 0 if the message is not in the history
+	 */
+	public static long number(MessageJournal journal, OutboundFrame frame, int length) {
+		long seq = 0;
+		if (journal != null) {
+			try {
+				seq = journal.append(frame.payload, frame.offset + 8, length);
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to add message to history", e);
+			}
+		}
+		FrameCodec.writeLong(frame.payload, frame.offset, seq);
+		return seq;
+	}
+
+	/**
+	 * A FRAME_SEQ_ECHO, which tells a message's sender the sequence number
+	 * its message got.
+	 */
+	public static OutboundFrame echo(BufferPool buffers, long seq) {
+		byte[] number = buffers.acquire(8);
+		FrameCodec.writeLong(number, 0, seq);
+		return new OutboundFrame(FrameCodec.FRAME_SEQ_ECHO, OutboundFrame.CHAT_STREAM,
+				number, 0, 8, buffers);
+	}
+}
@@ -0,0 +1,29 @@
+package com.example.android.BluetoothChat;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where BluetoothChatService keeps what it writes and finds what it is
+ * asked to send. On a device this is the app's storage and the content
+ * providers; elsewhere, plain directories.
+ */
+public interface ChatStorage {
+	/**
+	 * @return A directory of the app's own for the history journal and
+	 * the files being received
+	 */
+	File getFilesDir();
+
+	/**
+	 * @return The directory received files are saved to
+	 */
+	File getDownloadDir();
+
+	/**
+	 * Look up content picked for sending. It is called on a file-sender
+	 * thread, as it may have to query a provider.
+	 * @param uri  The content's uri
+	 */
+	OutgoingFile open(String uri) throws IOException;
+}
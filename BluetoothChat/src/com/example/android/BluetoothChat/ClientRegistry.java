@@ -0,0 +1,72 @@
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.example.android.BluetoothChat.BluetoothChatService.ConnectedThread;
+
+/**
+ * The set of connected peers. It is read from every connection thread
+ * and the UI thread while the accept thread adds to it, so reads never
+ * lock: lookups go through a concurrent map keyed by device address and
+ * fan-out iterates an immutable array snapshot that is replaced, never
+ * modified, whenever a peer joins or leaves.
+ */
+public class ClientRegistry {
+	private static final BluetoothClient[] EMPTY = new BluetoothClient[0];
+
+	private final ConcurrentHashMap<String, BluetoothClient> mByAddress = new ConcurrentHashMap<String, BluetoothClient>();
+	private volatile BluetoothClient[] mSnapshot = EMPTY;
+
+	/**
+	 * Register a peer.
+	 * @return The client it replaces, if the same device was still registered
+	 */
+	public synchronized BluetoothClient add(BluetoothClient client) {
+		BluetoothClient previous = mByAddress.put(client.deviceAdress, client);
+		rebuild();
+		return previous;
+	}
+
+	/**
+	 * Remove a peer, but only if it is still registered with the given
+	 * connection; a device that already reconnected keeps its new entry.
+	 * @return true if the peer was removed
+	 */
+	public synchronized boolean remove(String address, ConnectedThread connection) {
+		BluetoothClient client = mByAddress.get(address);
+		if (client == null || client.connectedThread != connection) return false;
+		mByAddress.remove(address);
+		rebuild();
+		return true;
+	}
+
+	/**
+	 * Remove every peer.
+	 * @return The peers that were registered
+	 */
+	public synchronized BluetoothClient[] clear() {
+		BluetoothClient[] clients = mSnapshot;
+		mByAddress.clear();
+		mSnapshot = EMPTY;
+		return clients;
+	}
+
+	public BluetoothClient get(String address) {
+		return mByAddress.get(address);
+	}
+
+	/**
+	 * @return The current peers. The array is shared and must not be modified.
+	 */
+	public BluetoothClient[] snapshot() {
+		return mSnapshot;
+	}
+
+	public int size() {
+		return mSnapshot.length;
+	}
+
+	private void rebuild() {
+		mSnapshot = mByAddress.values().toArray(new BluetoothClient[mByAddress.size()]);
+	}
+}
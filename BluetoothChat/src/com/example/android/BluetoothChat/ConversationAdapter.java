@@ -0,0 +1,246 @@
+package com.example.android.BluetoothChat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * The rows of the conversation. Every row is formatted once, when it is
+ * added, and written to a {@link MessageJournal} of its own; the list shows
+ * a {@link ConversationWindow} of at most CAPACITY of them, so memory does
+ * not grow with the conversation. Scrolling to the top of the window reads
+ * older rows back from the journal, a page at a time, and drops the newest
+ * from memory if the window is full; scrolling down again reads those back.
+ *
+ * Rows added in a burst, a history replay or a busy room, are collected
+ * and shown together, at most once a frame, with one change notification.
+ *
+ * All methods are called on the UI thread; the journal is written and
+ * read on a thread of the adapter's own.
+ */
+public class ConversationAdapter extends BaseAdapter implements AbsListView.OnScrollListener {
+	private static final String TAG = "ConversationAdapter";
+
+	// Rows held in memory, and how many are read back at a time
+	public static final int CAPACITY = 500;
+	private static final int PAGE = 50;
+	// Rows added are shown at most this often, about one frame
+	private static final long FRAME_MILLIS = 16;
+	// What the journal keeps of past conversations
+	private static final long STORE_MAX_BYTES = 2 * 1024 * 1024;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final LayoutInflater mInflater;
+	private final int mLayout;
+	private final ListView mList;
+	private final Handler mHandler = new Handler();
+	private final ExecutorService mStore = Executors.newSingleThreadExecutor();
+	// Where rows are paged from, null if it could not be opened
+	private final MessageJournal mJournal;
+
+	// The rows shown, numbered like the journal
+	private final ConversationWindow mWindow;
+
+	// A flush of the rows added is posted for the next frame
+	private boolean mFlushPosted;
+	// A page is being read
+	private boolean mLoading;
+	private int mFirstVisible;
+
+	/**
+	 * @param list  The list the adapter is set on; it becomes its scroll listener
+	 * @param layout  A TextView layout for a row
+	 * @param dir  Directory of the journal of rows
+	 */
+	public ConversationAdapter(Context context, ListView list, int layout, File dir) {
+		mInflater = LayoutInflater.from(context);
+		mLayout = layout;
+		mList = list;
+
+		MessageJournal journal = null;
+		try {
+			journal = new MessageJournal(dir);
+			journal.setRetention(STORE_MAX_BYTES, MessageJournal.DEFAULT_MAX_AGE);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to open " + dir + ", older rows will not be kept", e);
+		}
+		mJournal = journal;
+		mWindow = new ConversationWindow(CAPACITY, (journal != null) ? journal.getNextSeq() : 1, journal != null);
+
+		list.setAdapter(this);
+		list.setOnScrollListener(this);
+	}
+
+	/**
+	 * Add a row at the end of the conversation. It is shown with the next frame.
+	 */
+	public void append(String row) {
+		final long seq = mWindow.append(row);
+		if (mJournal != null) {
+			final byte[] bytes = row.getBytes(UTF_8);
+			mStore.execute(new Runnable() {
+				public void run() {
+					try {
+						mJournal.append(bytes, 0, bytes.length);
+					} catch (IOException e) {
+						Log.e(TAG, "Unable to store row " + seq, e);
+					}
+				}
+			});
+		}
+		if (!mFlushPosted) {
+			mFlushPosted = true;
+			mHandler.postDelayed(mFlush, FRAME_MILLIS);
+		}
+	}
+
+	private final Runnable mFlush = new Runnable() {
+		public void run() {
+			mFlushPosted = false;
+			if (mWindow.flush()) notifyDataSetChanged();
+		}
+	};
+
+	/**
+	 * Empty the view; rows added before are not paged back in.
+	 */
+	public void clear() {
+		mWindow.clear();
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Let go of the journal once the rows added so far are written.
+	 */
+	public void close() {
+		mHandler.removeCallbacks(mFlush);
+		if (mJournal != null) {
+			mStore.execute(new Runnable() {
+				public void run() {
+					mJournal.close();
+				}
+			});
+		}
+		mStore.shutdown();
+	}
+
+	public int getCount() {
+		return mWindow.size();
+	}
+
+	public Object getItem(int position) {
+		return mWindow.get(position);
+	}
+
+	public long getItemId(int position) {
+		return mWindow.seqAt(position);
+	}
+
+	@Override
+	public boolean hasStableIds() {
+		return true;
+	}
+
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView view = (TextView) convertView;
+		if (view == null) {
+			view = (TextView) mInflater.inflate(mLayout, parent, false);
+		}
+		view.setText((String) getItem(position));
+		return view;
+	}
+
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		mFirstVisible = firstVisibleItem;
+		if (mLoading || totalItemCount == 0) return;
+		if (firstVisibleItem == 0 && mWindow.hasOlder()) {
+			loadOlder();
+		} else if (firstVisibleItem + visibleItemCount >= totalItemCount && mWindow.hasNewer()) {
+			loadNewer();
+		}
+	}
+
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+	}
+
+	/**
+	 * Read the page before the window and put it in front, keeping the
+	 * rows on screen where they are.
+	 */
+	private void loadOlder() {
+		final long end = mWindow.seqAt(0);
+		final long from = mWindow.olderFrom(PAGE);
+		load(from, (int) (end - from), new Page() {
+			void show(ArrayList<MessageJournal.Entry> rows) {
+				int added = mWindow.putOlder(end, rows);
+				if (added > 0) keepPosition(added);
+			}
+		});
+	}
+
+	/**
+	 * Read the page after a window that was scrolled back and put it at the
+	 * end, dropping rows from the front as needed.
+	 */
+	private void loadNewer() {
+		final long from = mWindow.newerFrom();
+		load(from, mWindow.newerCount(PAGE), new Page() {
+			void show(ArrayList<MessageJournal.Entry> rows) {
+				int dropped = mWindow.putNewer(from, rows);
+				if (dropped >= 0) keepPosition(-dropped);
+			}
+		});
+	}
+
+	private void keepPosition(int shift) {
+		View top = mList.getChildAt(0);
+		int y = (top != null) ? top.getTop() : 0;
+		notifyDataSetChanged();
+		mList.setSelectionFromTop(Math.max(0, mFirstVisible + shift), y);
+	}
+
+	/**
+	 * Rows read from the journal, handed back on the UI thread.
+	 */
+	private abstract static class Page {
+		abstract void show(ArrayList<MessageJournal.Entry> rows);
+	}
+
+	private void load(final long from, final int count, final Page page) {
+		if (count <= 0) return;
+		mLoading = true;
+		mStore.execute(new Runnable() {
+			public void run() {
+				ArrayList<MessageJournal.Entry> rows;
+				try {
+					rows = mJournal.read(from, count);
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to read rows from " + from, e);
+					rows = new ArrayList<MessageJournal.Entry>();
+				}
+				final ArrayList<MessageJournal.Entry> result = rows;
+				mHandler.post(new Runnable() {
+					public void run() {
+						mLoading = false;
+						page.show(result);
+					}
+				});
+			}
+		});
+	}
+}
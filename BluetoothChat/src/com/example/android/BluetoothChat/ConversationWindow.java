@@ -0,0 +1,203 @@
+package com.example.android.BluetoothChat;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rows of a conversation that are held in memory: a window of at most
+ * a given capacity of them, in a ring, numbered like the journal they are
+ * written to. Rows added go to the end of the window once flushed, if the
+ * window reaches the end, dropping the oldest when it is full. Pages read
+ * back from the journal go in front of the window, dropping the newest,
+ * or, for a window that was scrolled back, at its end, dropping the oldest.
+ *
+ * Not thread safe; the adapter uses it on the UI thread only.
+ */
+public class ConversationWindow {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final int mCapacity;
+	// Whether rows outside the window can be read back
+	private final boolean mPaged;
+
+	// Rows with sequence numbers mFirst to mFirst + mCount, the first of
+	// them at mRows[mHead]
+	private final String[] mRows;
+	private int mHead;
+	private int mCount;
+	private long mFirst;
+	// The sequence number of the next row added, and of the first row of
+	// this conversation; rows before it are not paged in
+	private long mNextSeq;
+	private long mFloor;
+
+	// Rows added since the last flush
+	private final ArrayList<String> mPending = new ArrayList<String>();
+
+	/**
+	 * @param capacity  The most rows held
+	 * @param nextSeq  The sequence number the first row added gets
+	 * @param paged  true if the rows are kept somewhere they can be read back from
+	 */
+	public ConversationWindow(int capacity, long nextSeq, boolean paged) {
+		mCapacity = capacity;
+		mPaged = paged;
+		mRows = new String[capacity];
+		// The window starts empty, like a new conversation
+		mNextSeq = nextSeq;
+		mFloor = nextSeq;
+		mFirst = nextSeq;
+	}
+
+	/**
+	 * Add a row at the end of the conversation, to be shown by the next flush().
+	 * @return Its sequence number
+	 */
+	public long append(String row) {
+		mPending.add(row);
+		return mNextSeq++;
+	}
+
+	/**
+	 * Show the rows added since the last flush. Only a window that reaches
+	 * the end follows the conversation; one scrolled back gets these rows
+	 * when it is paged down.
+	 * @return true if the window changed
+	 */
+	public boolean flush() {
+		boolean changed = false;
+		if (mFirst + mCount == mNextSeq - mPending.size()) {
+			for (int i = 0; i < mPending.size(); i++) {
+				addLast(mPending.get(i));
+			}
+			if (!mPaged) mFloor = mFirst;
+			changed = true;
+		}
+		mPending.clear();
+		return changed;
+	}
+
+	/**
+	 * Empty the window; rows added before are not paged back in.
+	 */
+	public void clear() {
+		mPending.clear();
+		for (int i = 0; i < mCapacity; i++) mRows[i] = null;
+		mHead = 0;
+		mCount = 0;
+		mFloor = mNextSeq;
+		mFirst = mNextSeq;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public String get(int position) {
+		return mRows[(mHead + position) % mCapacity];
+	}
+
+	/**
+	 * @return The sequence number of the row at the given position
+	 */
+	public long seqAt(int position) {
+		return mFirst + position;
+	}
+
+	/**
+	 * @return true if rows before the window can be paged in
+	 */
+	public boolean hasOlder() {
+		return mPaged && mFirst > mFloor;
+	}
+
+	/**
+	 * @return true if the window was scrolled back and rows after it can be
+	 * paged in
+	 */
+	public boolean hasNewer() {
+		return mPaged && mFirst + mCount < mNextSeq - mPending.size();
+	}
+
+	/**
+	 * @return The sequence number the page before the window starts at
+	 */
+	public long olderFrom(int page) {
+		return Math.max(mFloor, mFirst - page);
+	}
+
+	/**
+	 * @return The sequence number the page after the window starts at
+	 */
+	public long newerFrom() {
+		return mFirst + mCount;
+	}
+
+	/**
+	 * @return The number of rows in the page after the window
+	 */
+	public int newerCount(int page) {
+		return (int) Math.min(page, mNextSeq - mPending.size() - newerFrom());
+	}
+
+	/**
+	 * Put a page read from before the window in front of it, dropping the
+	 * newest rows if the window is full.
+	 * @param end  The first sequence number of the window when the page was asked for
+	 * @return The number of rows put in front, -1 if the window has moved since
+	 */
+	public int putOlder(long end, List<MessageJournal.Entry> rows) {
+		if (mFirst != end) return -1;
+		int added = 0;
+		for (int i = rows.size() - 1; i >= 0; i--) {
+			MessageJournal.Entry e = rows.get(i);
+			if (e.seq >= mFirst) continue;
+			addFirst(new String(e.payload, UTF_8));
+			added++;
+		}
+		// Nothing older is kept anymore
+		if (added == 0) mFloor = mFirst;
+		return added;
+	}
+
+	/**
+	 * Put a page read from after the window at its end, dropping the
+	 * oldest rows if the window is full.
+	 * @param from  The value of newerFrom() when the page was asked for
+	 * @return The number of rows dropped from the front, -1 if the window
+	 * has moved since
+	 */
+	public int putNewer(long from, List<MessageJournal.Entry> rows) {
+		if (mFirst + mCount != from) return -1;
+		long first = mFirst;
+		for (int i = 0; i < rows.size(); i++) {
+			if (rows.get(i).seq == mFirst + mCount) {
+				addLast(new String(rows.get(i).payload, UTF_8));
+			}
+		}
+		return (int) (mFirst - first);
+	}
+
+	private void addLast(String row) {
+		if (mCount == mCapacity) {
+			mRows[mHead] = null;
+			mHead = (mHead + 1) % mCapacity;
+			mFirst++;
+			mCount--;
+		}
+		mRows[(mHead + mCount) % mCapacity] = row;
+		mCount++;
+	}
+
+	private void addFirst(String row) {
+		if (mCount == mCapacity) {
+			mRows[(mHead + mCount - 1) % mCapacity] = null;
+			mCount--;
+		}
+		mHead = (mHead + mCapacity - 1) % mCapacity;
+		mRows[mHead] = row;
+		mFirst--;
+		mCount++;
+	}
+}
@@ -0,0 +1,319 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Shares the radio between the peers of a hub. Every connection's writer
+ * asks for permission before each frame it writes; when several are
+ * waiting, the frame with the lowest weighted fair queuing tag goes first
+ * (self-clocked fair queuing over one flow per peer and traffic class), so
+ * each peer gets its share of the link whatever the others push.
+ *
+ * Two kinds of token buckets meter the frames. The link bucket holds the
+ * egress rate of the whole hub, set somewhat below what the radio can do,
+ * and its burst is the latency target: no more than that much data is ever
+ * queued below us, so a chat frame that is let through goes out within the
+ * target even while files are being sent. Per-peer buckets cap the rate of
+ * file data to one peer. Interactive frames are counted against the link
+ * but are never held back by a peer's limit, and their class weight puts
+ * them ahead of any file data.
+ *
+ * A rate of 0 turns a bucket off. Both are off until set: what the link
+ * can do depends on the transport, see Transport.getLinkRate().
+ */
+public class EgressScheduler {
+	// Traffic classes
+	public static final int INTERACTIVE = 0;  // chat and control frames
+	public static final int BULK = 1;         // file data
+
+	// Share of the link one class gets against the other while both wait
+	private static final int[] CLASS_WEIGHT = { 16, 1 };
+
+	public static final int DEFAULT_LATENCY_TARGET_MILLIS = 100;
+	// Buckets hold at least one full file chunk frame
+	private static final int MIN_BURST = FrameCodec.HEADER_SIZE + 16 + 8 * 1024;
+
+	/**
+	 * Bytes that may be sent at a given rate, up to a burst.
+	 */
+	private static class TokenBucket {
+		long rate;
+		long burst;
+		double tokens;
+		long lastRefill = System.nanoTime();
+
+		void set(long rate, long burst) {
+			this.rate = rate;
+			this.burst = burst;
+			tokens = Math.min(tokens, burst);
+		}
+
+		void refill(long now) {
+			if (rate > 0) {
+				tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * rate);
+			}
+			lastRefill = now;
+		}
+
+		boolean allows() {
+			return rate <= 0 || tokens >= 0;
+		}
+
+		/**
+		 * Frames larger than what is left are let through and leave a debt,
+		 * so no frame is ever too large for the bucket.
+		 */
+		void take(int bytes) {
+			if (rate > 0) tokens -= bytes;
+		}
+
+		/**
+		 * @return Nanoseconds until allows() will be true
+		 */
+		long delay() {
+			return allows() ? 0 : (long) (-tokens * 1e9 / rate) + 1;
+		}
+	}
+
+	/**
+	 * The frames of one connection. A writer gets one from register() and
+	 * passes it to every acquire().
+	 */
+	public class Flow {
+		final String address;
+		final TokenBucket bucket = new TokenBucket();
+		final double[] lastFinish = new double[CLASS_WEIGHT.length];
+		// Its writer waits for one frame at a time, so one request does
+		final Request request = new Request(this);
+		boolean closed;
+		long delayed;
+
+		Flow(String address) {
+			this.address = address;
+		}
+
+		/**
+		 * The connection is gone; a writer waiting in acquire() returns false.
+		 */
+		public void close() {
+			synchronized (EgressScheduler.this) {
+				closed = true;
+				mFlows.remove(this);
+				EgressScheduler.this.notifyAll();
+			}
+		}
+
+		/**
+		 * @return How many of this flow's frames had to wait for their turn
+		 */
+		public long getDelayed() {
+			synchronized (EgressScheduler.this) {
+				return delayed;
+			}
+		}
+	}
+
+	/**
+	 * A frame waiting for its turn.
+	 */
+	private static class Request {
+		final Flow flow;
+		int cls;
+		int bytes;
+		double tag;
+		boolean waiting;
+
+		Request(Flow flow) {
+			this.flow = flow;
+		}
+	}
+
+	private final TokenBucket mLink = new TokenBucket();
+	private final ArrayList<Flow> mFlows = new ArrayList<Flow>();
+	private final ArrayList<Request> mWaiting = new ArrayList<Request>();
+	private final HashMap<String, Long> mPeerRates = new HashMap<String, Long>();
+	private long mDefaultPeerRate;
+	// Tag of the frame last let through
+	private double mVirtualTime;
+
+	public EgressScheduler() {
+		this(0);
+	}
+
+	/**
+	 * @param bytesPerSecond  What the hub may send in all, 0 for no limit
+	 */
+	public EgressScheduler(long bytesPerSecond) {
+		setLinkRate(bytesPerSecond, DEFAULT_LATENCY_TARGET_MILLIS);
+	}
+
+	/**
+	 * @param bytesPerSecond  What the hub may send in all, 0 for no limit
+	 * @param latencyTargetMillis  How long an interactive frame may wait
+	 * behind data already let through
+	 */
+	public synchronized void setLinkRate(long bytesPerSecond, int latencyTargetMillis) {
+		long burst = Math.max(MIN_BURST, bytesPerSecond * latencyTargetMillis / 1000);
+		mLink.set(bytesPerSecond, burst);
+		notifyAll();
+	}
+
+	/**
+	 * Limit the rate of file data to one peer.
+	 * @param address  The peer, or null to set the default for peers without a limit of their own
+	 * @param bytesPerSecond  The limit, 0 for none
+	 */
+	public synchronized void setPeerRate(String address, long bytesPerSecond) {
+		if (address == null) {
+			mDefaultPeerRate = bytesPerSecond;
+		} else {
+			mPeerRates.put(address, bytesPerSecond);
+		}
+		for (int i = 0; i < mFlows.size(); i++) {
+			applyPeerRate(mFlows.get(i));
+		}
+		notifyAll();
+	}
+
+	private void applyPeerRate(Flow flow) {
+		Long rate = mPeerRates.get(flow.address);
+		long r = (rate != null) ? rate : mDefaultPeerRate;
+		// A quarter of a second's worth
+		flow.bucket.set(r, Math.max(MIN_BURST, r / 4));
+	}
+
+	/**
+	 * Start scheduling the frames of a new connection.
+	 */
+	public synchronized Flow register(String address) {
+		Flow flow = new Flow(address);
+		applyPeerRate(flow);
+		mFlows.add(flow);
+		return flow;
+	}
+
+	/**
+	 * Wait until a frame may be written.
+	 * @param cls  INTERACTIVE or BULK
+	 * @param bytes  Its size on the wire
+	 * @return false if the flow was closed meanwhile
+	 */
+	public synchronized boolean acquire(Flow flow, int cls, int bytes) throws InterruptedException {
+		if (flow.closed) return false;
+		Request r = enqueue(flow, cls, bytes);
+		// It may be a better candidate than the one the others are waiting for
+		notifyAll();
+		try {
+			boolean waited = false;
+			while (true) {
+				if (flow.closed) return false;
+				long now = System.nanoTime();
+				Request next = next(now);
+				if (next == r) {
+					dequeue(r);
+					grant(flow, cls, bytes, r.tag);
+					if (waited) flow.delayed++;
+					return true;
+				}
+				waited = true;
+				long delay = delay(now);
+				if (delay > 0) {
+					wait(delay / 1000000, (int) (delay % 1000000));
+				} else {
+					wait();
+				}
+			}
+		} finally {
+			if (dequeue(r)) notifyAll();
+		}
+	}
+
+	/**
+	 * Let a frame through at once if it is its turn and the buckets allow it.
+	 * @return false if acquire() would have to wait
+	 */
+	public synchronized boolean tryAcquire(Flow flow, int cls, int bytes) {
+		if (flow.closed || !mWaiting.isEmpty()) return false;
+		long now = System.nanoTime();
+		mLink.refill(now);
+		flow.bucket.refill(now);
+		if (!mLink.allows() || (cls == BULK && !flow.bucket.allows())) return false;
+		// Nothing is waiting, so it is its turn without being queued
+		grant(flow, cls, bytes, tag(flow, cls, bytes));
+		return true;
+	}
+
+	/**
+	 * @return The frame's finish tag, which is also recorded as the last of its flow and class
+	 */
+	private double tag(Flow flow, int cls, int bytes) {
+		double start = Math.max(mVirtualTime, flow.lastFinish[cls]);
+		double tag = start + (double) bytes / CLASS_WEIGHT[cls];
+		flow.lastFinish[cls] = tag;
+		return tag;
+	}
+
+	private Request enqueue(Flow flow, int cls, int bytes) {
+		Request r = flow.request;
+		// Only if the flow's writer is not the only one calling acquire()
+		if (r.waiting) r = new Request(flow);
+		r.cls = cls;
+		r.bytes = bytes;
+		r.tag = tag(flow, cls, bytes);
+		r.waiting = true;
+		mWaiting.add(r);
+		return r;
+	}
+
+	/**
+	 * @return false if it was no longer waiting
+	 */
+	private boolean dequeue(Request r) {
+		r.waiting = false;
+		return mWaiting.remove(r);
+	}
+
+	private void grant(Flow flow, int cls, int bytes, double tag) {
+		mVirtualTime = tag;
+		mLink.take(bytes);
+		if (cls == BULK) flow.bucket.take(bytes);
+		notifyAll();
+	}
+
+	/**
+	 * @return The waiting frame with the lowest tag that the buckets let
+	 * through now, or null if none may go
+	 */
+	private Request next(long now) {
+		mLink.refill(now);
+		if (!mLink.allows()) return null;
+		Request best = null;
+		for (int i = 0; i < mWaiting.size(); i++) {
+			Request r = mWaiting.get(i);
+			if (r.cls == BULK) {
+				r.flow.bucket.refill(now);
+				if (!r.flow.bucket.allows()) continue;
+			}
+			if (best == null || r.tag < best.tag) best = r;
+		}
+		return best;
+	}
+
+	/**
+	 * @return Nanoseconds until a bucket holding back a waiting frame
+	 * refills, 0 if only another frame's turn can change anything
+	 */
+	private long delay(long now) {
+		long delay = mLink.delay();
+		if (delay > 0) return delay;
+		for (int i = 0; i < mWaiting.size(); i++) {
+			Request r = mWaiting.get(i);
+			if (r.cls == BULK) {
+				long d = r.flow.bucket.delay();
+				if (d > 0 && (delay == 0 || d < delay)) delay = d;
+			}
+		}
+		return delay;
+	}
+}
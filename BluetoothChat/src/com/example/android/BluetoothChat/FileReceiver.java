@@ -0,0 +1,391 @@
+package com.example.android.BluetoothChat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * One incoming file transfer. The sender splits the file into CHUNK_SIZE
+ * chunks, each with its index and a CRC32; chunks are written at their
+ * offset in a hidden temp file next to the target, in whatever order they
+ * arrive, and the temp file is renamed over the target once every chunk
+ * is in. Heap use does not depend on the file size and a half received
+ * file never shows up under its real name.
+ *
+ * Progress is kept in a manifest, an append-only file in the transfers
+ * directory recording the transfer's header and every chunk that was
+ * written intact. A transfer cut off by a lost connection, or by the app
+ * being killed, is picked up again from its manifest and only the chunks
+ * it lacks need to be sent again.
+ *
+ * Manifest layout: MAGIC (int), transfer id (long), size (long), author
+ * and name (UTF), then records: RECORD_CHUNK and an index (int),
+ * RECORD_COUNT and the number of chunks (int), or RECORD_DONE.
+ *
+ * The methods are synchronized: after a reconnect the new connection's
+ * reader may take over a transfer before the old one has noticed the loss.
+ */
+public class FileReceiver {
+	private static final String TAG = "FileReceiver";
+
+	// Size of the chunks a file is sent in, the same for every peer
+	public static final int CHUNK_SIZE = 8 * 1024;
+	// In FILE_MISSING, a range count meaning "up to the end of the file"
+	public static final int TO_END = Integer.MAX_VALUE;
+
+	private static final int MAGIC = 0x42434654;
+	private static final int RECORD_CHUNK = 1;
+	private static final int RECORD_COUNT = 2;
+	private static final int RECORD_DONE = 3;
+	private static final String MANIFEST_SUFFIX = ".manifest";
+
+	private final long mId;
+	private final String mAuthor;
+	private final File mTarget;
+	private final File mTemp;
+	private final File mManifest;
+	private final long mExpectedSize;
+	private final BitSet mChunks = new BitSet();
+	private final CRC32 mCrc = new CRC32();
+	private int mChunkCount = -1;
+	private boolean mDone;
+	private long mReceived;
+	// When this run of the transfer started and what it had by then, for its rate
+	private final long mStartedAt = System.nanoTime();
+	private long mReceivedBefore;
+
+	private RandomAccessFile mFile;
+	private DataOutputStream mLog;
+
+	/**
+	 * Start a new transfer.
+	 * @param dir  Directory the file is saved to
+	 * @param manifests  Directory for the manifests
+	 * @param id  The sender's transfer id
+	 * @param author  Who sent the file
+	 * @param name  File name as sent by the peer, any path part is dropped
+	 * @param expectedSize  Size announced by the sender, -1 if unknown
+	 */
+	public static FileReceiver create(File dir, File manifests, long id, String author, String name, long expectedSize) throws IOException {
+		if (!manifests.isDirectory() && !manifests.mkdirs()) {
+			throw new IOException("Unable to create " + manifests);
+		}
+		FileReceiver r = new FileReceiver(dir, manifests, id, author, name, expectedSize);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(r.mManifest)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(id);
+			out.writeLong(expectedSize);
+			out.writeUTF(author);
+			out.writeUTF(name);
+		} finally {
+			out.close();
+		}
+		r.mTemp.delete();
+		return r;
+	}
+
+	/**
+	 * Pick up a transfer from its manifest.
+	 * @return The transfer, or null if there is no usable manifest for it
+	 */
+	public static FileReceiver resume(File dir, File manifests, long id) {
+		File manifest = manifestFile(manifests, id);
+		if (!manifest.exists()) return null;
+
+		FileReceiver r = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)));
+			try {
+				if (in.readInt() != MAGIC || in.readLong() != id) {
+					throw new IOException("Not a manifest of transfer " + id);
+				}
+				long size = in.readLong();
+				String author = in.readUTF();
+				String name = in.readUTF();
+				r = new FileReceiver(dir, manifests, id, author, name, size);
+				// A record torn by a crash ends the manifest, that chunk comes again
+				try {
+					while (true) {
+						int record = in.readByte();
+						if (record == RECORD_CHUNK) {
+							int index = in.readInt();
+							if (index < 0) break;
+							r.mChunks.set(index);
+						} else if (record == RECORD_COUNT) {
+							r.mChunkCount = in.readInt();
+						} else if (record == RECORD_DONE) {
+							r.mDone = true;
+						} else {
+							break;
+						}
+					}
+				} catch (EOFException e) {
+					// End of the manifest
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Dropping unreadable manifest " + manifest, e);
+			manifest.delete();
+			return null;
+		}
+
+		if (!r.mDone && !r.mTemp.exists()) {
+			// The data is gone, start over
+			r.mChunks.clear();
+		}
+		// Every chunk is full but the last, which is as long as the rest of the file
+		long length = (r.mExpectedSize >= 0) ? r.mExpectedSize : r.mTemp.length();
+		for (int i = r.mChunks.nextSetBit(0); i >= 0; i = r.mChunks.nextSetBit(i + 1)) {
+			r.mReceived += Math.max(0, Math.min(CHUNK_SIZE, length - (long) i * CHUNK_SIZE));
+		}
+		r.mReceivedBefore = r.mReceived;
+		return r;
+	}
+
+	/**
+	 * Delete manifests, and the partial files they describe, not touched
+	 * for maxAgeMillis.
+	 */
+	public static void prune(File dir, File manifests, long maxAgeMillis) {
+		File[] files = manifests.listFiles();
+		if (files == null) return;
+		long oldest = System.currentTimeMillis() - maxAgeMillis;
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (!name.endsWith(MANIFEST_SUFFIX) || files[i].lastModified() >= oldest) continue;
+			try {
+				// Ids are written unsigned, parseLong() would reject half of them
+				long id = new BigInteger(name.substring(0, name.length() - MANIFEST_SUFFIX.length()), 16).longValue();
+				FileReceiver r = resume(dir, manifests, id);
+				if (r != null && !r.mDone) r.mTemp.delete();
+			} catch (NumberFormatException e) {
+				// Not ours
+			}
+			files[i].delete();
+		}
+	}
+
+	private static File manifestFile(File manifests, long id) {
+		return new File(manifests, Long.toHexString(id) + MANIFEST_SUFFIX);
+	}
+
+	private FileReceiver(File dir, File manifests, long id, String author, String name, long expectedSize) {
+		String fileName = new File(name).getName();
+		if (fileName.length() == 0) {
+			fileName = "tmp.txt";
+		}
+		mId = id;
+		mAuthor = author;
+		mTarget = new File(dir, fileName);
+		mTemp = new File(dir, "." + fileName + "." + Long.toHexString(id) + ".part");
+		mManifest = manifestFile(manifests, id);
+		mExpectedSize = expectedSize;
+	}
+
+	public long getId() {
+		return mId;
+	}
+
+	public String getAuthor() {
+		return mAuthor;
+	}
+
+	public String getName() {
+		return mTarget.getName();
+	}
+
+	public synchronized long getReceived() {
+		return mReceived;
+	}
+
+	/**
+	 * @return Bytes received since the transfer was created or resumed
+	 */
+	public synchronized long getReceivedThisRun() {
+		return mReceived - mReceivedBefore;
+	}
+
+	/**
+	 * @return System.nanoTime() when the transfer was created or resumed
+	 */
+	public long getStartedAt() {
+		return mStartedAt;
+	}
+
+	/**
+	 * @return true once the file has been saved
+	 */
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	/**
+	 * @return The number of chunks in the file, from its size if that was
+	 * announced, else from the sender's count; -1 while neither is known
+	 */
+	private int chunkCount() {
+		if (mExpectedSize >= 0) return (int) ((mExpectedSize + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		return mChunkCount;
+	}
+
+	/**
+	 * Write one chunk at its place in the file, unless its checksum is wrong.
+	 * Only the last chunk may be shorter than CHUNK_SIZE; a chunk beyond the
+	 * end of the file or of the wrong length is refused, as far as the size
+	 * or the number of chunks is known. A refused chunk is left out and the
+	 * rest of the transfer goes on.
+	 * @return false if the chunk was damaged or does not belong in the file;
+	 * one that does is asked for again at the end
+	 * @throws IOException if the chunk could not be written to disk
+	 */
+	public synchronized boolean writeChunk(int index, int crc, byte[] buffer, int offset, int length) throws IOException {
+		int count = chunkCount();
+		boolean last = (index == count - 1);
+		if (index < 0 || length > CHUNK_SIZE || (count >= 0 && index >= count)
+				|| (length < CHUNK_SIZE && count >= 0 && !last)
+				|| (last && mExpectedSize >= 0 && length != mExpectedSize - (long) index * CHUNK_SIZE)) {
+			Log.w(TAG, "Bad chunk " + index + " of " + getName() + ", " + length + " bytes");
+			return false;
+		}
+		if (mDone || mChunks.get(index)) return true;
+
+		mCrc.reset();
+		mCrc.update(buffer, offset, length);
+		if ((int) mCrc.getValue() != crc) {
+			Log.w(TAG, "Chunk " + index + " of " + getName() + " is damaged");
+			return false;
+		}
+
+		open();
+		mFile.seek((long) index * CHUNK_SIZE);
+		mFile.write(buffer, offset, length);
+		mLog.writeByte(RECORD_CHUNK);
+		mLog.writeInt(index);
+		mLog.flush();
+		mChunks.set(index);
+		mReceived += length;
+		return true;
+	}
+
+	/**
+	 * The sender says how many chunks the file has.
+	 * @throws IOException if that does not match the size it announced
+	 */
+	public synchronized void setChunkCount(int count) throws IOException {
+		if (count == mChunkCount) return;
+		if (count < 0 || (mExpectedSize >= 0 && count != chunkCount())) {
+			throw new IOException(count + " chunks announced for " + mExpectedSize + " bytes of " + getName());
+		}
+		open();
+		mLog.writeByte(RECORD_COUNT);
+		mLog.writeInt(count);
+		mLog.flush();
+		mChunkCount = count;
+	}
+
+	/**
+	 * @return The chunks still to come as pairs of first index and count;
+	 * a count of TO_END if the number of chunks is not known yet
+	 */
+	public synchronized int[] getMissing() {
+		ArrayList<Integer> ranges = new ArrayList<Integer>();
+		int end = (mChunkCount >= 0) ? mChunkCount : Integer.MAX_VALUE;
+		int i = mChunks.nextClearBit(0);
+		while (i < end) {
+			int next = mChunks.nextSetBit(i);
+			if (next < 0 || next >= end) {
+				ranges.add(i);
+				ranges.add((mChunkCount >= 0) ? end - i : TO_END);
+				break;
+			}
+			ranges.add(i);
+			ranges.add(next - i);
+			i = mChunks.nextClearBit(next);
+		}
+		int[] result = new int[ranges.size()];
+		for (int j = 0; j < result.length; j++) result[j] = ranges.get(j);
+		return result;
+	}
+
+	/**
+	 * @return true once every chunk is in
+	 */
+	public synchronized boolean isComplete() {
+		return mChunkCount >= 0 && mChunks.nextClearBit(0) >= mChunkCount;
+	}
+
+	/**
+	 * Move the temp file to its final name. The manifest is kept, marked
+	 * done, so a sender asking about the transfer later is told so.
+	 * @return The saved file
+	 */
+	public synchronized File finish() throws IOException {
+		close();
+		// Chunks are written at their offsets, so the length is right whatever their order
+		long length = mTemp.length();
+		if (mExpectedSize >= 0 && length != mExpectedSize) {
+			Log.w(TAG, "Received " + length + " bytes of " + mTarget.getName()
+					+ ", expected " + mExpectedSize);
+		}
+		if (!mTemp.renameTo(mTarget)) {
+			mTemp.delete();
+			throw new IOException("Unable to rename " + mTemp + " to " + mTarget);
+		}
+		// Only a file that is there is reported done; open() would make the
+		// temp file again, so the manifest is appended to on its own
+		DataOutputStream log = new DataOutputStream(new FileOutputStream(mManifest, true));
+		try {
+			log.writeByte(RECORD_DONE);
+		} finally {
+			log.close();
+		}
+		mDone = true;
+		return mTarget;
+	}
+
+	/**
+	 * Release the open files; the transfer can be resumed later.
+	 */
+	public synchronized void close() {
+		try {
+			if (mFile != null) mFile.close();
+			if (mLog != null) mLog.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() of " + mTemp + " failed", e);
+		}
+		mFile = null;
+		mLog = null;
+	}
+
+	/**
+	 * Drop a transfer that will not complete.
+	 */
+	public synchronized void abort() {
+		close();
+		mTemp.delete();
+		mManifest.delete();
+	}
+
+	private void open() throws IOException {
+		if (mFile == null) {
+			mFile = new RandomAccessFile(mTemp, "rw");
+			mLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mManifest, true), 64));
+		}
+	}
+}
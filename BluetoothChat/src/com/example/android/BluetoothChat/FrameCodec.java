@@ -0,0 +1,186 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+
+/**
+ * Length-prefixed framing for everything sent over a connection.
+ * A frame is a one byte type, a four byte big-endian link sequence number,
+ * a four byte big-endian payload length and then the payload itself.
+ * Control frames (acknowledgements, the hello, pings, heartbeats) have sequence number 0,
+ * see {@link OutboundQueue}. RFCOMM is free to split and merge
+ * writes, so the receiving side feeds whatever it reads into a
+ * {@link Decoder}, which hands back whole frames only.
+ */
+public class FrameCodec {
+	// Frame types
+	public static final int FRAME_MESSAGE = 1;       // encoded BluetoothMessage, see MessageCodec
+	public static final int FRAME_FILE_START = 2;    // transfer id (long), encoded file header (author, size, name)
+	public static final int FRAME_FILE_DATA = 3;     // transfer id (long), chunk index (int), CRC32 (int), file bytes
+	public static final int FRAME_FILE_END = 4;      // transfer id (long), number of chunks (int)
+	public static final int FRAME_SEQ_MESSAGE = 5;   // hub history sequence number (long), then a message
+	public static final int FRAME_SYNC_REQUEST = 6;  // last history sequence number the client has (long), id of the journal it is from (long)
+	public static final int FRAME_HISTORY = 7;       // journal id (long), then entries: sequence number (long), length (int), message
+	public static final int FRAME_ACK = 8;           // last link sequence number read (int)
+	public static final int FRAME_LINK_HELLO = 9;    // link session (long), peer session (long), last handled (int), capabilities (int)
+	public static final int FRAME_FILE_QUERY = 10;   // transfer id (long), the sender asks what is missing
+	public static final int FRAME_FILE_MISSING = 11; // transfer id (long), then first chunk (int) and count (int) of each missing range
+	public static final int FRAME_FILE_DONE = 12;    // transfer id (long), the receiver has the file or gave up on it
+	public static final int FRAME_PING = 13;         // sender's clock when sent (long, us)
+	public static final int FRAME_PONG = 14;         // the ping's clock, then ours when it was read and when this was sent (longs, us)
+	public static final int FRAME_HEARTBEAT = 15;    // empty, sent when there was nothing else to send for a while
+	public static final int FRAME_SEQ_ECHO = 16;     // hub history sequence number (long) given to a message the peer sent
+
+	// Set in the type of a frame whose payload is DEFLATE compressed, see FrameCompressor
+	public static final int FLAG_COMPRESSED = 0x80;
+
+	// Capabilities announced in the hello
+	public static final int CAP_DEFLATE = 1;
+	public static final int CAP_HEARTBEAT = 2;
+	public static final int HELLO_SIZE = 8 + 8 + 4 + 4;
+	public static final int PING_SIZE = 8;
+	public static final int PONG_SIZE = 8 + 8 + 8;
+
+	public static final int HEADER_SIZE = 9;
+	public static final int MAX_PAYLOAD = 64 * 1024;
+
+	private FrameCodec() {}
+
+	/**
+	 * Receives complete frames from a {@link Decoder}. The payload is only
+	 * valid for the duration of the call; copy it if it has to be kept.
+	 */
+	public interface FrameListener {
+		void onFrame(int type, int seq, byte[] buffer, int offset, int length) throws IOException;
+	}
+
+	/**
+	 * Write a frame header for a payload of the given length.
+	 * @param dst  Destination array, needs HEADER_SIZE bytes from offset
+	 * @param seq  Link sequence number, 0 for a control frame
+	 */
+	public static void writeHeader(byte[] dst, int offset, int type, int seq, int length) {
+		dst[offset] = (byte) type;
+		writeInt(dst, offset + 1, seq);
+		writeInt(dst, offset + 5, length);
+	}
+
+	/**
+	 * Build a complete frame (header and payload) in a new array.
+	 */
+	public static byte[] encode(int type, int seq, byte[] payload, int offset, int length) {
+		byte[] frame = new byte[HEADER_SIZE + length];
+		writeHeader(frame, 0, type, seq, length);
+		System.arraycopy(payload, offset, frame, HEADER_SIZE, length);
+		return frame;
+	}
+
+	public static void writeLong(byte[] dst, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			dst[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	public static long readLong(byte[] src, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (src[offset + i] & 0xff);
+		}
+		return value;
+	}
+
+	public static void writeInt(byte[] dst, int offset, int value) {
+		dst[offset] = (byte) (value >>> 24);
+		dst[offset + 1] = (byte) (value >>> 16);
+		dst[offset + 2] = (byte) (value >>> 8);
+		dst[offset + 3] = (byte) value;
+	}
+
+	public static int readInt(byte[] src, int offset) {
+		return ((src[offset] & 0xff) << 24)
+				| ((src[offset + 1] & 0xff) << 16)
+				| ((src[offset + 2] & 0xff) << 8)
+				| (src[offset + 3] & 0xff);
+	}
+
+	static int readLength(byte[] src, int offset) throws IOException {
+		int length = readInt(src, offset + 5);
+		if (length < 0 || length > MAX_PAYLOAD) {
+			throw new IOException("Bad frame length " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Incremental decoder. Bytes are fed in as they are read from the
+	 * stream; complete frames are dispatched straight out of the read
+	 * buffer when possible and only a partial frame at the end of a read
+	 * is copied aside until the rest of it arrives.
+	 */
+	public static class Decoder {
+		private final FrameListener mListener;
+		private byte[] mPending = new byte[1024];
+		private int mCount;
+
+		public Decoder(FrameListener listener) {
+			mListener = listener;
+		}
+
+		public void feed(byte[] data, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (mCount == 0) {
+					int used = dispatch(data, offset, length);
+					offset += used;
+					length -= used;
+					if (length > 0) {
+						// Less than one frame left, keep it for the next read
+						append(data, offset, length);
+					}
+					return;
+				}
+
+				// Complete the pending frame before anything else
+				int need = (mCount < HEADER_SIZE) ? HEADER_SIZE - mCount
+						: HEADER_SIZE + readLength(mPending, 0) - mCount;
+				int n = Math.min(need, length);
+				append(data, offset, n);
+				offset += n;
+				length -= n;
+
+				if (mCount >= HEADER_SIZE) {
+					int payload = readLength(mPending, 0);
+					if (mCount == HEADER_SIZE + payload) {
+						mCount = 0;
+						mListener.onFrame(mPending[0] & 0xff, readInt(mPending, 1), mPending, HEADER_SIZE, payload);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Dispatch every complete frame in the range.
+		 * @return The number of bytes consumed
+		 */
+		private int dispatch(byte[] data, int offset, int length) throws IOException {
+			int start = offset;
+			while (length >= HEADER_SIZE) {
+				int payload = readLength(data, offset);
+				if (length < HEADER_SIZE + payload) break;
+				mListener.onFrame(data[offset] & 0xff, readInt(data, offset + 1), data, offset + HEADER_SIZE, payload);
+				offset += HEADER_SIZE + payload;
+				length -= HEADER_SIZE + payload;
+			}
+			return offset - start;
+		}
+
+		private void append(byte[] data, int offset, int length) {
+			if (mCount + length > mPending.length) {
+				byte[] grown = new byte[Math.max(mPending.length * 2, mCount + length)];
+				System.arraycopy(mPending, 0, grown, 0, mCount);
+				mPending = grown;
+			}
+			System.arraycopy(data, offset, mPending, mCount, length);
+			mCount += length;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DEFLATE for frame payloads, one instance per connection. The writer
+ * decides frame by frame whether compressing is worth it: control frames
+ * and short payloads are sent as they are, and so is data that looks
+ * compressed already (JPEG, ZIP and the like), which is detected from the
+ * byte entropy of a sample rather than by compressing it for nothing.
+ * A payload is only sent compressed if that makes it smaller.
+ *
+ * Compressed frames have FrameCodec.FLAG_COMPRESSED set in their type.
+ * Compression is only used towards peers that announced CAP_DEFLATE in
+ * their hello.
+ *
+ * compress() is for the writer thread and inflate() for the connection's lane;
+ * the statistics may be read from any thread.
+ */
+public class FrameCompressor {
+	// Payloads shorter than this are not worth the zlib header
+	public static final int MIN_LENGTH = 64;
+	// Payloads at least this long are sampled before compressing
+	private static final int SAMPLE_FROM = 1024;
+	private static final int SAMPLE_SIZE = 512;
+	// Sample entropy, in bits per byte, above which data is taken as compressed
+	private static final double MAX_ENTROPY = 7.2;
+
+	private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	private final Inflater mInflater = new Inflater();
+	private final byte[] mOut = new byte[FrameCodec.MAX_PAYLOAD];
+	private final byte[] mIn = new byte[FrameCodec.MAX_PAYLOAD];
+	private final int[] mHistogram = new int[256];
+
+	// Statistics of the sending side
+	private volatile long mBytesIn;
+	private volatile long mBytesOut;
+	private volatile long mCompressed;
+	private volatile long mSkipped;
+
+	/**
+	 * Compress a frame's payload if that pays off.
+	 * @return The compressed length, the bytes are in {@link #output()};
+	 * or -1 to send the payload as it is
+	 */
+	public int compress(OutboundFrame frame) {
+		int length = frame.length;
+		if (!isCompressible(frame.type) || length < MIN_LENGTH) {
+			return -1;
+		}
+		mBytesIn += length;
+		if (length >= SAMPLE_FROM && entropy(frame.payload, frame.offset, length) > MAX_ENTROPY) {
+			mBytesOut += length;
+			mSkipped++;
+			return -1;
+		}
+
+		mDeflater.reset();
+		mDeflater.setInput(frame.payload, frame.offset, length);
+		mDeflater.finish();
+		int n = 0;
+		while (!mDeflater.finished() && n < length) {
+			n += mDeflater.deflate(mOut, n, Math.min(mOut.length, length) - n);
+		}
+		if (!mDeflater.finished() || n >= length) {
+			// Did not get smaller
+			mBytesOut += length;
+			mSkipped++;
+			return -1;
+		}
+		mBytesOut += n;
+		mCompressed++;
+		return n;
+	}
+
+	/**
+	 * @return The buffer holding the last compressed payload, valid until the next compress()
+	 */
+	public byte[] output() {
+		return mOut;
+	}
+
+	/**
+	 * Inflate a payload received with FLAG_COMPRESSED.
+	 * @return The inflated length, the bytes are in {@link #input()}
+	 */
+	public int inflate(byte[] buffer, int offset, int length) throws IOException {
+		mInflater.reset();
+		mInflater.setInput(buffer, offset, length);
+		try {
+			int n = mInflater.inflate(mIn);
+			if (!mInflater.finished()) {
+				throw new IOException("Compressed frame too large or truncated");
+			}
+			return n;
+		} catch (DataFormatException e) {
+			throw new IOException("Bad compressed frame: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return The buffer holding the last inflated payload, valid until the next inflate()
+	 */
+	public byte[] input() {
+		return mIn;
+	}
+
+	/**
+	 * Free the compressor, once the writer is done with it.
+	 */
+	public void endCompress() {
+		mDeflater.end();
+	}
+
+	/**
+	 * Free the decompressor, once the reader is done with it.
+	 */
+	public void endInflate() {
+		mInflater.end();
+	}
+
+	/**
+	 * @return Payload bytes of the frames considered for compression
+	 */
+	public long getBytesIn() {
+		return mBytesIn;
+	}
+
+	/**
+	 * @return What those frames took on the wire
+	 */
+	public long getBytesOut() {
+		return mBytesOut;
+	}
+
+	public long getBytesSaved() {
+		return mBytesIn - mBytesOut;
+	}
+
+	public long getFramesCompressed() {
+		return mCompressed;
+	}
+
+	/**
+	 * @return Frames sent as they were because they would not compress
+	 */
+	public long getFramesSkipped() {
+		return mSkipped;
+	}
+
+	private static boolean isCompressible(int type) {
+		switch (type) {
+		case FrameCodec.FRAME_MESSAGE:
+		case FrameCodec.FRAME_SEQ_MESSAGE:
+		case FrameCodec.FRAME_HISTORY:
+		case FrameCodec.FRAME_FILE_START:
+		case FrameCodec.FRAME_FILE_DATA:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Shannon entropy of an evenly spread sample of the range, in bits per
+	 * byte. Text comes out around 4 to 5, compressed data close to 8.
+	 */
+	double entropy(byte[] data, int offset, int length) {
+		int[] histogram = mHistogram;
+		for (int i = 0; i < 256; i++) histogram[i] = 0;
+		int step = Math.max(1, length / SAMPLE_SIZE);
+		int count = 0;
+		for (int i = 0; i < length; i += step) {
+			histogram[data[offset + i] & 0xff]++;
+			count++;
+		}
+		double entropy = 0;
+		for (int i = 0; i < 256; i++) {
+			if (histogram[i] == 0) continue;
+			double p = (double) histogram[i] / count;
+			entropy -= p * Math.log(p);
+		}
+		return entropy / Math.log(2);
+	}
+}
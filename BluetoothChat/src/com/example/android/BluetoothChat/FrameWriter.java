@@ -0,0 +1,75 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the frames taken from a peer's {@link OutboundQueue} to its
+ * stream, for the connection's writer thread. Payloads are compressed
+ * here, per frame, once the peer has agreed to it. Every frame waits for
+ * its turn on the radio from the {@link EgressScheduler}, and what is
+ * buffered is flushed before waiting; any other flushing is up to the
+ * caller.
+ *
+ * Not thread safe: it belongs to the one thread that takes from the queue.
+ */
+public class FrameWriter {
+	private final OutputStream mOut;
+	private final OutboundQueue mQueue;
+	private final FrameCompressor mCompressor;
+	private final EgressScheduler mEgress;
+	private final EgressScheduler.Flow mFlow;
+	private final ChatMetrics.Peer mMetrics;
+	private final byte[] mHeader = new byte[FrameCodec.HEADER_SIZE];
+
+	/**
+	 * @param out  Buffered, so a burst of small frames goes out in few writes
+	 * @param compressor  The connection's, shared with its reader
+	 */
+	public FrameWriter(OutputStream out, OutboundQueue queue, FrameCompressor compressor,
+			EgressScheduler egress, EgressScheduler.Flow flow, ChatMetrics.Peer metrics) {
+		mOut = out;
+		mQueue = queue;
+		mCompressor = compressor;
+		mEgress = egress;
+		mFlow = flow;
+		mMetrics = metrics;
+	}
+
+	/**
+	 * Write a frame just taken from the queue, under the sequence number
+	 * it was taken with. The taker's reference to it goes whether or not
+	 * it is written.
+	 * @return false if the flow was closed while the frame waited its
+	 * turn; it is not written
+	 */
+	public boolean write(OutboundFrame frame) throws IOException, InterruptedException {
+		int size;
+		try {
+			int compressed = -1;
+			if ((mQueue.getCapabilities() & FrameCodec.CAP_DEFLATE) != 0) {
+				compressed = mCompressor.compress(frame);
+			}
+			int cls = (frame.stream == OutboundFrame.CHAT_STREAM) ? EgressScheduler.INTERACTIVE : EgressScheduler.BULK;
+			size = FrameCodec.HEADER_SIZE + ((compressed >= 0) ? compressed : frame.length);
+			if (!mEgress.tryAcquire(mFlow, cls, size)) {
+				mOut.flush();
+				if (!mEgress.acquire(mFlow, cls, size)) return false;
+			}
+			if (compressed >= 0) {
+				FrameCodec.writeHeader(mHeader, 0, frame.type | FrameCodec.FLAG_COMPRESSED, mQueue.takenSeq(), compressed);
+				mOut.write(mHeader);
+				mOut.write(mCompressor.output(), 0, compressed);
+			} else {
+				FrameCodec.writeHeader(mHeader, 0, frame.type, mQueue.takenSeq(), frame.length);
+				mOut.write(mHeader);
+				mOut.write(frame.payload, frame.offset, frame.length);
+			}
+		} finally {
+			frame.release();
+		}
+		mMetrics.framesOut.incrementAndGet();
+		mMetrics.bytesOut.addAndGet(size);
+		return true;
+	}
+}
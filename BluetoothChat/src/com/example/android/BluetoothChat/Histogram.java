@@ -0,0 +1,105 @@
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values with log-linear buckets, in the way of
+ * HdrHistogram: values below 2^SUB_BITS are counted exactly, larger ones
+ * in buckets a fixed fraction of their value wide, so every value from a
+ * microsecond to days is kept to within about 6% in a fixed 8 KB.
+ *
+ * record() takes no lock and allocates nothing, so it can be called from
+ * the read and write paths; readers see a consistent enough picture for
+ * monitoring, not an atomic snapshot.
+ */
+public class Histogram {
+	// Buckets per power of two are 2^(SUB_BITS - 1)
+	private static final int SUB_BITS = 5;
+	private static final int HALF = 1 << (SUB_BITS - 1);
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	/**
+	 * Count a value; negative values are counted as 0.
+	 */
+	public void record(long value) {
+		if (value < 0) value = 0;
+		mCounts.incrementAndGet(bucket(value));
+		mCount.incrementAndGet();
+		mSum.addAndGet(value);
+		long max;
+		while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+			// Lost a race with another writer, look again
+		}
+	}
+
+	private static int bucket(long value) {
+		if (value < 2 * HALF) return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return (shift + 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	/**
+	 * @return The largest value that falls in the bucket
+	 */
+	private static long highest(int bucket) {
+		if (bucket < 2 * HALF) return bucket;
+		int shift = bucket / HALF - 1;
+		long low = (long) (bucket % HALF + HALF) << shift;
+		return low + (1L << shift) - 1;
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	public long getMean() {
+		long count = mCount.get();
+		return (count == 0) ? 0 : mSum.get() / count;
+	}
+
+	/**
+	 * @param percentile  From 0 to 100
+	 * @return The value that percentile of the recorded values are at or
+	 * below, to the bucket's precision; 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long count = mCount.get();
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mCounts.get(i);
+			if (seen >= rank) return Math.min(highest(i), mMax.get());
+		}
+		return mMax.get();
+	}
+
+	/**
+	 * Append count, mean, median, 90th, 99th percentile and maximum.
+	 */
+	public void appendTo(StringBuilder sb) {
+		sb.append("n=").append(getCount())
+				.append(" mean=").append(getMean())
+				.append(" p50=").append(getPercentile(50))
+				.append(" p90=").append(getPercentile(90))
+				.append(" p99=").append(getPercentile(99))
+				.append(" max=").append(getMax());
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) mCounts.set(i, 0);
+		mCount.set(0);
+		mSum.set(0);
+		mMax.set(0);
+	}
+}
@@ -0,0 +1,348 @@
+package com.example.android.BluetoothChat;
+
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary encoding of a {@link BluetoothMessage}.
+ *
+ * <pre>
+ * version   1 byte, SCHEMA_VERSION
+ * type      1 byte, BluetoothMessage.TYPE_*
+ * fields    tag byte, varint length, value; repeated to the end
+ * </pre>
+ *
+ * Text fields are UTF-8, the others 8 byte big-endian numbers. Timestamps
+ * are microseconds of the stamping device's monotonic clock (see
+ * {@link ChatMetrics#now()}) and only mean something next to that device's
+ * clock offset; fields that are 0 are not sent.
+ *
+ * Decoders skip fields with tags they do not know, so fields can be added
+ * without a version bump. Payloads that start with '{' are the JSON sent
+ * by older peers and go through the JSON decoder instead.
+ *
+ * An instance keeps its output buffer between calls and is not thread safe.
+ */
+public class MessageCodec {
+	public static final int SCHEMA_VERSION = 1;
+
+	// Field tags
+	static final int FIELD_AUTHOR = 1;
+	static final int FIELD_DATE = 2;
+	static final int FIELD_TEXT = 3;
+	static final int FIELD_ID = 4;          // message id, from the sender
+	static final int FIELD_SENT_AT = 5;     // sender's clock when sent
+	static final int FIELD_RELAYED_AT = 6;  // hub's clock when relayed
+	static final int FIELD_UPLINK = 7;      // us from sending to being relayed, -1 if the hub could not tell
+
+	// What the hub adds to a message it relays, see appendTrace()
+	public static final int TRACE_SIZE = 2 * (1 + 1 + 8);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private byte[] mBuffer = new byte[256];
+	private int mLength;
+
+	/**
+	 * Encode a message into this codec's buffer.
+	 * @return The encoded length
+	 * @see #buffer()
+	 */
+	public int encode(BluetoothMessage m) {
+		mLength = 0;
+		ensure(2);
+		mBuffer[mLength++] = (byte) SCHEMA_VERSION;
+		mBuffer[mLength++] = (byte) m.type;
+		writeField(FIELD_AUTHOR, m.author);
+		writeField(FIELD_DATE, m.date);
+		writeField(FIELD_TEXT, m.text);
+		writeField(FIELD_ID, m.id);
+		writeField(FIELD_SENT_AT, m.sentAt);
+		writeField(FIELD_RELAYED_AT, m.relayedAt);
+		writeField(FIELD_UPLINK, m.uplink);
+		return mLength;
+	}
+
+	/**
+	 * @return The buffer holding the last encoded message, valid until the next encode()
+	 */
+	public byte[] buffer() {
+		return mBuffer;
+	}
+
+	/**
+	 * Encode a message into a new array of exactly its length.
+	 */
+	public byte[] toBytes(BluetoothMessage m) {
+		int length = encode(m);
+		byte[] bytes = new byte[length];
+		System.arraycopy(mBuffer, 0, bytes, 0, length);
+		return bytes;
+	}
+
+	private void writeField(int tag, String value) {
+		if (value == null) return;
+		int utf8 = utf8Length(value);
+		ensure(1 + 5 + utf8);
+		mBuffer[mLength++] = (byte) tag;
+		writeVarint(utf8);
+		writeUtf8(value);
+	}
+
+	private void writeField(int tag, long value) {
+		if (value == 0) return;
+		ensure(1 + 1 + 8);
+		mLength = writeLongField(mBuffer, mLength, tag, value);
+	}
+
+	private static int writeLongField(byte[] dst, int offset, int tag, long value) {
+		dst[offset] = (byte) tag;
+		dst[offset + 1] = 8;
+		FrameCodec.writeLong(dst, offset + 2, value);
+		return offset + 2 + 8;
+	}
+
+	/**
+	 * Hub side: add when a message is relayed, and how long it took to get
+	 * here, to an encoded message, so its receivers can tell the two hops
+	 * apart. Only messages in the binary encoding can take them.
+	 * @param dst  Has TRACE_SIZE bytes free from offset, right after the message
+	 * @return The number of bytes written
+	 */
+	public static int appendTrace(byte[] dst, int offset, long relayedAt, long uplink) {
+		int p = writeLongField(dst, offset, FIELD_RELAYED_AT, relayedAt);
+		p = writeLongField(dst, p, FIELD_UPLINK, uplink);
+		return p - offset;
+	}
+
+	/**
+	 * @return The sender's timestamp of an encoded message, 0 if it has none,
+	 * without decoding the rest of it
+	 */
+	public static long sentAt(byte[] buffer, int offset, int length) {
+		if (length < 2 || buffer[offset] != SCHEMA_VERSION) return 0;
+		int p = offset + 2;
+		int end = offset + length;
+		while (p < end) {
+			int tag = buffer[p] & 0xff;
+			long field = readField(buffer, p, end);
+			if (field < 0) return 0;
+			p = (int) (field >>> 32);
+			int size = (int) field;
+			if (tag == FIELD_SENT_AT && size == 8) return FrameCodec.readLong(buffer, p);
+			p += size;
+		}
+		return 0;
+	}
+
+	private void writeVarint(int value) {
+		while ((value & ~0x7f) != 0) {
+			mBuffer[mLength++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		mBuffer[mLength++] = (byte) value;
+	}
+
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	private void writeUtf8(String s) {
+		byte[] b = mBuffer;
+		int p = mLength;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				b[p++] = (byte) c;
+			} else if (c < 0x800) {
+				b[p++] = (byte) (0xc0 | (c >> 6));
+				b[p++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				b[p++] = (byte) (0xf0 | (cp >> 18));
+				b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				b[p++] = (byte) (0x80 | (cp & 0x3f));
+			} else {
+				// The rest of the BMP, unpaired surrogates included
+				b[p++] = (byte) (0xe0 | (c >> 12));
+				b[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				b[p++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		mLength = p;
+	}
+
+	private void ensure(int extra) {
+		if (mLength + extra > mBuffer.length) {
+			byte[] grown = new byte[Math.max(mBuffer.length * 2, mLength + extra)];
+			System.arraycopy(mBuffer, 0, grown, 0, mLength);
+			mBuffer = grown;
+		}
+	}
+
+	/**
+	 * Read the tag and length of the field of a binary message at p; the
+	 * tag is the byte at p. Every reader of the fields goes through here,
+	 * so they all reject the same malformed input.
+	 * @param end  The end of the message
+	 * @return The offset of the field's value in the high 32 bits and its
+	 * length in the low ones, or -1 if the field is cut short or runs past end
+	 */
+	static long readField(byte[] buffer, int p, int end) {
+		p++;
+		int size = 0;
+		int shift = 0;
+		while (true) {
+			if (p >= end || shift > 28) return -1;
+			int b = buffer[p++];
+			size |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) break;
+			shift += 7;
+		}
+		if (size < 0 || size > end - p) return -1;
+		return ((long) p << 32) | size;
+	}
+
+	/**
+	 * Where the fields of a binary message lie, as read by readFields():
+	 * the text fields as offsets into the message's bytes, -1 if absent,
+	 * and the values of the numeric ones, 0 if absent. {@link MessageView}
+	 * is one, so wrapping and copying a view is one object each.
+	 */
+	static class Fields {
+		int authorAt = -1;
+		int authorLength;
+		int dateAt = -1;
+		int dateLength;
+		int textAt = -1;
+		int textLength;
+		long id;
+		long sentAt;
+		long relayedAt;
+		long uplink;
+
+		void reset() {
+			authorAt = -1;
+			dateAt = -1;
+			textAt = -1;
+			authorLength = 0;
+			dateLength = 0;
+			textLength = 0;
+			id = 0;
+			sentAt = 0;
+			relayedAt = 0;
+			uplink = 0;
+		}
+
+		/**
+		 * Take the fields of another message whose bytes have moved by delta.
+		 */
+		void set(Fields from, int delta) {
+			authorAt = (from.authorAt < 0) ? -1 : from.authorAt + delta;
+			dateAt = (from.dateAt < 0) ? -1 : from.dateAt + delta;
+			textAt = (from.textAt < 0) ? -1 : from.textAt + delta;
+			authorLength = from.authorLength;
+			dateLength = from.dateLength;
+			textLength = from.textLength;
+			id = from.id;
+			sentAt = from.sentAt;
+			relayedAt = from.relayedAt;
+			uplink = from.uplink;
+		}
+	}
+
+	/**
+	 * Decode a message in either the binary or the old JSON encoding.
+	 * @return The message, or null if the bytes are not a message; malformed
+	 * input is detected without throwing
+	 */
+	public static BluetoothMessage decode(byte[] buffer, int offset, int length) {
+		if (length < 2) return null;
+		if (buffer[offset] == '{') {
+			BluetoothMessage m = new BluetoothMessage(new String(buffer, offset, length, UTF_8));
+			return (m.type == BluetoothMessage.TYPE_BYTES) ? null : m;
+		}
+		if (buffer[offset] != SCHEMA_VERSION) return null;
+		return toMessage(buffer, offset, length);
+	}
+
+	/**
+	 * Decode the fields of a binary message. Kept out of decode() so that
+	 * stays small enough to be inlined, which makes rejecting bytes that
+	 * are not a message nearly free.
+	 */
+	private static BluetoothMessage toMessage(byte[] buffer, int offset, int length) {
+		Fields f = new Fields();
+		if (!readFields(f, buffer, offset + 2, offset + length)) return null;
+		BluetoothMessage m = new BluetoothMessage(null, null, null, buffer[offset + 1] & 0xff);
+		if (f.authorAt >= 0) m.author = new String(buffer, f.authorAt, f.authorLength, UTF_8);
+		if (f.dateAt >= 0) m.date = new String(buffer, f.dateAt, f.dateLength, UTF_8);
+		if (f.textAt >= 0) m.text = new String(buffer, f.textAt, f.textLength, UTF_8);
+		m.id = f.id;
+		m.sentAt = f.sentAt;
+		m.relayedAt = f.relayedAt;
+		m.uplink = f.uplink;
+		return m;
+	}
+
+	/**
+	 * Read the fields of a binary message, from p to end, into f, which
+	 * should be reset. Nothing is copied. decode() and {@link MessageView}
+	 * both read messages through here.
+	 * @return false if the fields are malformed
+	 */
+	static boolean readFields(Fields f, byte[] buffer, int p, int end) {
+		while (p < end) {
+			int tag = buffer[p] & 0xff;
+			long field = readField(buffer, p, end);
+			if (field < 0) return false;
+			p = (int) (field >>> 32);
+			int size = (int) field;
+
+			switch (tag) {
+			case FIELD_AUTHOR:
+				f.authorAt = p;
+				f.authorLength = size;
+				break;
+			case FIELD_DATE:
+				f.dateAt = p;
+				f.dateLength = size;
+				break;
+			case FIELD_TEXT:
+				f.textAt = p;
+				f.textLength = size;
+				break;
+			case FIELD_ID:
+				if (size == 8) f.id = FrameCodec.readLong(buffer, p);
+				break;
+			case FIELD_SENT_AT:
+				if (size == 8) f.sentAt = FrameCodec.readLong(buffer, p);
+				break;
+			case FIELD_RELAYED_AT:
+				if (size == 8) f.relayedAt = FrameCodec.readLong(buffer, p);
+				break;
+			case FIELD_UPLINK:
+				if (size == 8) f.uplink = FrameCodec.readLong(buffer, p);
+				break;
+			default:
+				// A field from a newer schema, skip it
+			}
+			p += size;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,443 @@
+package com.example.android.BluetoothChat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import android.util.Log;
+
+/**
+ * Append-only, segmented log of chat messages on local storage.
+ *
+ * Every record gets the next sequence number and is appended to the
+ * active segment file; once that passes the segment size a new one is
+ * started, named after its first sequence number. Each segment has a
+ * sparse index, one entry per INDEX_INTERVAL records, so a read seeks
+ * close to the wanted record and scans forward from there. Whole
+ * segments are deleted, oldest first, once the log is over its size or
+ * age limit.
+ *
+ * The journal has a random id, kept with it, that stays the same for as
+ * long as its sequence numbers go on; one that starts out empty, because
+ * it is new or was wiped, gets a new id, so a reader holding a sequence
+ * number can tell it is from another journal.
+ *
+ * Record layout: payload length (int), sequence number (long), payload.
+ */
+public class MessageJournal {
+	private static final String TAG = "MessageJournal";
+
+	private static final String LOG_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String ID_FILE = "id";
+	private static final int RECORD_HEADER = 4 + 8;
+	private static final int INDEX_INTERVAL = 64;
+
+	public static final long DEFAULT_SEGMENT_BYTES = 256 * 1024;
+	public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+	public static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * One record read back from the journal.
+	 */
+	public static class Entry {
+		public final long seq;
+		public final byte[] payload;
+
+		Entry(long seq, byte[] payload) {
+			this.seq = seq;
+			this.payload = payload;
+		}
+	}
+
+	private static class Segment {
+		final long baseSeq;
+		final File log;
+		final File index;
+		long size;
+		long lastSeq;
+
+		// Sparse index: position in the log of every INDEX_INTERVAL-th record
+		long[] indexSeq = new long[16];
+		long[] indexPos = new long[16];
+		int indexCount;
+
+		Segment(File dir, long baseSeq) {
+			this.baseSeq = baseSeq;
+			this.lastSeq = baseSeq - 1;
+			String name = String.format(Locale.US, "%020d", baseSeq);
+			log = new File(dir, name + LOG_SUFFIX);
+			index = new File(dir, name + INDEX_SUFFIX);
+		}
+
+		void addIndex(long seq, long pos) {
+			if (indexCount == indexSeq.length) {
+				indexSeq = Arrays.copyOf(indexSeq, indexCount * 2);
+				indexPos = Arrays.copyOf(indexPos, indexCount * 2);
+			}
+			indexSeq[indexCount] = seq;
+			indexPos[indexCount] = pos;
+			indexCount++;
+		}
+
+		/**
+		 * @return The position of the last indexed record at or before seq
+		 */
+		long floorPosition(long seq) {
+			int i = Arrays.binarySearch(indexSeq, 0, indexCount, seq);
+			if (i < 0) i = -i - 2;
+			return (i < 0) ? 0 : indexPos[i];
+		}
+	}
+
+	private final File mDir;
+	private final long mId;
+	private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+	private DataOutputStream mOut;
+	private DataOutputStream mIndexOut;
+	private long mNextSeq = 1;
+	private boolean mClosed;
+
+	private long mSegmentBytes = DEFAULT_SEGMENT_BYTES;
+	private long mMaxBytes = DEFAULT_MAX_BYTES;
+	private long mMaxAge = DEFAULT_MAX_AGE;
+
+	/**
+	 * Open the journal in a directory, creating it if needed. A record
+	 * torn by a crash at the end of the last segment is cut off.
+	 */
+	public MessageJournal(File dir) throws IOException {
+		mDir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create " + dir);
+		}
+
+		String[] names = dir.list();
+		long[] bases = new long[names.length];
+		int count = 0;
+		for (int i = 0; i < names.length; i++) {
+			if (!names[i].endsWith(LOG_SUFFIX)) continue;
+			try {
+				bases[count++] = Long.parseLong(names[i].substring(0, names[i].length() - LOG_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				count--;
+			}
+		}
+		Arrays.sort(bases, 0, count);
+
+		for (int i = 0; i < count; i++) {
+			Segment s = new Segment(dir, bases[i]);
+			boolean last = (i == count - 1);
+			if (last || !loadIndex(s)) {
+				scan(s);
+			}
+			mSegments.add(s);
+		}
+
+		if (mSegments.isEmpty()) {
+			mSegments.add(new Segment(dir, 1));
+		} else {
+			mNextSeq = mSegments.get(mSegments.size() - 1).lastSeq + 1;
+		}
+		mId = loadId(mNextSeq == 1);
+		openActive();
+		enforceRetention();
+	}
+
+	/**
+	 * Set the size and age limits. Whole segments are removed, so the log
+	 * may briefly hold up to one segment more than maxBytes.
+	 * @param maxBytes  Total size of the log files
+	 * @param maxAgeMillis  Age after which a segment's records are dropped
+	 */
+	public synchronized void setRetention(long maxBytes, long maxAgeMillis) {
+		mMaxBytes = maxBytes;
+		mMaxAge = maxAgeMillis;
+		enforceRetention();
+	}
+
+	/**
+	 * @return The journal's id, see the class comment; never 0
+	 */
+	public long getId() {
+		return mId;
+	}
+
+	/**
+	 * @return The sequence number of the oldest record still kept
+	 */
+	public synchronized long getFirstSeq() {
+		return mSegments.get(0).baseSeq;
+	}
+
+	/**
+	 * @return The sequence number the next record will get
+	 */
+	public synchronized long getNextSeq() {
+		return mNextSeq;
+	}
+
+	/**
+	 * Append a record.
+	 * @return Its sequence number
+	 */
+	public synchronized long append(byte[] payload, int offset, int length) throws IOException {
+		if (mClosed) throw new IOException("Journal closed");
+		Segment active = mSegments.get(mSegments.size() - 1);
+		if (active.size >= mSegmentBytes) {
+			roll();
+			active = mSegments.get(mSegments.size() - 1);
+		}
+
+		long seq = mNextSeq;
+		if ((seq - active.baseSeq) % INDEX_INTERVAL == 0) {
+			active.addIndex(seq, active.size);
+			mIndexOut.writeLong(seq);
+			mIndexOut.writeLong(active.size);
+			mIndexOut.flush();
+		}
+		mOut.writeInt(length);
+		mOut.writeLong(seq);
+		mOut.write(payload, offset, length);
+		mOut.flush();
+
+		active.size += RECORD_HEADER + length;
+		active.lastSeq = seq;
+		mNextSeq = seq + 1;
+		return seq;
+	}
+
+	/**
+	 * Read up to max records, in order, starting at the first record kept
+	 * with a sequence number of at least fromSeq.
+	 * @return The records, empty once the end of the log is reached
+	 */
+	public synchronized ArrayList<Entry> read(long fromSeq, int max) throws IOException {
+		ArrayList<Entry> batch = new ArrayList<Entry>();
+
+		// The segment holding fromSeq, or the first one if it is gone
+		int first = 0;
+		for (int i = mSegments.size() - 1; i > 0; i--) {
+			if (mSegments.get(i).baseSeq <= fromSeq) {
+				first = i;
+				break;
+			}
+		}
+
+		for (int i = first; i < mSegments.size() && batch.size() < max; i++) {
+			Segment s = mSegments.get(i);
+			if (s.lastSeq < fromSeq) continue;
+
+			long pos = s.floorPosition(fromSeq);
+			FileInputStream fis = new FileInputStream(s.log);
+			try {
+				fis.getChannel().position(pos);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+				while (pos < s.size && batch.size() < max) {
+					int length = in.readInt();
+					long seq = in.readLong();
+					if (seq >= fromSeq) {
+						byte[] payload = new byte[length];
+						in.readFully(payload);
+						batch.add(new Entry(seq, payload));
+					} else {
+						skipFully(in, length);
+					}
+					pos += RECORD_HEADER + length;
+				}
+			} finally {
+				fis.close();
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Close the files; records appended afterwards are refused, those
+	 * written can still be read.
+	 */
+	public synchronized void close() {
+		if (mClosed) return;
+		mClosed = true;
+		try {
+			mOut.close();
+			mIndexOut.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() failed", e);
+		}
+	}
+
+	private void roll() throws IOException {
+		mOut.close();
+		mIndexOut.close();
+		mSegments.add(new Segment(mDir, mNextSeq));
+		openActive();
+		enforceRetention();
+	}
+
+	private void openActive() throws IOException {
+		Segment active = mSegments.get(mSegments.size() - 1);
+		mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(active.log, true)));
+		mIndexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(active.index, true)));
+	}
+
+	private void enforceRetention() {
+		long total = 0;
+		for (int i = 0; i < mSegments.size(); i++) {
+			total += mSegments.get(i).size;
+		}
+
+		long oldest = System.currentTimeMillis() - mMaxAge;
+		while (mSegments.size() > 1) {
+			Segment s = mSegments.get(0);
+			if (total <= mMaxBytes && s.log.lastModified() >= oldest) break;
+			s.log.delete();
+			s.index.delete();
+			mSegments.remove(0);
+			total -= s.size;
+		}
+	}
+
+	/**
+	 * Read the journal's id, or make up a new one if it is empty or the id
+	 * cannot be read.
+	 */
+	private long loadId(boolean empty) throws IOException {
+		File file = new File(mDir, ID_FILE);
+		if (!empty && file.length() == 8) {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				long id = in.readLong();
+				if (id != 0) return id;
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to read " + file + ", starting a new id", e);
+			} finally {
+				in.close();
+			}
+		}
+
+		long id;
+		do {
+			id = new Random().nextLong();
+		} while (id == 0);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeLong(id);
+		} finally {
+			out.close();
+		}
+		return id;
+	}
+
+	private static void skipFully(DataInputStream in, int n) throws IOException {
+		while (n > 0) {
+			int skipped = in.skipBytes(n);
+			if (skipped <= 0) throw new EOFException();
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * Load the index of a sealed segment.
+	 * @return false if it is missing or does not match the log
+	 */
+	private boolean loadIndex(Segment s) {
+		if (!s.index.exists()) return false;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s.index)));
+			try {
+				long entries = s.index.length() / 16;
+				for (long i = 0; i < entries; i++) {
+					s.addIndex(in.readLong(), in.readLong());
+				}
+			} finally {
+				in.close();
+			}
+
+			// Only the tail after the last indexed record needs reading
+			s.size = s.log.length();
+			long pos = (s.indexCount > 0) ? s.indexPos[s.indexCount - 1] : 0;
+			long seq = (s.indexCount > 0) ? s.indexSeq[s.indexCount - 1] - 1 : s.baseSeq - 1;
+			RandomAccessFile raf = new RandomAccessFile(s.log, "r");
+			try {
+				while (pos + RECORD_HEADER <= s.size) {
+					raf.seek(pos);
+					int length = raf.readInt();
+					seq = raf.readLong();
+					pos += RECORD_HEADER + length;
+				}
+			} finally {
+				raf.close();
+			}
+			if (pos != s.size) return false;
+			s.lastSeq = seq;
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Rebuilding index of " + s.log, e);
+			s.indexCount = 0;
+			return false;
+		}
+	}
+
+	/**
+	 * Rebuild a segment's index by reading the whole log, cutting off a
+	 * record that was only partly written.
+	 */
+	private void scan(Segment s) throws IOException {
+		s.indexCount = 0;
+		long length = s.log.length();
+		long pos = 0;
+		long seq = s.baseSeq - 1;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s.log)));
+		try {
+			while (pos + RECORD_HEADER <= length) {
+				int size = in.readInt();
+				long next = in.readLong();
+				if (size < 0 || pos + RECORD_HEADER + size > length || next != seq + 1) break;
+				skipFully(in, size);
+				if ((next - s.baseSeq) % INDEX_INTERVAL == 0) s.addIndex(next, pos);
+				seq = next;
+				pos += RECORD_HEADER + size;
+			}
+		} catch (EOFException e) {
+			// Torn record, cut below
+		} finally {
+			in.close();
+		}
+
+		if (pos != length) {
+			Log.w(TAG, "Truncating " + s.log + " from " + length + " to " + pos);
+			RandomAccessFile raf = new RandomAccessFile(s.log, "rw");
+			try {
+				raf.setLength(pos);
+			} finally {
+				raf.close();
+			}
+		}
+		s.size = pos;
+		s.lastSeq = seq;
+
+		// Rewrite the index to match
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(s.index)));
+		try {
+			for (int i = 0; i < s.indexCount; i++) {
+				out.writeLong(s.indexSeq[i]);
+				out.writeLong(s.indexPos[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.example.android.BluetoothChat;
+
+import java.nio.charset.Charset;
+
+/**
+ * A chat message read in place from its encoded bytes, see
+ * {@link MessageCodec}. Wrapping reads the type and the numeric fields and
+ * notes where the text fields are; author, date and text are only turned
+ * into Strings when asked for, so a message that is just forwarded or
+ * stored is never decoded.
+ *
+ * A view may be wrapped around one message after another. It refers to
+ * the bytes it was wrapped around, which must not change while it is in
+ * use; copy() gives a view of its own to hand to another thread. Messages
+ * in the JSON encoding of older peers are decoded in full when wrapped.
+ *
+ * Not thread safe.
+ */
+public class MessageView extends MessageCodec.Fields {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private byte[] mBuffer;
+	private int mOffset;
+	private int mLength;
+
+	private int mType;
+
+	// Text fields decoded so far
+	private String mAuthor;
+	private String mDate;
+	private String mText;
+
+	/**
+	 * @return A new view of the message, or null if the bytes are not one
+	 */
+	public static MessageView of(byte[] buffer, int offset, int length) {
+		MessageView view = new MessageView();
+		return view.wrap(buffer, offset, length) ? view : null;
+	}
+
+	/**
+	 * Read the header of an encoded message; nothing is copied.
+	 * @return false if the bytes are not a message, the view is then empty
+	 */
+	public boolean wrap(byte[] buffer, int offset, int length) {
+		clear();
+		if (length < 2) return false;
+		if (buffer[offset] == '{') {
+			BluetoothMessage m = MessageCodec.decode(buffer, offset, length);
+			if (m == null) return false;
+			mType = m.type;
+			mAuthor = m.author;
+			mDate = m.date;
+			mText = m.text;
+			return true;
+		}
+		if (buffer[offset] != MessageCodec.SCHEMA_VERSION) return false;
+
+		mType = buffer[offset + 1] & 0xff;
+		if (!MessageCodec.readFields(this, buffer, offset + 2, offset + length)) return clear();
+		mBuffer = buffer;
+		mOffset = offset;
+		mLength = length;
+		return true;
+	}
+
+	/**
+	 * @return false, for wrap() to give up with
+	 */
+	private boolean clear() {
+		mBuffer = null;
+		mAuthor = null;
+		mDate = null;
+		mText = null;
+		reset();
+		return false;
+	}
+
+	/**
+	 * @return A view of the same message over a copy of its bytes, with
+	 * what was decoded so far
+	 */
+	public MessageView copy() {
+		MessageView view = new MessageView();
+		view.mType = mType;
+		view.mAuthor = mAuthor;
+		view.mDate = mDate;
+		view.mText = mText;
+		if (mBuffer != null) {
+			byte[] bytes = new byte[mLength];
+			System.arraycopy(mBuffer, mOffset, bytes, 0, mLength);
+			view.mBuffer = bytes;
+			view.mOffset = 0;
+			view.mLength = mLength;
+		}
+		view.set(this, -mOffset);
+		return view;
+	}
+
+	/**
+	 * @return BluetoothMessage.TYPE_*
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	public boolean isText() {
+		return mType == BluetoothMessage.TYPE_TEXT;
+	}
+
+	/**
+	 * @return The sender's message id, 0 if it has none
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return The sender's clock when it sent the message, 0 if not stamped
+	 */
+	public long getSentAt() {
+		return sentAt;
+	}
+
+	/**
+	 * @return The hub's clock when it relayed the message, 0 if not relayed
+	 */
+	public long getRelayedAt() {
+		return relayedAt;
+	}
+
+	/**
+	 * @return Microseconds from sending to being relayed, -1 if the hub
+	 * could not tell
+	 */
+	public long getUplink() {
+		return uplink;
+	}
+
+	public String getAuthor() {
+		if (mAuthor == null && authorAt >= 0) mAuthor = new String(mBuffer, authorAt, authorLength, UTF_8);
+		return mAuthor;
+	}
+
+	public String getDate() {
+		if (mDate == null && dateAt >= 0) mDate = new String(mBuffer, dateAt, dateLength, UTF_8);
+		return mDate;
+	}
+
+	public String getText() {
+		if (mText == null && textAt >= 0) mText = new String(mBuffer, textAt, textLength, UTF_8);
+		return mText;
+	}
+}
@@ -0,0 +1,80 @@
+package com.example.android.BluetoothChat;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A frame waiting in an {@link OutboundQueue}. The header is written by
+ * the connection that sends it, so one instance, and its payload, can be
+ * queued to several peers at once. Nobody may modify the payload once the
+ * frame has been queued.
+ *
+ * A payload taken from a {@link BufferPool} goes back to it once the frame
+ * is no longer referenced: the frame starts with one reference, its
+ * creator's, every queue holding it takes one more until the peer has
+ * acknowledged it, and the writer holds one while writing it.
+ */
+public class OutboundFrame {
+	// The stream of chat and control frames, which goes ahead of any other
+	public static final long CHAT_STREAM = 0;
+
+	private static final AtomicIntegerFieldUpdater<OutboundFrame> REFS =
+			AtomicIntegerFieldUpdater.newUpdater(OutboundFrame.class, "mRefs");
+
+	public final int type;
+	// Logical stream the frame belongs to, a file's transfer id or CHAT_STREAM
+	public final long stream;
+	public final byte[] payload;
+	public final int offset;
+	public final int length;
+	// Where the payload goes back to, null if it was not pooled
+	private final BufferPool mPool;
+	private volatile int mRefs = 1;
+
+	/**
+	 * @param pool  The pool the payload was acquired from, or null
+	 */
+	public OutboundFrame(int type, long stream, byte[] payload, int offset, int length, BufferPool pool) {
+		this.type = type;
+		this.stream = stream;
+		this.payload = payload;
+		this.offset = offset;
+		this.length = length;
+		mPool = pool;
+	}
+
+	public OutboundFrame(int type, long stream, byte[] payload, int offset, int length) {
+		this(type, stream, payload, offset, length, null);
+	}
+
+	public OutboundFrame(int type, byte[] payload, int offset, int length) {
+		this(type, CHAT_STREAM, payload, offset, length);
+	}
+
+	public OutboundFrame(int type, byte[] payload) {
+		this(type, CHAT_STREAM, payload, 0, payload.length);
+	}
+
+	/**
+	 * Chat messages may be dropped for a slow peer: a peer of the hub finds
+	 * the gap in the sequence numbers and asks for the history it missed.
+	 * File frames may not, losing one would corrupt the file, nor may
+	 * history or other control frames.
+	 */
+	public boolean isDroppable() {
+		return type == FrameCodec.FRAME_MESSAGE || type == FrameCodec.FRAME_SEQ_MESSAGE;
+	}
+
+	/**
+	 * Take a reference to the frame; nothing to do unless it is pooled.
+	 */
+	public void retain() {
+		if (mPool != null) REFS.incrementAndGet(this);
+	}
+
+	/**
+	 * Drop a reference; the last one gives the payload back to its pool.
+	 */
+	public void release() {
+		if (mPool != null && REFS.decrementAndGet(this) == 0) mPool.release(payload);
+	}
+}
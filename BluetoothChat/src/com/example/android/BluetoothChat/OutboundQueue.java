@@ -0,0 +1,661 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Bounded queue of frames waiting to be written to one peer. Producers
+ * (the UI, relaying threads, the file sender) enqueue and go on, a writer
+ * thread owned by the connection drains it. What happens when a peer
+ * cannot keep up and its queue is full is decided by the {@link Policy}.
+ *
+ * The queue is also the sending half of the link to that peer. Every frame
+ * taken for writing gets the next link sequence number and is kept until
+ * the peer acknowledges it; at most the window size may be unacknowledged,
+ * so the writer runs at the speed the peer actually reads at. The queue
+ * outlives a connection: after a reconnect the peers exchange
+ * FRAME_LINK_HELLO, frames the peer already has are released and the rest
+ * are written again, in order, before anything new.
+ *
+ * Acknowledgements and the hello are control frames; they carry no
+ * sequence number and are written ahead of any data, even with the window
+ * full, so two peers waiting on each other's acknowledgements cannot stall.
+ * So are pings, which measure the round trip and the peer's clock: one is
+ * sent once the link is up and then at most every PING_INTERVAL while chat
+ * is being sent. They are timestamped as they are taken for writing.
+ * Heartbeats, asked for by the connection when it has been quiet, are
+ * control frames too.
+ *
+ * Several logical streams share the link. Chat and control frames
+ * (OutboundFrame.CHAT_STREAM) always go first. Every file being sent is a
+ * stream of its own, with a small queue; the streams take turns, one frame
+ * each, and together may only have the bulk window in flight, so a chat
+ * message never waits behind more than a few file chunks.
+ */
+public class OutboundQueue {
+	/**
+	 * What to do with a chat frame offered to a full queue. Most chat is
+	 * queued from the worker pool and under locks, which must not wait, see
+	 * offerNow(); only producers that may wait are held back, see
+	 * blockForRoom(). Frames that must not be lost go beyond the capacity, up
+	 * to MAX_OVERFLOW.
+	 */
+	public enum Policy {
+		BLOCK,        // hold producers that may wait until the writer has made room, else drop this frame
+		DROP_OLDEST,  // drop the oldest droppable frame to make room, or this one if there is none
+		DISCONNECT    // give up on the peer
+	}
+
+	// Frames in flight before the writer waits for an acknowledgement
+	public static final int DEFAULT_WINDOW = 32;
+	// Frames of other streams than chat in flight at most
+	public static final int DEFAULT_BULK_WINDOW = 8;
+	// Frames each of those streams may have waiting
+	public static final int STREAM_CAPACITY = 8;
+	// Frames that must not be lost the chat stream holds beyond its
+	// capacity; a peer that lets more pile up is given up on
+	public static final int MAX_OVERFLOW = 16;
+	// Least time between two pings, in microseconds
+	public static final long PING_INTERVAL = 10 * 1000 * 1000;
+
+	/**
+	 * Frames of one stream other than chat, waiting for its turn.
+	 */
+	private static class Stream {
+		final long id;
+		final ArrayDeque<OutboundFrame> frames = new ArrayDeque<OutboundFrame>();
+
+		Stream(long id) {
+			this.id = id;
+		}
+	}
+
+	// The chat stream
+	private final ArrayDeque<OutboundFrame> mFrames = new ArrayDeque<OutboundFrame>();
+	private final int mCapacity;
+	private final Policy mPolicy;
+	private boolean mClosed;
+	private long mDropped;
+	// Run once the chat stream has room again, see whenRoom()
+	private Runnable mRoomTask;
+
+	// Other streams by id, and those with frames waiting in the order they get their turn
+	private final HashMap<Long, Stream> mStreams = new HashMap<Long, Stream>();
+	private final ArrayDeque<Stream> mRotation = new ArrayDeque<Stream>();
+	private int mBulkQueued;
+	private int mBulkInFlight;
+	private final int mBulkWindow;
+
+	// Sending side of the link. Frames written and not yet acknowledged
+	// have consecutive sequence numbers up to mNextSeq - 1; those to write
+	// again after a reconnect are the last of them
+	private final long mSession;
+	private final int mWindow;
+	private final ArrayDeque<OutboundFrame> mUnacked = new ArrayDeque<OutboundFrame>();
+	private final ArrayDeque<OutboundFrame> mResend = new ArrayDeque<OutboundFrame>();
+	private int mNextSeq = 1;
+	private int mTakenSeq;
+	private long mRetransmitted;
+
+	// Connection currently writing, and whether it may send data yet
+	private int mGeneration;
+	private boolean mAttached;
+	// System.nanoTime() when the last connection went, or the queue was made
+	private long mDetachedAt = System.nanoTime();
+	private boolean mResumed;
+	private boolean mHelloPending;
+	// Optional features, FrameCodec.CAP_*, we offer and the peer offered
+	private int mCapabilities;
+	private int mPeerCapabilities;
+
+	// Receiving side: the peer's session, the last frame read from it and
+	// the last one handled, which is what we acknowledge
+	private long mPeerSession;
+	private int mReceived;
+	private int mProcessed;
+	private int mAckSent;
+
+	// Clock exchange: a ping to send, when the last went, and a pong to send
+	private boolean mPingPending;
+	private long mLastPing;
+	private boolean mPongPending;
+	private long mPongEcho;
+	private long mPongReceivedAt;
+	private boolean mHeartbeatPending;
+
+	public OutboundQueue(int capacity, Policy policy) {
+		this(capacity, policy, DEFAULT_WINDOW);
+	}
+
+	public OutboundQueue(int capacity, Policy policy, int window) {
+		mCapacity = capacity;
+		mPolicy = policy;
+		mWindow = window;
+		mBulkWindow = Math.min(DEFAULT_BULK_WINDOW, window);
+		long session;
+		do {
+			session = new Random().nextLong();
+		} while (session == 0);
+		mSession = session;
+	}
+
+	/**
+	 * Enqueue a frame without ever waiting, for callers that must not: the
+	 * worker pool's threads, and anyone holding a lock others wait for.
+	 * A chat frame offered to a full queue is handled by the slow consumer
+	 * policy; one that must not be lost is queued beyond the capacity, as
+	 * only few of those are sent, but at most MAX_OVERFLOW of them. A frame
+	 * of another stream is queued only
+	 * if its stream has room, else it is dropped: a peer asks for the file
+	 * chunks it missed at the end of the file, and frames that must get
+	 * through are put() from a thread that may wait. Frames offered while
+	 * no connection is attached are discarded.
+	 * @return false if the peer should be disconnected, because the policy
+	 * says so or its overflow is full
+	 */
+	public synchronized boolean offerNow(OutboundFrame frame) {
+		if (mClosed || !mAttached) return true;
+		if (frame.stream != OutboundFrame.CHAT_STREAM) {
+			Stream s = mStreams.get(frame.stream);
+			if (s != null && s.frames.size() >= STREAM_CAPACITY) {
+				mDropped++;
+				return true;
+			}
+			addBulk(s, frame);
+			notifyAll();
+			return true;
+		}
+
+		if (mFrames.size() >= mCapacity) {
+			if (mPolicy == Policy.DISCONNECT) return false;
+			if (frame.isDroppable()) {
+				if (mPolicy == Policy.BLOCK || !dropOldest()) {
+					mDropped++;
+					return true;
+				}
+			} else if (mFrames.size() >= mCapacity + MAX_OVERFLOW) {
+				return false;
+			}
+		}
+		mFrames.addLast(frame);
+		frame.retain();
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Enqueue a frame that must not be lost, waiting for room whatever the
+	 * policy. Used for file data, which is produced off the UI thread.
+	 * This gives up if the connection goes away meanwhile.
+	 */
+	public synchronized void put(OutboundFrame frame) throws InterruptedException {
+		if (frame.stream != OutboundFrame.CHAT_STREAM) {
+			putBulk(frame);
+			return;
+		}
+		if (!awaitRoom()) return;
+		mFrames.addLast(frame);
+		frame.retain();
+		notifyAll();
+	}
+
+	/**
+	 * Enqueue a frame only if there is room for it now.
+	 * @return false if the frame was not queued, because its stream is full
+	 * or no connection is attached
+	 */
+	public synchronized boolean tryPut(OutboundFrame frame) {
+		if (mClosed || !mAttached) return false;
+		if (frame.stream == OutboundFrame.CHAT_STREAM) {
+			if (mFrames.size() >= mCapacity) return false;
+			mFrames.addLast(frame);
+			frame.retain();
+		} else {
+			Stream s = mStreams.get(frame.stream);
+			if (s != null && s.frames.size() >= STREAM_CAPACITY) return false;
+			addBulk(s, frame);
+		}
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Under BLOCK, wait until the chat stream has room; return at once under
+	 * the other policies. For producers that may wait, before they queue
+	 * with offerNow(), which they may do holding a lock.
+	 * This gives up if the connection goes away meanwhile.
+	 */
+	public synchronized void blockForRoom() throws InterruptedException {
+		if (mPolicy == Policy.BLOCK) awaitRoom();
+	}
+
+	/**
+	 * Wait until the chat stream has room.
+	 * @return false if the queue was closed or detached meanwhile
+	 */
+	private boolean awaitRoom() throws InterruptedException {
+		while (mFrames.size() >= mCapacity && mAttached && !mClosed) wait();
+		return !mClosed && mAttached;
+	}
+
+	private void putBulk(OutboundFrame frame) throws InterruptedException {
+		Stream s = mStreams.get(frame.stream);
+		while (s != null && s.frames.size() >= STREAM_CAPACITY && mAttached && !mClosed) {
+			wait();
+			// The stream is dropped once it runs empty
+			s = mStreams.get(frame.stream);
+		}
+		if (mClosed || !mAttached) return;
+		addBulk(s, frame);
+		notifyAll();
+	}
+
+	/**
+	 * @param s  The frame's stream, null if it has nothing queued
+	 */
+	private void addBulk(Stream s, OutboundFrame frame) {
+		if (s == null) {
+			s = new Stream(frame.stream);
+			mStreams.put(frame.stream, s);
+			mRotation.addLast(s);
+		}
+		s.frames.addLast(frame);
+		frame.retain();
+		mBulkQueued++;
+	}
+
+	/**
+	 * Have task run once the chat stream has room, or the connection of
+	 * the given generation is gone, whichever comes first; at once, on the
+	 * caller's thread, if that is so already. Otherwise it is run by the
+	 * writer that makes the room, holding the queue's lock, so it should
+	 * only hand work on to another thread. Replaces a task set before.
+	 */
+	public void whenRoom(int generation, Runnable task) {
+		synchronized (this) {
+			if (mFrames.size() >= mCapacity && isAttached(generation)) {
+				mRoomTask = task;
+				return;
+			}
+		}
+		task.run();
+	}
+
+	private void roomMade() {
+		Runnable task = mRoomTask;
+		mRoomTask = null;
+		if (task != null) task.run();
+	}
+
+	/**
+	 * @return Nanoseconds since the last connection went, or since the
+	 * queue was made if none ever came; -1 while one is attached
+	 */
+	public synchronized long detachedFor(long now) {
+		return mAttached ? -1 : now - mDetachedAt;
+	}
+
+	/**
+	 * @return true while the connection of the given generation is the
+	 * one attached
+	 */
+	public synchronized boolean isAttached(int generation) {
+		return generation == mGeneration && mAttached && !mClosed;
+	}
+
+	private boolean dropOldest() {
+		Iterator<OutboundFrame> it = mFrames.iterator();
+		while (it.hasNext()) {
+			OutboundFrame frame = it.next();
+			if (frame.isDroppable()) {
+				it.remove();
+				frame.release();
+				mDropped++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hand the queue to a new connection. Its first frame is the hello; if
+	 * frames are still unacknowledged from the last connection, no data is
+	 * written until the peer's hello says which of them it has.
+	 * @param capabilities  FrameCodec.CAP_* flags to announce in the hello
+	 * @return The generation the connection's writer passes to take()
+	 */
+	public synchronized int attach(int capabilities) {
+		mGeneration++;
+		mCapabilities = capabilities;
+		mPeerCapabilities = 0;
+		mAttached = true;
+		mHelloPending = true;
+		mResumed = mUnacked.isEmpty();
+		mResend.clear();
+		// The hello carries our acknowledgement
+		mAckSent = mProcessed;
+		// A pong is only worth anything on the connection the ping came on
+		mPongPending = false;
+		mHeartbeatPending = false;
+		roomMade();
+		notifyAll();
+		return mGeneration;
+	}
+
+	/**
+	 * The connection of the given generation is gone. Queued and
+	 * unacknowledged frames are kept for the next one, producers waiting
+	 * for room are released.
+	 */
+	public synchronized void detach(int generation) {
+		if (generation != mGeneration) return;
+		mAttached = false;
+		mDetachedAt = System.nanoTime();
+		roomMade();
+		notifyAll();
+	}
+
+	/**
+	 * Wait for the next frame to write: control frames first, then frames
+	 * being retransmitted, then queued frames while the window has room,
+	 * chat before the other streams, which take turns.
+	 * @param generation  The caller's value from attach()
+	 * @return The frame, or null once the queue is closed or has been
+	 * attached to another connection. The caller holds a reference to it
+	 * and releases it once written.
+	 * @see #takenSeq()
+	 */
+	public synchronized OutboundFrame take(int generation) throws InterruptedException {
+		while (true) {
+			if (mClosed || generation != mGeneration || !mAttached) return null;
+
+			if (mHelloPending) {
+				mHelloPending = false;
+				mTakenSeq = 0;
+				byte[] hello = new byte[FrameCodec.HELLO_SIZE];
+				FrameCodec.writeLong(hello, 0, mSession);
+				FrameCodec.writeLong(hello, 8, mPeerSession);
+				FrameCodec.writeInt(hello, 16, mProcessed);
+				FrameCodec.writeInt(hello, 20, mCapabilities);
+				return new OutboundFrame(FrameCodec.FRAME_LINK_HELLO, hello);
+			}
+			if (mAckSent != mProcessed && mPeerSession != 0) {
+				mAckSent = mProcessed;
+				mTakenSeq = 0;
+				byte[] ack = new byte[4];
+				FrameCodec.writeInt(ack, 0, mProcessed);
+				return new OutboundFrame(FrameCodec.FRAME_ACK, ack);
+			}
+			if (mPongPending) {
+				mPongPending = false;
+				mTakenSeq = 0;
+				byte[] pong = new byte[FrameCodec.PONG_SIZE];
+				FrameCodec.writeLong(pong, 0, mPongEcho);
+				FrameCodec.writeLong(pong, 8, mPongReceivedAt);
+				FrameCodec.writeLong(pong, 16, ChatMetrics.now());
+				return new OutboundFrame(FrameCodec.FRAME_PONG, pong);
+			}
+			if (mHeartbeatPending) {
+				mHeartbeatPending = false;
+				mTakenSeq = 0;
+				return new OutboundFrame(FrameCodec.FRAME_HEARTBEAT, new byte[0]);
+			}
+			if (mPingPending && mResumed) {
+				mPingPending = false;
+				mTakenSeq = 0;
+				mLastPing = ChatMetrics.now();
+				byte[] ping = new byte[FrameCodec.PING_SIZE];
+				FrameCodec.writeLong(ping, 0, mLastPing);
+				return new OutboundFrame(FrameCodec.FRAME_PING, ping);
+			}
+			if (mResumed) {
+				if (!mResend.isEmpty()) {
+					mTakenSeq = mNextSeq - mResend.size();
+					mRetransmitted++;
+					OutboundFrame frame = mResend.removeFirst();
+					frame.retain();
+					return frame;
+				}
+				if (mUnacked.size() < mWindow) {
+					OutboundFrame frame = null;
+					if (!mFrames.isEmpty()) {
+						frame = mFrames.removeFirst();
+						// Chat is flowing, keep the peer's clock fresh
+						if (ChatMetrics.now() - mLastPing > PING_INTERVAL) mPingPending = true;
+						if (mFrames.size() < mCapacity) roomMade();
+					} else if (!mRotation.isEmpty() && mBulkInFlight < mBulkWindow) {
+						Stream s = mRotation.removeFirst();
+						frame = s.frames.removeFirst();
+						if (s.frames.isEmpty()) {
+							mStreams.remove(s.id);
+						} else {
+							mRotation.addLast(s);
+						}
+						mBulkQueued--;
+						mBulkInFlight++;
+					}
+					if (frame != null) {
+						mTakenSeq = mNextSeq++;
+						// The queue's reference moves to mUnacked, this one is the writer's
+						mUnacked.addLast(frame);
+						frame.retain();
+						notifyAll();
+						return frame;
+					}
+				}
+			}
+			wait();
+		}
+	}
+
+	/**
+	 * @return The link sequence number of the frame last returned by
+	 * take(), 0 for a control frame
+	 */
+	public synchronized int takenSeq() {
+		return mTakenSeq;
+	}
+
+	/**
+	 * @return true if take() would return at once; the writer flushes
+	 * before it would have to wait
+	 */
+	public synchronized boolean isReady() {
+		if (mClosed || !mAttached) return false;
+		if (mHelloPending || (mAckSent != mProcessed && mPeerSession != 0)) return true;
+		if (mPongPending || mHeartbeatPending || (mPingPending && mResumed)) return true;
+		if (!mResumed) return false;
+		if (!mResend.isEmpty()) return true;
+		return mUnacked.size() < mWindow
+				&& (!mFrames.isEmpty() || (!mRotation.isEmpty() && mBulkInFlight < mBulkWindow));
+	}
+
+	/**
+	 * The peer's FRAME_LINK_HELLO arrived.
+	 * @param peerSession  The peer's session for its side of the link
+	 * @param ackSession  Our session as the peer knows it, 0 for none
+	 * @param ack  The last of our frames the peer handled in that session
+	 * @param capabilities  The FrameCodec.CAP_* flags the peer offers
+	 */
+	public synchronized void onHello(long peerSession, long ackSession, int ack, int capabilities) {
+		mPeerCapabilities = capabilities;
+		if (peerSession != mPeerSession) {
+			// A new peer, or one that lost its state: its numbering starts over
+			mPeerSession = peerSession;
+			mReceived = 0;
+			mProcessed = 0;
+			mAckSent = 0;
+		}
+		if (ackSession == mSession) {
+			release(ack);
+		}
+		// Whatever the peer does not have goes out again first
+		mResend.clear();
+		mResend.addAll(mUnacked);
+		mResumed = true;
+		// The link may have changed, and the peer's clock with it
+		mPingPending = true;
+		notifyAll();
+	}
+
+	/**
+	 * Have the writer send a heartbeat, to show the peer we are still here.
+	 */
+	public synchronized void heartbeat() {
+		if (!mAttached) return;
+		mHeartbeatPending = true;
+		notifyAll();
+	}
+
+	/**
+	 * Answer a ping read from the peer.
+	 * @param echo  The peer's timestamp from the ping
+	 * @param receivedAt  Our clock when the ping was read
+	 */
+	public synchronized void pong(long echo, long receivedAt) {
+		mPongPending = true;
+		mPongEcho = echo;
+		mPongReceivedAt = receivedAt;
+		notifyAll();
+	}
+
+	/**
+	 * @return The FrameCodec.CAP_* flags both sides offer on this connection,
+	 * 0 until the peer's hello has arrived
+	 */
+	public synchronized int getCapabilities() {
+		return mCapabilities & mPeerCapabilities;
+	}
+
+	/**
+	 * The peer acknowledged all our frames up to and including seq.
+	 */
+	public synchronized void onAck(int seq) {
+		release(seq);
+		notifyAll();
+	}
+
+	private void release(int seq) {
+		while (!mUnacked.isEmpty() && (mNextSeq - mUnacked.size()) - seq <= 0) {
+			OutboundFrame frame = mUnacked.removeFirst();
+			if (frame.stream != OutboundFrame.CHAT_STREAM) mBulkInFlight--;
+			frame.release();
+		}
+		while (!mResend.isEmpty() && (mNextSeq - mResend.size()) - seq <= 0) {
+			mResend.removeFirst();
+		}
+	}
+
+	/**
+	 * A sequenced frame was read from the peer.
+	 * @return false if it is a copy of one read before a reconnect and
+	 * must be ignored
+	 */
+	public synchronized boolean accept(int seq) {
+		if (seq - mReceived <= 0) return false;
+		mReceived = seq;
+		return true;
+	}
+
+	/**
+	 * A frame accepted earlier has been handled. Only handled frames are
+	 * acknowledged, so the peer's window also bounds how much of its data
+	 * can wait here to be handled.
+	 */
+	public synchronized void processed(int seq) {
+		// Ignore frames of a session the peer has since abandoned
+		if (seq - mProcessed > 0 && seq - mReceived <= 0) mProcessed = seq;
+	}
+
+	/**
+	 * Have the writer acknowledge what has been handled so far. Called once
+	 * the frames of one read from the socket are done with, so one
+	 * acknowledgement covers every frame that arrived together.
+	 */
+	public synchronized void acknowledge() {
+		if (mAckSent != mProcessed) notifyAll();
+	}
+
+	/**
+	 * Discard the queued frames of every stream but chat, none of which
+	 * has a sequence number yet. For a peer that is gone: its files are
+	 * sent again from what it reports missing when it comes back.
+	 * @return The number of frames discarded
+	 */
+	public synchronized int dropStreams() {
+		int dropped = mBulkQueued;
+		releaseStreams();
+		mStreams.clear();
+		mRotation.clear();
+		mBulkQueued = 0;
+		notifyAll();
+		return dropped;
+	}
+
+	public synchronized boolean isEmpty() {
+		return mFrames.isEmpty() && mBulkQueued == 0;
+	}
+
+	/**
+	 * @return The number of frames waiting, of all streams
+	 */
+	public synchronized int size() {
+		return mFrames.size() + mBulkQueued;
+	}
+
+	/**
+	 * @return The number of frames written but not yet acknowledged
+	 */
+	public synchronized int inFlight() {
+		return mUnacked.size();
+	}
+
+	/**
+	 * @return The number of messages, and file frames, dropped because the
+	 * queue or their stream was full
+	 */
+	public synchronized long getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * @return The number of frames written again after a reconnect
+	 */
+	public synchronized long getRetransmitted() {
+		return mRetransmitted;
+	}
+
+	/**
+	 * Discard everything queued or unacknowledged and release the writer
+	 * and any blocked producer. The queue cannot be used again.
+	 */
+	public synchronized void close() {
+		mClosed = true;
+		releaseAll(mFrames);
+		releaseStreams();
+		releaseAll(mUnacked);
+		mFrames.clear();
+		mStreams.clear();
+		mRotation.clear();
+		mBulkQueued = 0;
+		mBulkInFlight = 0;
+		mUnacked.clear();
+		mResend.clear();
+		roomMade();
+		notifyAll();
+	}
+
+	private void releaseStreams() {
+		for (Stream s : mStreams.values()) {
+			releaseAll(s.frames);
+		}
+	}
+
+	private static void releaseAll(ArrayDeque<OutboundFrame> frames) {
+		for (OutboundFrame frame : frames) {
+			frame.release();
+		}
+	}
+}
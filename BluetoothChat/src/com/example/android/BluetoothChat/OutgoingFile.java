@@ -0,0 +1,56 @@
+package com.example.android.BluetoothChat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A file to send: its name and length, known before it is read, and its
+ * content, which can be read again for the chunks a peer missed.
+ * Files on this device's storage are sent with {@link #of(File)}; content
+ * picked from a provider comes from {@link ChatStorage#open(String)}.
+ */
+public abstract class OutgoingFile {
+	// Size of the data chunks the file is sent in
+	public static final int CHUNK_SIZE = FileReceiver.CHUNK_SIZE;
+
+	private final String mName;
+	private final long mSize;
+
+	/**
+	 * @param size  The length in bytes, -1 if it is not known
+	 */
+	protected OutgoingFile(String name, long size) {
+		mName = name;
+		mSize = size;
+	}
+
+	/**
+	 * @return A file on this device's storage
+	 */
+	public static OutgoingFile of(final File file) {
+		return new OutgoingFile(file.getName(), file.length()) {
+			@Override
+			public InputStream open() throws IOException {
+				return new FileInputStream(file);
+			}
+		};
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * @return The length in bytes, -1 if the provider does not know it
+	 */
+	public long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * @return The content from its start
+	 */
+	public abstract InputStream open() throws IOException;
+}
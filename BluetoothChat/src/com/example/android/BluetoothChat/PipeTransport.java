@@ -0,0 +1,222 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * In-process transport. Every instance has an address of its own;
+ * listening registers it in a process wide table and connecting to that
+ * address hands the listener one end of a pair of in-memory pipes.
+ */
+public class PipeTransport implements Transport {
+	// Bytes a pipe holds before the writer blocks
+	private static final int PIPE_SIZE = 64 * 1024;
+
+	private static final HashMap<String, PipeServer> sServers = new HashMap<String, PipeServer>();
+
+	private final String mAddress;
+
+	public PipeTransport(String address) {
+		mAddress = address;
+	}
+
+	public Server listen(String name, UUID uuid) throws IOException {
+		synchronized (sServers) {
+			if (sServers.containsKey(mAddress)) {
+				throw new IOException("Address " + mAddress + " already in use");
+			}
+			PipeServer server = new PipeServer();
+			sServers.put(mAddress, server);
+			return server;
+		}
+	}
+
+	public Connection open(String address, UUID uuid) {
+		return new PipeConnection(address);
+	}
+
+	public String getLocalName() {
+		return mAddress;
+	}
+
+	public long getLinkRate() {
+		return 0;
+	}
+
+	private class PipeServer implements Server {
+		private final ArrayDeque<Connection> mPending = new ArrayDeque<Connection>();
+		private boolean mClosed;
+
+		public synchronized Connection accept() throws IOException {
+			try {
+				while (mPending.isEmpty() && !mClosed) wait();
+			} catch (InterruptedException e) {
+				throw new IOException("accept() interrupted");
+			}
+			if (mClosed) throw new IOException("Server closed");
+			return mPending.removeFirst();
+		}
+
+		synchronized void enqueue(Connection connection) throws IOException {
+			if (mClosed) throw new IOException("Connection refused");
+			mPending.addLast(connection);
+			notifyAll();
+		}
+
+		public void close() {
+			synchronized (sServers) {
+				if (sServers.get(mAddress) == this) sServers.remove(mAddress);
+			}
+			synchronized (this) {
+				mClosed = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * One side of a connection. The outgoing side is created unconnected
+	 * and gets its pipes in connect(); the accepting side gets them at once.
+	 */
+	private class PipeConnection implements Connection {
+		private final String mRemote;
+		private Pipe mIn;
+		private Pipe mOut;
+
+		PipeConnection(String remote) {
+			mRemote = remote;
+		}
+
+		PipeConnection(String remote, Pipe in, Pipe out) {
+			mRemote = remote;
+			mIn = in;
+			mOut = out;
+		}
+
+		public synchronized void connect() throws IOException {
+			PipeServer server;
+			synchronized (sServers) {
+				server = sServers.get(mRemote);
+			}
+			if (server == null) throw new IOException("No listener at " + mRemote);
+
+			Pipe up = new Pipe();
+			Pipe down = new Pipe();
+			mIn = down;
+			mOut = up;
+			server.enqueue(new PipeConnection(mAddress, up, down));
+		}
+
+		public synchronized InputStream getInputStream() throws IOException {
+			if (mIn == null) throw new IOException("Not connected");
+			return mIn.input;
+		}
+
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (mOut == null) throw new IOException("Not connected");
+			return mOut.output;
+		}
+
+		public String getRemoteAddress() {
+			return mRemote;
+		}
+
+		public String getRemoteName() {
+			return mRemote;
+		}
+
+		public synchronized void close() {
+			if (mIn != null) mIn.close();
+			if (mOut != null) mOut.close();
+		}
+	}
+
+	/**
+	 * A bounded, blocking byte ring shared by one writer and one reader.
+	 * Closing it from either end ends the stream for both.
+	 */
+	private static class Pipe {
+		private final byte[] mRing = new byte[PIPE_SIZE];
+		private int mHead;
+		private int mCount;
+		private boolean mClosed;
+
+		final InputStream input = new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Pipe.this.read(b, off, len);
+			}
+
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		final OutputStream output = new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				Pipe.this.write(b, off, len);
+			}
+
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			try {
+				while (mCount == 0 && !mClosed) wait();
+			} catch (InterruptedException e) {
+				throw new IOException("read() interrupted");
+			}
+			if (mCount == 0) return -1;
+
+			int n = Math.min(len, mCount);
+			int first = Math.min(n, mRing.length - mHead);
+			System.arraycopy(mRing, mHead, b, off, first);
+			System.arraycopy(mRing, 0, b, off + first, n - first);
+			mHead = (mHead + n) % mRing.length;
+			mCount -= n;
+			notifyAll();
+			return n;
+		}
+
+		synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				try {
+					while (mCount == mRing.length && !mClosed) wait();
+				} catch (InterruptedException e) {
+					throw new IOException("write() interrupted");
+				}
+				if (mClosed) throw new IOException("Pipe closed");
+
+				int tail = (mHead + mCount) % mRing.length;
+				int n = Math.min(len, mRing.length - mCount);
+				int first = Math.min(n, mRing.length - tail);
+				System.arraycopy(b, off, mRing, tail, first);
+				System.arraycopy(b, off + first, mRing, 0, n - first);
+				mCount += n;
+				off += n;
+				len -= n;
+				notifyAll();
+			}
+		}
+
+		synchronized void close() {
+			mClosed = true;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * Bluetooth RFCOMM transport.
+ */
+public class RfcommTransport implements Transport {
+	// What a classic Bluetooth link reliably carries
+	public static final long LINK_RATE = 128 * 1024;
+
+	private final BluetoothAdapter mAdapter;
+
+	public RfcommTransport(BluetoothAdapter adapter) {
+		mAdapter = adapter;
+	}
+
+	public Server listen(String name, UUID uuid) throws IOException {
+		final BluetoothServerSocket serverSocket = mAdapter.listenUsingRfcommWithServiceRecord(name, uuid);
+		return new Server() {
+			public Connection accept() throws IOException {
+				BluetoothSocket socket = serverSocket.accept();
+				return new SocketConnection(socket.getRemoteDevice(), socket);
+			}
+
+			public void close() throws IOException {
+				serverSocket.close();
+			}
+		};
+	}
+
+	public Connection open(String address, UUID uuid) throws IOException {
+		BluetoothDevice device = mAdapter.getRemoteDevice(address);
+		return new SocketConnection(device, device.createRfcommSocketToServiceRecord(uuid));
+	}
+
+	public String getLocalName() {
+		return mAdapter.getName();
+	}
+
+	public long getLinkRate() {
+		return LINK_RATE;
+	}
+
+	private class SocketConnection implements Connection {
+		private final BluetoothDevice mDevice;
+		private final BluetoothSocket mSocket;
+
+		SocketConnection(BluetoothDevice device, BluetoothSocket socket) {
+			mDevice = device;
+			mSocket = socket;
+		}
+
+		public void connect() throws IOException {
+			// Always cancel discovery because it will slow down a connection
+			mAdapter.cancelDiscovery();
+			mSocket.connect();
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return mSocket.getInputStream();
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			return mSocket.getOutputStream();
+		}
+
+		public String getRemoteAddress() {
+			return mDevice.getAddress();
+		}
+
+		public String getRemoteName() {
+			return mDevice.getName();
+		}
+
+		public void close() throws IOException {
+			mSocket.close();
+		}
+	}
+}
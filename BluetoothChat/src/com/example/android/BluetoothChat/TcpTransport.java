@@ -0,0 +1,218 @@
+package com.example.android.BluetoothChat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Plain TCP transport. Addresses are "host:port"; the service name and
+ * uuid are ignored, the server listens on the port it was created with.
+ *
+ * A connection comes from a new ephemeral port every time, so the side
+ * that connects starts with a hello of its own, the port it listens on
+ * and its name, and the accepting side knows it as "host:port" of that
+ * port: the same address after every reconnect, and one that can be
+ * connected back to.
+ *
+ * The hello is read on a short-lived thread per accepted socket, so a
+ * peer that is slow to send it, or a stranger that never does, does not
+ * hold up the peers that connect after it.
+ */
+public class TcpTransport implements Transport {
+	// Hello sent by the connecting side: HELLO_MAGIC, listening port (int), name (UTF)
+	private static final int HELLO_MAGIC = 0x42435443;
+	// How long an accepted connection has to send its hello
+	private static final int HELLO_TIMEOUT = 5000;
+
+	private final String mLocalName;
+	private final int mPort;
+
+	/**
+	 * @param localName  Name announced to peers
+	 * @param port  Port to listen on
+	 */
+	public TcpTransport(String localName, int port) {
+		mLocalName = localName;
+		mPort = port;
+	}
+
+	public Server listen(String name, UUID uuid) throws IOException {
+		return new TcpServer(new ServerSocket(mPort));
+	}
+
+	public Connection open(String address, UUID uuid) throws IOException {
+		int colon = address.lastIndexOf(':');
+		String host = (colon < 0) ? address : address.substring(0, colon);
+		int port = (colon < 0) ? mPort : Integer.parseInt(address.substring(colon + 1));
+		return new SocketConnection(new Socket(), new InetSocketAddress(host, port), host + ":" + port);
+	}
+
+	public String getLocalName() {
+		return mLocalName;
+	}
+
+	public long getLinkRate() {
+		return 0;
+	}
+
+	/**
+	 * Accepts sockets on a thread of its own and queues them once their
+	 * hello is in.
+	 */
+	private class TcpServer extends Thread implements Server {
+		private final ServerSocket mServerSocket;
+		private final ArrayDeque<Connection> mPending = new ArrayDeque<Connection>();
+		private boolean mClosed;
+
+		TcpServer(ServerSocket serverSocket) {
+			super("TcpAccept:" + mPort);
+			mServerSocket = serverSocket;
+			setDaemon(true);
+			start();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = mServerSocket.accept();
+					Thread hello = new Thread("TcpHello:" + socket.getPort()) {
+						public void run() {
+							try {
+								enqueue(new SocketConnection(socket));
+							} catch (IOException e) {
+								// No hello: not one of ours, or it gave up
+								try {
+									socket.close();
+								} catch (IOException e2) {
+									// Ignore
+								}
+							}
+						}
+					};
+					hello.setDaemon(true);
+					hello.start();
+				}
+			} catch (IOException e) {
+				// Closed
+			} finally {
+				close();
+			}
+		}
+
+		public synchronized Connection accept() throws IOException {
+			try {
+				while (mPending.isEmpty() && !mClosed) wait();
+			} catch (InterruptedException e) {
+				throw new IOException("accept() interrupted");
+			}
+			if (mClosed) throw new IOException("Server closed");
+			return mPending.removeFirst();
+		}
+
+		synchronized void enqueue(Connection connection) throws IOException {
+			if (mClosed) throw new IOException("Server closed");
+			mPending.addLast(connection);
+			notifyAll();
+		}
+
+		public void close() {
+			try {
+				mServerSocket.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			synchronized (this) {
+				mClosed = true;
+				notifyAll();
+				// Accepted but never handed out
+				for (Connection connection : mPending) {
+					try {
+						connection.close();
+					} catch (IOException e) {
+						// Ignore
+					}
+				}
+				mPending.clear();
+			}
+		}
+	}
+
+	private class SocketConnection implements Connection {
+		private final Socket mSocket;
+		// Where an outgoing connection goes, null for an accepted one
+		private final InetSocketAddress mRemote;
+		private final String mAddress;
+		private final String mName;
+
+		/**
+		 * An accepted connection; reads the peer's hello, so blocks for up to
+		 * HELLO_TIMEOUT.
+		 */
+		SocketConnection(Socket socket) throws IOException {
+			mSocket = socket;
+			mRemote = null;
+			mSocket.setTcpNoDelay(true);
+			mSocket.setSoTimeout(HELLO_TIMEOUT);
+			// Unbuffered, so nothing after the hello is read
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			if (in.readInt() != HELLO_MAGIC) throw new IOException("Bad hello");
+			int port = in.readInt();
+			mName = in.readUTF();
+			mSocket.setSoTimeout(0);
+			mAddress = socket.getInetAddress().getHostAddress() + ":" + port;
+		}
+
+		/**
+		 * An outgoing connection, made by connect().
+		 * @param address  The address as given to open()
+		 */
+		SocketConnection(Socket socket, InetSocketAddress remote, String address) {
+			mSocket = socket;
+			mRemote = remote;
+			mAddress = address;
+			mName = address;
+		}
+
+		public void connect() throws IOException {
+			if (mRemote == null) return;
+			// Unresolved, connect() throws UnknownHostException
+			mSocket.connect(mRemote);
+			mSocket.setTcpNoDelay(true);
+
+			ByteArrayOutputStream hello = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(hello);
+			out.writeInt(HELLO_MAGIC);
+			out.writeInt(mPort);
+			out.writeUTF(mLocalName);
+			hello.writeTo(mSocket.getOutputStream());
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return mSocket.getInputStream();
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			return mSocket.getOutputStream();
+		}
+
+		public String getRemoteAddress() {
+			return mAddress;
+		}
+
+		public String getRemoteName() {
+			return mName;
+		}
+
+		public void close() throws IOException {
+			mSocket.close();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.example.android.BluetoothChat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * The link layer BluetoothChatService runs on. RFCOMM is one provider;
+ * the in-memory and TCP providers let the hub logic run on a plain JVM
+ * against simulated peers.
+ */
+public interface Transport {
+	/**
+	 * Start listening for incoming connections.
+	 * @param name  Service name, for transports that advertise one
+	 * @param uuid  Service id, for transports that advertise one
+	 */
+	Server listen(String name, UUID uuid) throws IOException;
+
+	/**
+	 * Create a connection to a remote peer. Nothing is sent until
+	 * {@link Connection#connect()} is called, so the attempt can be
+	 * cancelled by closing the connection from another thread.
+	 */
+	Connection open(String address, UUID uuid) throws IOException;
+
+	/**
+	 * @return The name this device is known by to its peers
+	 */
+	String getLocalName();
+
+	/**
+	 * @return The bytes per second a peer's link sustains, somewhat below
+	 * what it can do at best, or 0 if the transport does not need pacing
+	 */
+	long getLinkRate();
+
+	/**
+	 * A listening endpoint.
+	 */
+	interface Server {
+		/**
+		 * Block until a peer connects.
+		 */
+		Connection accept() throws IOException;
+
+		/**
+		 * Stop listening; a blocked accept() throws.
+		 */
+		void close() throws IOException;
+	}
+
+	/**
+	 * A stream connection to one peer.
+	 */
+	interface Connection {
+		/**
+		 * Establish an outgoing connection. Does nothing for accepted ones.
+		 */
+		void connect() throws IOException;
+
+		InputStream getInputStream() throws IOException;
+
+		OutputStream getOutputStream() throws IOException;
+
+		/**
+		 * @return The peer's address, the same every time it connects: the
+		 * peer's link state and metrics are kept under it
+		 */
+		String getRemoteAddress();
+
+		String getRemoteName();
+
+		void close() throws IOException;
+	}
+}
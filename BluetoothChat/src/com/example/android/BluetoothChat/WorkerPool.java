@@ -0,0 +1,291 @@
+package com.example.android.BluetoothChat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * The threads that do the work behind the sockets: handling received
+ * frames (decompressing, decoding, relaying, writing file chunks).
+ * Readers and writers keep a thread of their own because they block on the
+ * socket; everything else shares this pool, whose size does not grow with
+ * the number of peers. Files being sent wait for room in the peers'
+ * queues, so they are read on a pool of their own.
+ *
+ * Work is submitted through {@link Lane}s. A lane runs its tasks in order,
+ * at most a given number at a time, on the pool's threads; each connection
+ * has a lane of one, so its frames are handled in the order they arrived
+ * without holding a thread while it has nothing to do.
+ *
+ * A lane waits for a thread in the pool's queue, never on the submitting
+ * thread, which is often a socket reader; the queue holds at most one
+ * entry per lane and unit of parallelism. Tasks must not block, on a
+ * peer's queue least of all, or the lanes behind them starve; a task that
+ * throws is logged and the lane goes on.
+ */
+public class WorkerPool {
+	private static final String TAG = "WorkerPool";
+
+	// Tasks a lane runs before it lets the other lanes have the thread
+	private static final int LANE_BATCH = 16;
+
+	private final ThreadPoolExecutor mExecutor;
+	private final LinkedBlockingQueue<Runnable> mQueue = new LinkedBlockingQueue<Runnable>();
+
+	// Statistics, updated after every task without taking a lock; a reader
+	// may see one task's figures only partly counted
+	private final AtomicLong mTasks = new AtomicLong();
+	private final AtomicLong mWaitNanos = new AtomicLong();
+	private final AtomicLong mMaxWaitNanos = new AtomicLong();
+	private final AtomicLong mRunNanos = new AtomicLong();
+	private final AtomicLong mMaxRunNanos = new AtomicLong();
+	private final AtomicLong mFailures = new AtomicLong();
+
+	/**
+	 * @param name  Prefix of the threads' names
+	 * @param threads  Most threads the pool runs at once; they are stopped
+	 * when idle
+	 */
+	public WorkerPool(final String name, int threads) {
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, name + "-" + count.incrementAndGet());
+			}
+		};
+		// Once shut down, tasks still submitted are dropped rather than
+		// thrown back at the socket reader that submitted them
+		mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, mQueue, factory,
+				new ThreadPoolExecutor.DiscardPolicy());
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Tasks run in order, at most parallelism of them at a time. With a
+	 * parallelism of one, each task sees everything the previous one did.
+	 */
+	public class Lane implements Executor {
+		private final int mParallelism;
+		private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+		// When each task was queued, a ring in step with mTasks; kept
+		// unboxed as it is written for every frame received
+		private long[] mQueuedAt = new long[16];
+		private int mQueuedHead;
+		private int mRunning;
+		private int mMaxBacklog;
+
+		Lane(int parallelism) {
+			mParallelism = parallelism;
+		}
+
+		public void execute(Runnable task) {
+			synchronized (this) {
+				if (mTasks.size() == mQueuedAt.length) grow();
+				mQueuedAt[(mQueuedHead + mTasks.size()) % mQueuedAt.length] = System.nanoTime();
+				mTasks.addLast(task);
+				mMaxBacklog = Math.max(mMaxBacklog, mTasks.size());
+				if (mRunning >= mParallelism) return;
+				mRunning++;
+			}
+			mExecutor.execute(mDrain);
+		}
+
+		private final Runnable mDrain = new Runnable() {
+			public void run() {
+				while (true) {
+					for (int i = 0; i < LANE_BATCH; i++) {
+						Runnable task;
+						long queuedAt;
+						synchronized (Lane.this) {
+							if (mTasks.isEmpty()) {
+								mRunning--;
+								return;
+							}
+							task = mTasks.removeFirst();
+							queuedAt = mQueuedAt[mQueuedHead];
+							mQueuedHead = (mQueuedHead + 1) % mQueuedAt.length;
+						}
+						long start = System.nanoTime();
+						boolean failed = false;
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							// A bug or a malformed frame; on Android, letting it
+							// reach the thread would end the process
+							Log.e(TAG, "Task " + task + " failed", e);
+							failed = true;
+						}
+						record(start - queuedAt, System.nanoTime() - start, failed);
+					}
+					if (!mQueue.isEmpty()) {
+						// Go to the back of the pool's queue, still counted as running
+						mExecutor.execute(this);
+						return;
+					}
+				}
+			}
+		};
+
+		private void grow() {
+			long[] grown = new long[mQueuedAt.length * 2];
+			int count = mTasks.size();
+			for (int i = 0; i < count; i++) {
+				grown[i] = mQueuedAt[(mQueuedHead + i) % mQueuedAt.length];
+			}
+			mQueuedAt = grown;
+			mQueuedHead = 0;
+		}
+
+		/**
+		 * @return Tasks waiting to run
+		 */
+		public synchronized int getBacklog() {
+			return mTasks.size();
+		}
+
+		/**
+		 * @return The longest the backlog has been
+		 */
+		public synchronized int getMaxBacklog() {
+			return mMaxBacklog;
+		}
+	}
+
+	/**
+	 * @return A new lane running one task at a time
+	 */
+	public Lane serial() {
+		return new Lane(1);
+	}
+
+	/**
+	 * @return A new lane running up to parallelism tasks at a time
+	 */
+	public Lane lane(int parallelism) {
+		return new Lane(parallelism);
+	}
+
+	private void record(long waitNanos, long runNanos, boolean failed) {
+		mTasks.incrementAndGet();
+		if (failed) mFailures.incrementAndGet();
+		mWaitNanos.addAndGet(waitNanos);
+		mRunNanos.addAndGet(runNanos);
+		raise(mMaxWaitNanos, waitNanos);
+		raise(mMaxRunNanos, runNanos);
+	}
+
+	/**
+	 * Raise max to value if it is lower; a new maximum is rare, so this is
+	 * usually a read and nothing more.
+	 */
+	private static void raise(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) return;
+		}
+	}
+
+	/**
+	 * Change the number of threads; lanes already waiting are not affected.
+	 */
+	public void setThreads(int threads) {
+		if (threads > mExecutor.getMaximumPoolSize()) {
+			mExecutor.setMaximumPoolSize(threads);
+			mExecutor.setCorePoolSize(threads);
+		} else {
+			mExecutor.setCorePoolSize(threads);
+			mExecutor.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * Let the tasks already running finish and start no others; what is
+	 * submitted afterwards is dropped. The threads are gone soon after.
+	 */
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * @return Whether shutdown() was called
+	 */
+	public boolean isShutdown() {
+		return mExecutor.isShutdown();
+	}
+
+	public int getThreads() {
+		return mExecutor.getMaximumPoolSize();
+	}
+
+	/**
+	 * @return Threads alive now, busy or idle
+	 */
+	public int getPoolSize() {
+		return mExecutor.getPoolSize();
+	}
+
+	public int getActive() {
+		return mExecutor.getActiveCount();
+	}
+
+	/**
+	 * @return Lanes waiting for a thread
+	 */
+	public int getQueued() {
+		return mQueue.size();
+	}
+
+	/**
+	 * @return Tasks run since the statistics were last reset
+	 */
+	public long getTasks() {
+		return mTasks.get();
+	}
+
+	/**
+	 * @return Mean time a task waited to start, in microseconds
+	 */
+	public long getAverageWaitMicros() {
+		long tasks = mTasks.get();
+		return (tasks == 0) ? 0 : mWaitNanos.get() / tasks / 1000;
+	}
+
+	public long getMaxWaitMicros() {
+		return mMaxWaitNanos.get() / 1000;
+	}
+
+	/**
+	 * @return Mean time a task ran, in microseconds
+	 */
+	public long getAverageRunMicros() {
+		long tasks = mTasks.get();
+		return (tasks == 0) ? 0 : mRunNanos.get() / tasks / 1000;
+	}
+
+	public long getMaxRunMicros() {
+		return mMaxRunNanos.get() / 1000;
+	}
+
+	/**
+	 * @return Tasks that threw
+	 */
+	public long getFailures() {
+		return mFailures.get();
+	}
+
+	public void resetStats() {
+		mTasks.set(0);
+		mWaitNanos.set(0);
+		mMaxWaitNanos.set(0);
+		mRunNanos.set(0);
+		mMaxRunNanos.set(0);
+		mFailures.set(0);
+	}
+}
@@ -0,0 +1,102 @@
+package com.example.android.BluetoothChat.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Compares a JMH JSON result against the checked in baseline and exits
+ * with status 1 if any benchmark lost more throughput, or allocates more
+ * per op, than the tolerance allows. The throughput of the benchmarks in
+ * NOT_GATED is only reported.
+ *
+ * Usage: CompareBaseline baseline.json result.json [tolerance percent, default 10]
+ */
+public class CompareBaseline {
+	private static final String ALLOC = "gc.alloc.rate.norm";
+	// Too noisy for the tolerance: DEFLATE over the history runs anywhere
+	// from 8k to 17k ops/s from one fork to the next on the same machine
+	private static final String[] NOT_GATED = { "CompressionBenchmark." };
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("usage: CompareBaseline baseline.json result.json [tolerance%]");
+			System.exit(2);
+		}
+		double tolerance = (args.length > 2) ? Double.parseDouble(args[2]) / 100 : 0.10;
+
+		Map<String, JSONObject> baseline = load(new File(args[0]));
+		Map<String, JSONObject> result = load(new File(args[1]));
+
+		boolean regressed = false;
+		System.out.printf("%-60s %14s %14s %8s %12s %12s%n", "benchmark", "base ops/s", "ops/s", "change", "base B/op", "B/op");
+		for (Map.Entry<String, JSONObject> entry : result.entrySet()) {
+			JSONObject before = baseline.get(entry.getKey());
+			JSONObject after = entry.getValue();
+			double score = after.getJSONObject("primaryMetric").getDouble("score");
+			double alloc = alloc(after);
+			if (before == null) {
+				System.out.printf("%-60s %14s %14.0f %8s %12s %12.1f%n", entry.getKey(), "-", score, "new", "-", alloc);
+				continue;
+			}
+
+			double baseScore = before.getJSONObject("primaryMetric").getDouble("score");
+			double baseAlloc = alloc(before);
+			double change = (score - baseScore) / baseScore;
+			boolean gated = isGated(entry.getKey());
+			boolean slower = gated && change < -tolerance;
+			boolean fatter = alloc >= 0 && baseAlloc >= 0 && alloc > baseAlloc * (1 + tolerance) + 16;
+			regressed |= slower || fatter;
+			System.out.printf("%-60s %14.0f %14.0f %+7.1f%% %12.1f %12.1f%s%n", entry.getKey(), baseScore, score,
+					change * 100, baseAlloc, alloc, (slower || fatter) ? "  REGRESSION" : gated ? "" : "  (ops/s not gated)");
+		}
+		System.exit(regressed ? 1 : 0);
+	}
+
+	private static boolean isGated(String name) {
+		for (int i = 0; i < NOT_GATED.length; i++) {
+			if (name.startsWith(NOT_GATED[i])) return false;
+		}
+		return true;
+	}
+
+	private static double alloc(JSONObject benchmark) {
+		JSONObject secondary = benchmark.optJSONObject("secondaryMetrics");
+		if (secondary == null) return -1;
+		for (String key : secondary.keySet()) {
+			if (key.endsWith(ALLOC)) return secondary.getJSONObject(key).getDouble("score");
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The benchmarks of a result file keyed by name and parameters
+	 */
+	private static Map<String, JSONObject> load(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			JSONArray results = new JSONArray(new JSONTokener(in));
+			Map<String, JSONObject> byName = new LinkedHashMap<String, JSONObject>();
+			for (int i = 0; i < results.length(); i++) {
+				JSONObject benchmark = results.getJSONObject(i);
+				String name = benchmark.getString("benchmark");
+				name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+				JSONObject params = benchmark.optJSONObject("params");
+				if (params != null) {
+					for (String key : params.keySet()) name += " " + key + "=" + params.getString(key);
+				}
+				byName.put(name, benchmark);
+			}
+			return byName;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.example.android.BluetoothChat.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.android.BluetoothChat.BluetoothMessage;
+import com.example.android.BluetoothChat.FrameCodec;
+import com.example.android.BluetoothChat.FrameCompressor;
+import com.example.android.BluetoothChat.OutboundFrame;
+
+/**
+ * What the writer spends deciding on and compressing a frame: a history
+ * batch of chat messages, which compresses, and a file chunk of random
+ * bytes standing in for a JPEG, which the entropy check should turn away
+ * cheaply.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+	private final FrameCompressor mCompressor = new FrameCompressor();
+	private OutboundFrame mHistory;
+	private OutboundFrame mCompressedChunk;
+	private byte[] mDeflated;
+
+	@Setup
+	public void setup() {
+		String[] lines = {
+			"Are we still on for lunch at the usual place?",
+			"Yes, see you at noon",
+			"Running ten minutes late, order for me",
+			"The usual?",
+		};
+		byte[] batch = new byte[8 * 1024];
+		int used = 0;
+		for (int seq = 1; ; seq++) {
+			byte[] m = new BluetoothMessage("Galaxy Nexus", "12:34:" + (seq % 60), lines[seq % lines.length]).getBytes();
+			if (used + 12 + m.length > batch.length) break;
+			FrameCodec.writeLong(batch, used, seq);
+			FrameCodec.writeInt(batch, used + 8, m.length);
+			System.arraycopy(m, 0, batch, used + 12, m.length);
+			used += 12 + m.length;
+		}
+		mHistory = new OutboundFrame(FrameCodec.FRAME_HISTORY, batch, 0, used);
+
+		byte[] chunk = new byte[8 * 1024];
+		new Random(42).nextBytes(chunk);
+		mCompressedChunk = new OutboundFrame(FrameCodec.FRAME_FILE_DATA, chunk);
+
+		int n = mCompressor.compress(mHistory);
+		mDeflated = new byte[n];
+		System.arraycopy(mCompressor.output(), 0, mDeflated, 0, n);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mCompressor.endCompress();
+		mCompressor.endInflate();
+	}
+
+	@Benchmark
+	public int compressHistory() {
+		return mCompressor.compress(mHistory);
+	}
+
+	@Benchmark
+	public int skipCompressedChunk() {
+		return mCompressor.compress(mCompressedChunk);
+	}
+
+	@Benchmark
+	public int inflateHistory() throws Exception {
+		return mCompressor.inflate(mDeflated, 0, mDeflated.length);
+	}
+}
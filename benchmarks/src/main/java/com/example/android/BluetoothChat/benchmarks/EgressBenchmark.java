@@ -0,0 +1,59 @@
+package com.example.android.BluetoothChat.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.android.BluetoothChat.EgressScheduler;
+
+/**
+ * What the writer pays the egress scheduler per frame when it is not held
+ * back: with the buckets off, and with them on at a rate high enough that
+ * they never run dry, so only the bookkeeping is measured. Neither should
+ * allocate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EgressBenchmark {
+	@Param({"false", "true"})
+	public boolean limited;
+
+	private EgressScheduler mScheduler;
+	private EgressScheduler.Flow mFlow;
+
+	@Setup
+	public void setup() {
+		mScheduler = new EgressScheduler();
+		if (limited) {
+			mScheduler.setLinkRate(1L << 40, 100);
+			mScheduler.setPeerRate(null, 1L << 40);
+		} else {
+			mScheduler.setLinkRate(0, 0);
+		}
+		mFlow = mScheduler.register("00:11:22:33:44:55");
+	}
+
+	@Benchmark
+	public boolean chatFrame() {
+		return mScheduler.tryAcquire(mFlow, EgressScheduler.INTERACTIVE, 80);
+	}
+
+	@Benchmark
+	public boolean fileChunk() {
+		return mScheduler.tryAcquire(mFlow, EgressScheduler.BULK, 8 * 1024 + 25);
+	}
+}
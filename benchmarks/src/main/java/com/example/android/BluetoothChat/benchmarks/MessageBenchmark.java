@@ -0,0 +1,105 @@
+package com.example.android.BluetoothChat.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.example.android.BluetoothChat.BluetoothMessage;
+import com.example.android.BluetoothChat.MessageCodec;
+import com.example.android.BluetoothChat.MessageView;
+
+/**
+ * Cost of turning a chat message into bytes and back.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageBenchmark {
+	private BluetoothMessage mMessage;
+	private byte[] mEncoded;
+	private byte[] mBinary;
+	private byte[] mFileChunk;
+	private final MessageCodec mCodec = new MessageCodec();
+	private final MessageView mView = new MessageView();
+
+	@Setup
+	public void setup() {
+		mMessage = new BluetoothMessage("Galaxy Nexus", "12:34:56", "Are we still on for lunch at the usual place?");
+		mEncoded = mMessage.getJSONStr();
+		mBinary = mMessage.getBytes();
+
+		// What the old read loop handed to the parser while receiving a file
+		mFileChunk = new byte[1024];
+		new Random(42).nextBytes(mFileChunk);
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return mMessage.getJSONStr();
+	}
+
+	@Benchmark
+	public BluetoothMessage decode() {
+		return new BluetoothMessage(new String(mEncoded));
+	}
+
+	@Benchmark
+	public BluetoothMessage decodeNotJson() {
+		return new BluetoothMessage(new String(mFileChunk));
+	}
+
+	@Benchmark
+	public byte[] encodeBinary() {
+		return mMessage.getBytes();
+	}
+
+	@Benchmark
+	public int encodeBinaryReused() {
+		return mCodec.encode(mMessage);
+	}
+
+	@Benchmark
+	public BluetoothMessage decodeBinary() {
+		return BluetoothMessage.fromBytes(mBinary, 0, mBinary.length);
+	}
+
+	@Benchmark
+	public BluetoothMessage decodeBinaryNotMessage() {
+		return BluetoothMessage.fromBytes(mFileChunk, 0, mFileChunk.length);
+	}
+
+	/**
+	 * What the relay reads of a message: its type and timestamps, no text.
+	 */
+	@Benchmark
+	public long wrapView() {
+		mView.wrap(mBinary, 0, mBinary.length);
+		return mView.getSentAt() + mView.getType();
+	}
+
+	/**
+	 * What the UI reads of one: the text fields, from its own copy.
+	 */
+	@Benchmark
+	public void viewText(Blackhole blackhole) {
+		mView.wrap(mBinary, 0, mBinary.length);
+		MessageView copy = mView.copy();
+		blackhole.consume(copy.getAuthor());
+		blackhole.consume(copy.getDate());
+		blackhole.consume(copy.getText());
+	}
+}
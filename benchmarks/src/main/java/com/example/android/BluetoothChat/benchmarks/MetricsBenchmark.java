@@ -0,0 +1,51 @@
+package com.example.android.BluetoothChat.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.example.android.BluetoothChat.ChatMetrics;
+
+/**
+ * What the metrics add to each frame read or written: the counter updates
+ * of a peer and a histogram sample, from four threads at once as with a
+ * busy hub. Neither should allocate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+	private ChatMetrics mMetrics;
+	private ChatMetrics.Peer mPeer;
+
+	@Setup
+	public void setup() {
+		mMetrics = new ChatMetrics();
+		mPeer = mMetrics.peer("00:11:22:33:44:55");
+	}
+
+	@Benchmark
+	public void frameCounters() {
+		mPeer.framesOut.incrementAndGet();
+		mPeer.bytesOut.addAndGet(80);
+	}
+
+	@Benchmark
+	public void histogramRecord() {
+		mMetrics.connectLatency.record(System.nanoTime() & 0xffffff);
+	}
+}
@@ -0,0 +1,233 @@
+package com.example.android.BluetoothChat.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.example.android.BluetoothChat.BluetoothMessage;
+import com.example.android.BluetoothChat.BufferPool;
+import com.example.android.BluetoothChat.ChatMetrics;
+import com.example.android.BluetoothChat.ChatRelay;
+import com.example.android.BluetoothChat.EgressScheduler;
+import com.example.android.BluetoothChat.FrameCodec;
+import com.example.android.BluetoothChat.FrameCompressor;
+import com.example.android.BluetoothChat.FrameWriter;
+import com.example.android.BluetoothChat.MessageJournal;
+import com.example.android.BluetoothChat.MessageView;
+import com.example.android.BluetoothChat.OutboundFrame;
+import com.example.android.BluetoothChat.OutboundQueue;
+
+/**
+ * The hub's path for one chat message, from the bytes read off the
+ * sender's socket to the frames written to each other peer's, as
+ * ConnectedThread and BluetoothChatService.publish() take it, through
+ * the same ChatRelay and FrameWriter code:
+ *
+ * - the reader decodes the frame, accepts its sequence number and copies
+ *   the payload into a pooled buffer for the connection's lane;
+ * - the lane reads the message in place, copies it for the UI and
+ *   publishes it: ChatRelay builds a pooled payload with the hub's trace,
+ *   appends it to the journal and numbers it, and it is queued to every
+ *   peer with offerNow();
+ * - each peer's writer takes the frame and its FrameWriter compresses it
+ *   (the peers agreed to DEFLATE), waits its turn from the
+ *   EgressScheduler, writes header and payload to a buffered stream over
+ *   the socket and releases it;
+ *   the peer's acknowledgement comes back, and the sender's writer sends
+ *   the hub's.
+ *
+ * The lane and writer threads are stood in for by the benchmark thread,
+ * and the sockets by a stream that discards what it is given; the link
+ * rate is set high enough that the buckets never run dry, so no writer
+ * ever waits.
+ *
+ * forward() leaves out the copy for the UI and the journal: what it
+ * allocates per op is the cost of the transport alone, which should stay
+ * at the OutboundFrames of the message and of the hub's acknowledgement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RelayBenchmark {
+	@Param({"1", "2", "3", "4", "5", "6", "7"})
+	public int peers;
+
+	/**
+	 * Discards what is written, as a socket would as far as the writer
+	 * can tell.
+	 */
+	private static class NullStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+
+	/**
+	 * One connection of the hub and what its writer thread holds.
+	 */
+	private class Link {
+		final OutboundQueue queue = new OutboundQueue(16, OutboundQueue.Policy.DROP_OLDEST);
+		final int generation;
+		final EgressScheduler.Flow flow;
+		final ChatMetrics.Peer metrics;
+		final OutputStream out = new BufferedOutputStream(new NullStream(), FrameCodec.HEADER_SIZE + 8 * 1024);
+		final FrameWriter writer;
+
+		Link(int index) throws IOException {
+			String address = "00:11:22:33:44:" + index;
+			generation = queue.attach(FrameCodec.CAP_DEFLATE);
+			queue.onHello(index + 1, 0, 0, FrameCodec.CAP_DEFLATE);
+			flow = mEgress.register(address);
+			metrics = mMetrics.peer(address);
+			writer = new FrameWriter(out, queue, new FrameCompressor(), mEgress, flow, metrics);
+			write();
+		}
+
+		/**
+		 * What WriterThread does with everything there is to write now,
+		 * after which the peer acknowledges it.
+		 */
+		void write() throws IOException {
+			int acked = 0;
+			try {
+				while (queue.isReady()) {
+					if (!writer.write(queue.take(generation))) {
+						throw new IllegalStateException("Flow closed");
+					}
+					if (queue.takenSeq() != 0) acked = queue.takenSeq();
+				}
+			} catch (InterruptedException e) {
+				throw new IOException(e.toString());
+			}
+			out.flush();
+			if (acked != 0) queue.onAck(acked);
+		}
+	}
+
+	private final BufferPool mBuffers = new BufferPool(FrameCodec.MAX_PAYLOAD);
+	private final ChatMetrics mMetrics = new ChatMetrics();
+	private final EgressScheduler mEgress = new EgressScheduler();
+	private final MessageView mView = new MessageView();
+	private Link mSender;
+	private Link[] mPeers;
+	private File mJournalDir;
+	private MessageJournal mJournal;
+	private FrameCodec.Decoder mDecoder;
+	private byte[] mWire;
+	private int mSeq;
+	private boolean mRelay;
+	private Blackhole mBlackhole;
+
+	@Setup
+	public void setup(Blackhole blackhole) throws IOException {
+		mBlackhole = blackhole;
+		mEgress.setLinkRate(1L << 40, EgressScheduler.DEFAULT_LATENCY_TARGET_MILLIS);
+
+		mSender = new Link(0);
+		mPeers = new Link[peers];
+		for (int i = 0; i < peers; i++) {
+			mPeers[i] = new Link(i + 1);
+		}
+		mJournalDir = File.createTempFile("journal", "");
+		mJournalDir.delete();
+		mJournal = new MessageJournal(mJournalDir);
+
+		byte[] payload = new BluetoothMessage("Galaxy Nexus", "12:34:56", "Are we still on for lunch at the usual place?").stamp().getBytes();
+		mWire = FrameCodec.encode(FrameCodec.FRAME_MESSAGE, 1, payload, 0, payload.length);
+
+		mDecoder = new FrameCodec.Decoder(new FrameCodec.FrameListener() {
+			public void onFrame(int type, int seq, byte[] buffer, int offset, int length) throws IOException {
+				mSender.metrics.framesIn.incrementAndGet();
+				if (seq != 0 && !mSender.queue.accept(seq)) return;
+				// Handed to the lane
+				byte[] read = mBuffers.acquire(length);
+				System.arraycopy(buffer, offset, read, 0, length);
+				try {
+					handleMessage(read, 0, length);
+				} finally {
+					mSender.queue.processed(seq);
+					mBuffers.release(read);
+				}
+			}
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		mJournal.close();
+		File[] files = mJournalDir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+		mJournalDir.delete();
+	}
+
+	/**
+	 * ConnectedThread.handleFrame() for a chat message read by the hub.
+	 */
+	private void handleMessage(byte[] buffer, int offset, int length) throws IOException {
+		MessageView m = mView;
+		if (!m.wrap(buffer, offset, length) || !m.isText()) return;
+		// The UI gets a copy and decodes its text
+		if (mRelay) mBlackhole.consume(m.copy());
+		publish(buffer, offset, length, m.getSentAt());
+	}
+
+	/**
+	 * BluetoothChatService.publish(), for a sender whose clock is not known yet.
+	 */
+	private void publish(byte[] message, int offset, int length, long sentAt) {
+		OutboundFrame frame = ChatRelay.message(mBuffers, message, offset, length, sentAt,
+				(sentAt != 0) ? ChatMetrics.now() : 0, -1);
+		ChatRelay.number(mRelay ? mJournal : null, frame, length);
+		for (int i = 0; i < mPeers.length; i++) {
+			mPeers[i].queue.offerNow(frame);
+		}
+		frame.release();
+	}
+
+	@Benchmark
+	public void relay() throws IOException {
+		mRelay = true;
+		receive();
+	}
+
+	@Benchmark
+	public void forward() throws IOException {
+		mRelay = false;
+		receive();
+	}
+
+	private void receive() throws IOException {
+		FrameCodec.writeInt(mWire, 1, ++mSeq);
+		mDecoder.feed(mWire, 0, mWire.length);
+		mSender.queue.acknowledge();
+		for (int i = 0; i < mPeers.length; i++) {
+			mPeers[i].write();
+		}
+		mSender.write();
+	}
+}
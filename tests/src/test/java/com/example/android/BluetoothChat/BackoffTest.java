@@ -0,0 +1,63 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BackoffTest {
+	private static final long BASE = 500;
+	private static final long MAX = 30000;
+	private static final int SAMPLES = 2000;
+
+	/**
+	 * @return The ceiling of the delay of an attempt
+	 */
+	private static long ceiling(int attempt) {
+		return Math.min(MAX, BASE << attempt);
+	}
+
+	@Test
+	public void delaysDoubleUpToTheMaximum() {
+		Backoff backoff = new Backoff(BASE, MAX);
+		for (int attempt = 0; attempt < 40; attempt++) {
+			long delay = backoff.next();
+			long ceiling = ceiling(Math.min(attempt, 30));
+			assertTrue("attempt " + attempt + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+		}
+		assertEquals(40, backoff.getAttempts());
+	}
+
+	@Test
+	public void resetStartsOverFromTheBase() {
+		Backoff backoff = new Backoff(BASE, MAX);
+		for (int i = 0; i < 10; i++) backoff.next();
+		backoff.reset();
+		assertEquals(0, backoff.getAttempts());
+		long delay = backoff.next();
+		assertTrue(delay >= BASE / 2 && delay <= BASE);
+	}
+
+	@Test
+	public void jitterSpreadsOverTheUpperHalf() {
+		// Clients that lost the hub together should not all come back together
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		int[] halves = new int[2];
+		for (int i = 0; i < SAMPLES; i++) {
+			Backoff backoff = new Backoff(BASE, MAX);
+			for (int a = 0; a < 5; a++) backoff.next();
+			long delay = backoff.next();
+			long ceiling = ceiling(5);
+			assertTrue(delay >= ceiling / 2 && delay <= ceiling);
+			min = Math.min(min, delay);
+			max = Math.max(max, delay);
+			halves[(delay < ceiling * 3 / 4) ? 0 : 1]++;
+		}
+		long ceiling = ceiling(5);
+		assertTrue("lowest " + min, min < ceiling / 2 + ceiling / 20);
+		assertTrue("highest " + max, max > ceiling - ceiling / 20);
+		// Either half of the range gets a fair share
+		assertTrue(halves[0] > SAMPLES / 3 && halves[1] > SAMPLES / 3);
+	}
+}
@@ -0,0 +1,73 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The round trip and clock offset a peer's pongs give, the NTP way.
+ */
+public class ChatMetricsTest {
+	// The peer's clock less ours, in microseconds
+	private static final long OFFSET = 5000000;
+
+	private long mClock = 1000;
+
+	/**
+	 * Exchange a ping and a pong over a link with the given one-way delays.
+	 * @param out  From us to the peer, microseconds
+	 * @param back  From the peer to us
+	 */
+	private void ping(ChatMetrics.Peer peer, long out, long back) {
+		long sent = mClock;
+		long peerReceived = sent + out + OFFSET;
+		// The peer takes a while to answer, which is not part of the round trip
+		long peerSent = peerReceived + 50;
+		long received = peerSent - OFFSET + back;
+		peer.onPong(sent, peerReceived, peerSent, received);
+		mClock = received + 1000;
+	}
+
+	@Test
+	public void aSymmetricPongGivesTheOffsetAndTheRoundTrip() {
+		ChatMetrics.Peer peer = new ChatMetrics().peer("peer");
+		assertFalse(peer.hasClock());
+
+		ping(peer, 300, 300);
+		assertTrue(peer.hasClock());
+		assertEquals(OFFSET, peer.getClockOffset());
+		assertEquals(2000, peer.toLocal(2000 + OFFSET));
+		assertEquals(1, peer.rtt.getCount());
+		assertEquals(600, peer.rtt.getMax());
+	}
+
+	@Test
+	public void theOffsetComesFromTheShortestRoundTripOfTheLastSamples() {
+		ChatMetrics.Peer peer = new ChatMetrics().peer("peer");
+		// Queuing on the way out skews the offset by half the asymmetry
+		ping(peer, 2300, 300);
+		assertEquals(OFFSET + 1000, peer.getClockOffset());
+		ping(peer, 300, 300);
+		for (int i = 0; i < 6; i++) {
+			ping(peer, 300 + 200 * (i + 1), 300);
+		}
+		assertEquals(OFFSET, peer.getClockOffset());
+		assertEquals(8, peer.rtt.getCount());
+
+		// The skewed sample leaves the last eight, then the best one does
+		ping(peer, 700, 300);
+		assertEquals(OFFSET, peer.getClockOffset());
+		ping(peer, 450, 300);
+		assertEquals(OFFSET + 75, peer.getClockOffset());
+	}
+
+	@Test
+	public void aPongWithANegativeRoundTripIsIgnored() {
+		ChatMetrics.Peer peer = new ChatMetrics().peer("peer");
+		peer.onPong(1000, 1100 + OFFSET, 1500 + OFFSET, 1200);
+		assertFalse(peer.hasClock());
+		assertEquals(0, peer.rtt.getCount());
+	}
+}
@@ -0,0 +1,202 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Entries replaced on a reconnect, removed only by their own connection,
+ * and snapshots that do not change under their readers.
+ */
+public class ClientRegistryTest {
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	// Only makes the connections, which are never started
+	private BluetoothChatService mService;
+	private final ClientRegistry mRegistry = new ClientRegistry();
+
+	/**
+	 * A connection that is never read from or written to.
+	 */
+	private static class Idle implements Transport.Connection {
+		private final String mAddress;
+
+		Idle(String address) {
+			mAddress = address;
+		}
+
+		public void connect() {
+		}
+
+		public InputStream getInputStream() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
+		public OutputStream getOutputStream() {
+			return new ByteArrayOutputStream();
+		}
+
+		public String getRemoteAddress() {
+			return mAddress;
+		}
+
+		public String getRemoteName() {
+			return "name of " + mAddress;
+		}
+
+		public void close() {
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		final File files = mFolder.newFolder();
+		final File downloads = mFolder.newFolder();
+		ChatStorage storage = new ChatStorage() {
+			public File getFilesDir() {
+				return files;
+			}
+
+			public File getDownloadDir() {
+				return downloads;
+			}
+
+			public OutgoingFile open(String uri) {
+				return OutgoingFile.of(new File(uri));
+			}
+		};
+		ChatListener listener = new ChatListener() {
+			public void onStateChange(int state) {
+			}
+
+			public void onDeviceName(String name) {
+			}
+
+			public void onMessageRead(MessageView message) {
+			}
+
+			public void onMessageWritten(byte[] message) {
+			}
+
+			public void onToast(String text) {
+			}
+		};
+		mService = new BluetoothChatService(storage, listener, new PipeTransport("registry-test"));
+	}
+
+	@After
+	public void tearDown() {
+		mService.close();
+	}
+
+	private BluetoothClient client(String address) {
+		Idle connection = new Idle(address);
+		return new BluetoothClient(connection, mService.new ConnectedThread(connection, "Test", 0, false));
+	}
+
+	@Test
+	public void aReconnectReplacesTheOldEntry() {
+		BluetoothClient first = client("peer");
+		BluetoothClient other = client("other");
+		assertNull(mRegistry.add(first));
+		assertNull(mRegistry.add(other));
+
+		BluetoothClient again = client("peer");
+		assertSame(first, mRegistry.add(again));
+		assertSame(again, mRegistry.get("peer"));
+		assertEquals(2, mRegistry.size());
+		BluetoothClient[] clients = mRegistry.snapshot();
+		for (int i = 0; i < clients.length; i++) {
+			assertTrue(clients[i] == again || clients[i] == other);
+		}
+	}
+
+	@Test
+	public void removeOnlyDropsTheEntryOfTheSameConnection() {
+		BluetoothClient first = client("peer");
+		BluetoothClient again = client("peer");
+		mRegistry.add(first);
+		mRegistry.add(again);
+
+		// The old connection ending must not drop the device's new one
+		assertFalse(mRegistry.remove("peer", first.connectedThread));
+		assertSame(again, mRegistry.get("peer"));
+		assertEquals(1, mRegistry.size());
+
+		assertTrue(mRegistry.remove("peer", again.connectedThread));
+		assertNull(mRegistry.get("peer"));
+		assertEquals(0, mRegistry.size());
+		assertFalse(mRegistry.remove("peer", again.connectedThread));
+		assertFalse(mRegistry.remove("unknown", again.connectedThread));
+	}
+
+	@Test
+	public void aSnapshotStaysAsItWasWhileTheRegistryChanges() {
+		BluetoothClient a = client("a");
+		BluetoothClient b = client("b");
+		mRegistry.add(a);
+		mRegistry.add(b);
+		BluetoothClient[] before = mRegistry.snapshot();
+		BluetoothClient[] copy = before.clone();
+
+		mRegistry.add(client("c"));
+		mRegistry.remove("a", a.connectedThread);
+		mRegistry.add(client("b"));
+		assertArrayEquals(copy, before);
+		assertEquals(2, mRegistry.size());
+
+		BluetoothClient[] cleared = mRegistry.clear();
+		assertEquals(2, cleared.length);
+		assertEquals(0, mRegistry.snapshot().length);
+		assertArrayEquals(copy, before);
+	}
+
+	@Test
+	public void readersSeeWholeSnapshotsWhilePeersComeAndGo() throws InterruptedException {
+		final BluetoothClient[] clients = new BluetoothClient[8];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = client("peer" + i);
+		}
+		final AtomicReference<String> problem = new AtomicReference<String>();
+		final long end = System.currentTimeMillis() + 500;
+		Thread reader = new Thread() {
+			public void run() {
+				while (System.currentTimeMillis() < end && problem.get() == null) {
+					BluetoothClient[] snapshot = mRegistry.snapshot();
+					for (int i = 0; i < snapshot.length; i++) {
+						if (snapshot[i] == null) problem.set("hole in a snapshot of " + snapshot.length);
+					}
+				}
+			}
+		};
+		reader.start();
+		for (int n = 0; System.currentTimeMillis() < end; n++) {
+			BluetoothClient c = clients[n % clients.length];
+			if (mRegistry.get(c.deviceAdress) == null) {
+				mRegistry.add(c);
+			} else {
+				mRegistry.remove(c.deviceAdress, c.connectedThread);
+			}
+		}
+		reader.join();
+		assertNull(problem.get(), problem.get());
+	}
+}
@@ -0,0 +1,177 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The ring of rows the conversation shows, and paging it back and forth
+ * through the journal the rows are written to, as the adapter does.
+ */
+public class ConversationWindowTest {
+	private static final int CAPACITY = 4;
+	private static final int PAGE = 3;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private MessageJournal mJournal;
+	private ConversationWindow mWindow;
+	private int mRows;
+
+	@Before
+	public void setUp() throws IOException {
+		mJournal = new MessageJournal(mFolder.newFolder());
+		mWindow = new ConversationWindow(CAPACITY, mJournal.getNextSeq(), true);
+	}
+
+	@After
+	public void tearDown() {
+		mJournal.close();
+	}
+
+	/**
+	 * Add rows "row N" after the last, to the journal and the window, as
+	 * one frame does.
+	 * @return What flush() returned
+	 */
+	private boolean add(int rows) throws IOException {
+		for (int i = 0; i < rows; i++) {
+			byte[] bytes = ("row " + ++mRows).getBytes("UTF-8");
+			assertEquals(mJournal.append(bytes, 0, bytes.length), mWindow.append("row " + mRows));
+		}
+		return mWindow.flush();
+	}
+
+	private int pageOlder() throws IOException {
+		long end = mWindow.seqAt(0);
+		long from = mWindow.olderFrom(PAGE);
+		return mWindow.putOlder(end, mJournal.read(from, (int) (end - from)));
+	}
+
+	private int pageNewer() throws IOException {
+		long from = mWindow.newerFrom();
+		return mWindow.putNewer(from, mJournal.read(from, mWindow.newerCount(PAGE)));
+	}
+
+	/**
+	 * Assert the window holds rows first to first + CAPACITY - 1, in order.
+	 */
+	private void assertShows(int first) {
+		assertEquals(CAPACITY, mWindow.size());
+		for (int i = 0; i < CAPACITY; i++) {
+			assertEquals("row " + (first + i), mWindow.get(i));
+			assertEquals(mWindow.seqAt(0) + i, mWindow.seqAt(i));
+		}
+	}
+
+	@Test
+	public void aFullWindowDropsTheOldestRow() throws IOException {
+		assertTrue(add(2));
+		assertEquals(2, mWindow.size());
+		assertEquals("row 1", mWindow.get(0));
+
+		assertTrue(add(4));
+		assertShows(3);
+		assertTrue(mWindow.hasOlder());
+		assertFalse(mWindow.hasNewer());
+	}
+
+	@Test
+	public void pagingBackReadsOlderRowsAndDropsTheNewest() throws IOException {
+		add(10);
+		assertShows(7);
+
+		assertEquals(PAGE, pageOlder());
+		assertShows(4);
+		assertTrue(mWindow.hasNewer());
+
+		// Only what is left before the first row
+		assertEquals(3, pageOlder());
+		assertShows(1);
+		assertFalse(mWindow.hasOlder());
+	}
+
+	@Test
+	public void pagingDownReadsBackTheNewestAndFollowsTheConversationAgain() throws IOException {
+		add(10);
+		pageOlder();
+		pageOlder();
+		assertShows(1);
+
+		// A window scrolled back does not move when rows are added
+		assertFalse(add(2));
+		assertShows(1);
+
+		assertEquals(PAGE, pageNewer());
+		assertShows(4);
+		assertEquals(PAGE, pageNewer());
+		assertShows(7);
+		assertEquals(2, pageNewer());
+		assertShows(9);
+		assertFalse(mWindow.hasNewer());
+
+		// At the end again, it follows the conversation
+		assertTrue(add(1));
+		assertShows(10);
+	}
+
+	@Test
+	public void aPageForAWindowThatHasMovedIsIgnored() throws IOException {
+		add(10);
+		long end = mWindow.seqAt(0);
+		ArrayList<MessageJournal.Entry> page = mJournal.read(mWindow.olderFrom(PAGE), PAGE);
+		add(1);
+		assertEquals(-1, mWindow.putOlder(end, page));
+		assertShows(8);
+
+		pageOlder();
+		long from = mWindow.newerFrom();
+		page = mJournal.read(from, PAGE);
+		pageNewer();
+		assertEquals(-1, mWindow.putNewer(from, page));
+		assertShows(8);
+	}
+
+	@Test
+	public void rowsNoLongerKeptEndThePaging() throws IOException {
+		add(10);
+		assertEquals(0, mWindow.putOlder(mWindow.seqAt(0), new ArrayList<MessageJournal.Entry>()));
+		assertFalse(mWindow.hasOlder());
+		assertShows(7);
+	}
+
+	@Test
+	public void rowsFromBeforeAClearAreNotPagedIn() throws IOException {
+		add(3);
+		mWindow.clear();
+		assertEquals(0, mWindow.size());
+		assertFalse(mWindow.hasOlder());
+
+		add(5);
+		assertShows(5);
+		assertEquals(1, pageOlder());
+		assertEquals("row 4", mWindow.get(0));
+		assertFalse(mWindow.hasOlder());
+	}
+
+	@Test
+	public void withoutAJournalOnlyTheWindowIsKept() {
+		ConversationWindow window = new ConversationWindow(CAPACITY, 1, false);
+		for (int i = 1; i <= CAPACITY * 2; i++) window.append("row " + i);
+		assertTrue(window.flush());
+		assertEquals(CAPACITY, window.size());
+		assertEquals("row " + (CAPACITY + 1), window.get(0));
+		assertFalse(window.hasOlder());
+		assertFalse(window.hasNewer());
+	}
+}
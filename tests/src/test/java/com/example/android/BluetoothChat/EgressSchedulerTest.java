@@ -0,0 +1,125 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class EgressSchedulerTest {
+	private static final int FRAME = 1000;
+
+	/**
+	 * A writer sending frames of one class as fast as the scheduler lets it.
+	 */
+	private static class Writer extends Thread {
+		final EgressScheduler scheduler;
+		final EgressScheduler.Flow flow;
+		final int cls;
+		final AtomicLong bytes = new AtomicLong();
+
+		Writer(EgressScheduler scheduler, String address, int cls) {
+			this.scheduler = scheduler;
+			this.flow = scheduler.register(address);
+			this.cls = cls;
+		}
+
+		public void run() {
+			try {
+				while (scheduler.acquire(flow, cls, FRAME)) {
+					bytes.addAndGet(FRAME);
+				}
+			} catch (InterruptedException e) {
+				// Done
+			}
+		}
+	}
+
+	/**
+	 * @return The bytes each writer was let through while all of them
+	 * wanted the link, after the buckets' first burst
+	 */
+	private static long[] contend(EgressScheduler scheduler, Writer[] writers) throws InterruptedException {
+		for (int i = 0; i < writers.length; i++) writers[i].start();
+		Thread.sleep(300);
+		long[] before = new long[writers.length];
+		for (int i = 0; i < writers.length; i++) before[i] = writers[i].bytes.get();
+		Thread.sleep(1000);
+		long[] sent = new long[writers.length];
+		for (int i = 0; i < writers.length; i++) sent[i] = writers[i].bytes.get() - before[i];
+		for (int i = 0; i < writers.length; i++) {
+			writers[i].flow.close();
+			writers[i].join(5000);
+		}
+		return sent;
+	}
+
+	/**
+	 * @return Milliseconds it took to let bytes through in FRAME sized frames
+	 */
+	private static long send(EgressScheduler scheduler, EgressScheduler.Flow flow, int cls, int bytes) throws InterruptedException {
+		long start = System.nanoTime();
+		for (int sent = 0; sent < bytes; sent += FRAME) {
+			assertTrue(scheduler.acquire(flow, cls, FRAME));
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	@Test
+	public void linkBucketPacesToTheRate() throws InterruptedException {
+		long rate = 200 * 1000;
+		EgressScheduler scheduler = new EgressScheduler();
+		scheduler.setLinkRate(rate, EgressScheduler.DEFAULT_LATENCY_TARGET_MILLIS);
+		EgressScheduler.Flow flow = scheduler.register("peer");
+		// The bucket starts empty, then refills at the rate
+		long millis = send(scheduler, flow, EgressScheduler.INTERACTIVE, 100 * 1000);
+		long expected = 100 * 1000 * 1000L / rate;
+		assertTrue(millis + " ms", millis >= expected * 9 / 10 && millis < expected + 400);
+	}
+
+	@Test
+	public void peerLimitHoldsBackFileDataOnly() throws InterruptedException {
+		long rate = 100 * 1000;
+		EgressScheduler scheduler = new EgressScheduler();
+		scheduler.setPeerRate("peer", rate);
+		EgressScheduler.Flow flow = scheduler.register("peer");
+		EgressScheduler.Flow other = scheduler.register("other");
+
+		assertTrue(send(scheduler, flow, EgressScheduler.INTERACTIVE, 50 * 1000) < 100);
+		assertTrue(send(scheduler, other, EgressScheduler.BULK, 50 * 1000) < 100);
+		long millis = send(scheduler, flow, EgressScheduler.BULK, 50 * 1000);
+		long expected = 50 * 1000 * 1000L / rate;
+		assertTrue(millis + " ms", millis >= expected * 8 / 10 && millis < expected + 400);
+	}
+
+	@Test
+	public void peersShareTheLinkEvenly() throws InterruptedException {
+		EgressScheduler scheduler = new EgressScheduler();
+		scheduler.setLinkRate(100 * 1000, EgressScheduler.DEFAULT_LATENCY_TARGET_MILLIS);
+		Writer[] writers = new Writer[3];
+		for (int i = 0; i < writers.length; i++) {
+			writers[i] = new Writer(scheduler, "peer" + i, EgressScheduler.BULK);
+		}
+		long[] sent = contend(scheduler, writers);
+		long total = 0;
+		for (int i = 0; i < sent.length; i++) total += sent[i];
+		assertTrue("sent " + total, total > 50 * 1000);
+		for (int i = 0; i < sent.length; i++) {
+			// A third each, give or take a few frames
+			assertTrue("peer " + i + " sent " + sent[i] + " of " + total,
+					Math.abs(sent[i] - total / sent.length) <= total / 10 + 2 * FRAME);
+		}
+	}
+
+	@Test
+	public void chatGoesAheadOfFileData() throws InterruptedException {
+		EgressScheduler scheduler = new EgressScheduler();
+		scheduler.setLinkRate(100 * 1000, EgressScheduler.DEFAULT_LATENCY_TARGET_MILLIS);
+		Writer chat = new Writer(scheduler, "chat", EgressScheduler.INTERACTIVE);
+		Writer files = new Writer(scheduler, "files", EgressScheduler.BULK);
+		long[] sent = contend(scheduler, new Writer[] { chat, files });
+		// The interactive class weighs 16 times as much; file data is not starved
+		assertTrue(sent[0] + " against " + sent[1], sent[0] > 8 * sent[1]);
+		assertTrue(sent[1] > 0);
+	}
+}
@@ -0,0 +1,288 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileReceiverTest {
+	private static final int CHUNK = FileReceiver.CHUNK_SIZE;
+	private static final long ID = 0x8000000000000abcL;
+	// Four full chunks and a short last one
+	private static final int SIZE = 4 * CHUNK + 1000;
+	private static final int CHUNKS = 5;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDir;
+	private File mManifests;
+	private byte[] mData;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = mFolder.newFolder("files");
+		mManifests = mFolder.newFolder("transfers");
+		mData = new byte[SIZE];
+		new Random(7).nextBytes(mData);
+	}
+
+	private FileReceiver create() throws IOException {
+		return FileReceiver.create(mDir, mManifests, ID, "Ann", "../photo.jpg", SIZE);
+	}
+
+	private boolean write(FileReceiver r, int index) throws IOException {
+		int offset = index * CHUNK;
+		int length = Math.min(CHUNK, SIZE - offset);
+		CRC32 crc = new CRC32();
+		crc.update(mData, offset, length);
+		return r.writeChunk(index, (int) crc.getValue(), mData, offset, length);
+	}
+
+	private File manifest() {
+		return new File(mManifests, Long.toHexString(ID) + ".manifest");
+	}
+
+	private byte[] read(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < bytes.length) n += in.read(bytes, n, bytes.length - n);
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	@Test
+	public void chunksInAnyOrderMakeTheFile() throws IOException {
+		FileReceiver r = create();
+		assertEquals("photo.jpg", r.getName());
+		int[] order = {3, 0, 4, 1, 2};
+		for (int i = 0; i < order.length; i++) {
+			assertTrue(write(r, order[i]));
+		}
+		r.setChunkCount(CHUNKS);
+		assertTrue(r.isComplete());
+		assertEquals(0, r.getMissing().length);
+
+		File saved = r.finish();
+		assertEquals(new File(mDir, "photo.jpg"), saved);
+		assertArrayEquals(mData, read(saved));
+		// No temp file is left behind, the manifest says it is done
+		assertEquals(1, mDir.list().length);
+		FileReceiver resumed = FileReceiver.resume(mDir, mManifests, ID);
+		assertTrue(resumed.isDone());
+	}
+
+	@Test
+	public void aFileThatCouldNotBeSavedIsNotReportedDone() throws IOException {
+		FileReceiver r = create();
+		for (int i = 0; i < CHUNKS; i++) {
+			write(r, i);
+		}
+		// Something else is in the way of the saved file
+		File blocker = new File(mDir, "photo.jpg");
+		assertTrue(blocker.mkdir());
+		assertTrue(new File(blocker, "kept").createNewFile());
+		try {
+			r.finish();
+			fail("Saved over a directory");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertFalse(r.isDone());
+		FileReceiver resumed = FileReceiver.resume(mDir, mManifests, ID);
+		assertTrue(resumed == null || !resumed.isDone());
+	}
+
+	@Test
+	public void damagedChunkIsAskedForAgain() throws IOException {
+		FileReceiver r = create();
+		assertTrue(write(r, 0));
+		mData[CHUNK + 5] ^= 1;
+		CRC32 crc = new CRC32();
+		crc.update(mData, CHUNK, CHUNK);
+		mData[CHUNK + 5] ^= 1;
+		assertFalse(r.writeChunk(1, (int) crc.getValue(), mData, CHUNK, CHUNK));
+		r.setChunkCount(CHUNKS);
+		assertArrayEquals(new int[] {1, 4}, r.getMissing());
+	}
+
+	@Test
+	public void missingEndsWithToEndUntilTheCountIsKnown() throws IOException {
+		FileReceiver r = create();
+		write(r, 0);
+		write(r, 2);
+		assertArrayEquals(new int[] {1, 1, 3, FileReceiver.TO_END}, r.getMissing());
+		r.setChunkCount(CHUNKS);
+		assertArrayEquals(new int[] {1, 1, 3, 2}, r.getMissing());
+	}
+
+	@Test
+	public void resumesFromTheManifestAfterACrash() throws IOException {
+		FileReceiver r = create();
+		write(r, 0);
+		write(r, 2);
+		r.setChunkCount(CHUNKS);
+		write(r, 4);
+		// Not closed: the process died
+
+		FileReceiver resumed = FileReceiver.resume(mDir, mManifests, ID);
+		assertNotNull(resumed);
+		assertEquals("Ann", resumed.getAuthor());
+		assertEquals("photo.jpg", resumed.getName());
+		// Two full chunks and the short last one
+		assertEquals(2L * CHUNK + SIZE - 4 * CHUNK, resumed.getReceived());
+		assertEquals(0, resumed.getReceivedThisRun());
+		assertArrayEquals(new int[] {1, 1, 3, 1}, resumed.getMissing());
+
+		write(resumed, 1);
+		write(resumed, 3);
+		assertTrue(resumed.isComplete());
+		assertArrayEquals(mData, read(resumed.finish()));
+	}
+
+	@Test
+	public void resumeOfAFileOfUnknownSizeCountsTheShortChunk() throws IOException {
+		FileReceiver r = FileReceiver.create(mDir, mManifests, ID, "Ann", "photo.jpg", -1);
+		write(r, 1);
+		write(r, 4);
+		r.close();
+
+		FileReceiver resumed = FileReceiver.resume(mDir, mManifests, ID);
+		assertEquals(CHUNK + SIZE - 4L * CHUNK, resumed.getReceived());
+	}
+
+	@Test
+	public void chunksThatDoNotBelongInTheFileAreRefused() throws IOException {
+		FileReceiver r = create();
+		byte[] full = new byte[CHUNK];
+		// Beyond the last chunk
+		assertRefused(r, CHUNKS, full, SIZE - 4 * CHUNK);
+		assertRefused(r, Integer.MAX_VALUE, full, 1);
+		// Short, but not the last
+		assertRefused(r, 2, full, CHUNK - 1);
+		// The last, but not as long as the rest of the file
+		assertRefused(r, CHUNKS - 1, full, CHUNK);
+		assertRefused(r, CHUNKS - 1, full, SIZE - 4 * CHUNK - 1);
+		assertEquals(0, r.getReceived());
+
+		try {
+			r.setChunkCount(CHUNKS + 1);
+			fail("Accepted a chunk count that does not match the size");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void chunkCountBoundsAFileOfUnknownSize() throws IOException {
+		FileReceiver r = FileReceiver.create(mDir, mManifests, ID, "Ann", "photo.jpg", -1);
+		byte[] full = new byte[CHUNK];
+		assertTrue(write(r, 4));
+		r.setChunkCount(CHUNKS);
+		assertRefused(r, CHUNKS, full, CHUNK);
+		assertRefused(r, 1, full, 100);
+		for (int i = 0; i < CHUNKS - 1; i++) {
+			assertTrue(write(r, i));
+		}
+		assertArrayEquals(mData, read(r.finish()));
+	}
+
+	private static void assertRefused(FileReceiver r, int index, byte[] buffer, int length) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(buffer, 0, length);
+		assertFalse("Accepted chunk " + index + " of " + length + " bytes",
+				r.writeChunk(index, (int) crc.getValue(), buffer, 0, length));
+	}
+
+	@Test
+	public void tornManifestRecordIsSentAgain() throws IOException {
+		FileReceiver r = create();
+		write(r, 0);
+		write(r, 1);
+		r.close();
+		// The crash came halfway through the record of chunk 1
+		RandomAccessFile manifest = new RandomAccessFile(manifest(), "rw");
+		manifest.setLength(manifest.length() - 2);
+		manifest.close();
+
+		FileReceiver resumed = FileReceiver.resume(mDir, mManifests, ID);
+		assertArrayEquals(new int[] {1, FileReceiver.TO_END}, resumed.getMissing());
+		for (int i = 1; i < CHUNKS; i++) {
+			write(resumed, i);
+		}
+		resumed.setChunkCount(CHUNKS);
+		assertArrayEquals(mData, read(resumed.finish()));
+	}
+
+	@Test
+	public void lostDataStartsOver() throws IOException {
+		FileReceiver r = create();
+		write(r, 0);
+		write(r, 1);
+		r.close();
+		File[] files = mDir.listFiles();
+		assertEquals(1, files.length);
+		assertTrue(files[0].delete());
+
+		FileReceiver resumed = FileReceiver.resume(mDir, mManifests, ID);
+		assertEquals(0, resumed.getReceived());
+		assertArrayEquals(new int[] {0, FileReceiver.TO_END}, resumed.getMissing());
+	}
+
+	@Test
+	public void unreadableManifestIsDropped() throws IOException {
+		create().close();
+		FileOutputStream out = new FileOutputStream(manifest());
+		out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13});
+		out.close();
+
+		assertNull(FileReceiver.resume(mDir, mManifests, ID));
+		assertFalse(manifest().exists());
+		assertNull(FileReceiver.resume(mDir, mManifests, ID + 1));
+	}
+
+	@Test
+	public void abortRemovesEverything() throws IOException {
+		FileReceiver r = create();
+		write(r, 0);
+		r.abort();
+		assertEquals(0, mDir.list().length);
+		assertEquals(0, mManifests.list().length);
+	}
+
+	@Test
+	public void pruneRemovesOnlyOldTransfers() throws IOException {
+		FileReceiver r = create();
+		write(r, 0);
+		r.close();
+		FileReceiver recent = FileReceiver.create(mDir, mManifests, 5, "Bob", "notes.txt", 10);
+		recent.close();
+		assertTrue(manifest().setLastModified(System.currentTimeMillis() - 60 * 60 * 1000));
+
+		FileReceiver.prune(mDir, mManifests, 10 * 60 * 1000);
+		assertFalse(manifest().exists());
+		assertNull(FileReceiver.resume(mDir, mManifests, ID));
+		assertNotNull(FileReceiver.resume(mDir, mManifests, 5));
+		assertEquals(0, mDir.list().length);
+	}
+}
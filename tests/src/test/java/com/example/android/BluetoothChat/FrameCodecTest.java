@@ -0,0 +1,157 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FrameCodecTest {
+	/**
+	 * Keeps a copy of every frame decoded.
+	 */
+	private static class Frames implements FrameCodec.FrameListener {
+		final ArrayList<int[]> headers = new ArrayList<int[]>();
+		final ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+
+		public void onFrame(int type, int seq, byte[] buffer, int offset, int length) {
+			headers.add(new int[] {type, seq});
+			payloads.add(Arrays.copyOfRange(buffer, offset, offset + length));
+		}
+	}
+
+	private static byte[] payload(int length, long seed) {
+		byte[] payload = new byte[length];
+		new Random(seed).nextBytes(payload);
+		return payload;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		byte[] payload = payload(300, 1);
+		byte[] frame = FrameCodec.encode(FrameCodec.FRAME_MESSAGE, 42, payload, 0, payload.length);
+		assertEquals(FrameCodec.HEADER_SIZE + payload.length, frame.length);
+
+		Frames frames = new Frames();
+		new FrameCodec.Decoder(frames).feed(frame, 0, frame.length);
+
+		assertEquals(1, frames.payloads.size());
+		assertEquals(FrameCodec.FRAME_MESSAGE, frames.headers.get(0)[0]);
+		assertEquals(42, frames.headers.get(0)[1]);
+		assertArrayEquals(payload, frames.payloads.get(0));
+	}
+
+	@Test
+	public void emptyAndLargestPayloads() throws IOException {
+		byte[] largest = payload(FrameCodec.MAX_PAYLOAD, 2);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		stream.write(FrameCodec.encode(FrameCodec.FRAME_HEARTBEAT, 0, new byte[0], 0, 0));
+		stream.write(FrameCodec.encode(FrameCodec.FRAME_FILE_DATA, 7, largest, 0, largest.length));
+		byte[] bytes = stream.toByteArray();
+
+		Frames frames = new Frames();
+		new FrameCodec.Decoder(frames).feed(bytes, 0, bytes.length);
+
+		assertEquals(2, frames.payloads.size());
+		assertEquals(0, frames.payloads.get(0).length);
+		assertArrayEquals(largest, frames.payloads.get(1));
+	}
+
+	@Test
+	public void truncatedFrameWaitsForTheRest() throws IOException {
+		byte[] payload = payload(100, 3);
+		byte[] frame = FrameCodec.encode(FrameCodec.FRAME_MESSAGE, 1, payload, 0, payload.length);
+		Frames frames = new Frames();
+		FrameCodec.Decoder decoder = new FrameCodec.Decoder(frames);
+
+		// Part of the header, then part of the payload: nothing yet
+		decoder.feed(frame, 0, 5);
+		assertEquals(0, frames.payloads.size());
+		decoder.feed(frame, 5, 50);
+		assertEquals(0, frames.payloads.size());
+
+		decoder.feed(frame, 55, frame.length - 55);
+		assertEquals(1, frames.payloads.size());
+		assertArrayEquals(payload, frames.payloads.get(0));
+	}
+
+	@Test
+	public void framesSplitAtEveryByte() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int i = 0; i < 5; i++) {
+			byte[] payload = payload(i * 37, i);
+			stream.write(FrameCodec.encode(FrameCodec.FRAME_MESSAGE, i + 1, payload, 0, payload.length));
+		}
+		byte[] bytes = stream.toByteArray();
+
+		Frames frames = new Frames();
+		FrameCodec.Decoder decoder = new FrameCodec.Decoder(frames);
+		for (int i = 0; i < bytes.length; i++) {
+			decoder.feed(bytes, i, 1);
+		}
+
+		assertEquals(5, frames.payloads.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(i + 1, frames.headers.get(i)[1]);
+			assertArrayEquals(payload(i * 37, i), frames.payloads.get(i));
+		}
+	}
+
+	@Test
+	public void oversizedLengthIsRejected() {
+		byte[] header = new byte[FrameCodec.HEADER_SIZE];
+		FrameCodec.writeHeader(header, 0, FrameCodec.FRAME_MESSAGE, 1, FrameCodec.MAX_PAYLOAD + 1);
+		assertRejected(header);
+	}
+
+	@Test
+	public void negativeLengthIsRejected() {
+		byte[] header = new byte[FrameCodec.HEADER_SIZE];
+		FrameCodec.writeHeader(header, 0, FrameCodec.FRAME_MESSAGE, 1, -1);
+		assertRejected(header);
+	}
+
+	@Test
+	public void oversizedLengthIsRejectedWhenItArrivesInPieces() throws IOException {
+		byte[] header = new byte[FrameCodec.HEADER_SIZE];
+		FrameCodec.writeHeader(header, 0, FrameCodec.FRAME_MESSAGE, 1, Integer.MAX_VALUE);
+		FrameCodec.Decoder decoder = new FrameCodec.Decoder(new Frames());
+		decoder.feed(header, 0, 3);
+		try {
+			decoder.feed(header, 3, header.length - 3);
+			fail("Accepted a frame of " + Integer.MAX_VALUE + " bytes");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void numbersRoundTrip() {
+		byte[] buffer = new byte[12];
+		long[] longs = {0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE, 0x0123456789abcdefL};
+		for (int i = 0; i < longs.length; i++) {
+			FrameCodec.writeLong(buffer, 3, longs[i]);
+			assertEquals(longs[i], FrameCodec.readLong(buffer, 3));
+		}
+		int[] ints = {0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 0x89abcdef};
+		for (int i = 0; i < ints.length; i++) {
+			FrameCodec.writeInt(buffer, 5, ints[i]);
+			assertEquals(ints[i], FrameCodec.readInt(buffer, 5));
+		}
+	}
+
+	private static void assertRejected(byte[] header) {
+		try {
+			new FrameCodec.Decoder(new Frames()).feed(header, 0, header.length);
+			fail("Accepted a frame of length " + FrameCodec.readInt(header, 5));
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+}
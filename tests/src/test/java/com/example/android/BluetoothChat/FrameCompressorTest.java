@@ -0,0 +1,93 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FrameCompressorTest {
+	private final FrameCompressor mCompressor = new FrameCompressor();
+
+	@After
+	public void tearDown() {
+		mCompressor.endCompress();
+		mCompressor.endInflate();
+	}
+
+	private static byte[] text(int length) {
+		byte[] line = "Are we still on for lunch at the usual place? ".getBytes();
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) b[i] = line[i % line.length];
+		return b;
+	}
+
+	private static byte[] random(int length) {
+		byte[] b = new byte[length];
+		new Random(42).nextBytes(b);
+		return b;
+	}
+
+	@Test
+	public void textComesBackAsItWas() throws IOException {
+		byte[] payload = text(8 * 1024);
+		int n = mCompressor.compress(new OutboundFrame(FrameCodec.FRAME_FILE_DATA, payload));
+		assertTrue(n > 0 && n < payload.length);
+
+		byte[] wire = Arrays.copyOf(mCompressor.output(), n);
+		int length = mCompressor.inflate(wire, 0, n);
+		assertArrayEquals(payload, Arrays.copyOf(mCompressor.input(), length));
+
+		assertEquals(1, mCompressor.getFramesCompressed());
+		assertEquals(0, mCompressor.getFramesSkipped());
+		assertEquals(payload.length - n, mCompressor.getBytesSaved());
+	}
+
+	@Test
+	public void compressedDataIsSentAsItIsWithoutDeflating() {
+		byte[] payload = random(8 * 1024);
+		assertTrue(mCompressor.entropy(payload, 0, payload.length) > 7.2);
+		assertEquals(-1, mCompressor.compress(new OutboundFrame(FrameCodec.FRAME_FILE_DATA, payload)));
+		assertEquals(1, mCompressor.getFramesSkipped());
+		assertEquals(0, mCompressor.getFramesCompressed());
+		assertEquals(0, mCompressor.getBytesSaved());
+	}
+
+	@Test
+	public void shortAndControlFramesAreNotConsidered() {
+		assertEquals(-1, mCompressor.compress(new OutboundFrame(FrameCodec.FRAME_MESSAGE, text(FrameCompressor.MIN_LENGTH - 1))));
+		assertEquals(-1, mCompressor.compress(new OutboundFrame(FrameCodec.FRAME_PING, text(256))));
+		assertEquals(0, mCompressor.getBytesIn());
+		assertEquals(0, mCompressor.getFramesSkipped());
+	}
+
+	@Test
+	public void peerKeepsTheFiguresOfEveryConnection() {
+		ChatMetrics metrics = new ChatMetrics();
+		FrameCompressor first = new FrameCompressor();
+		ChatMetrics.Peer peer = metrics.connected("peer", null, first);
+		first.compress(new OutboundFrame(FrameCodec.FRAME_FILE_DATA, text(4096)));
+		first.compress(new OutboundFrame(FrameCodec.FRAME_FILE_DATA, random(4096)));
+		long saved = first.getBytesSaved();
+		assertTrue(saved > 0);
+		assertEquals(saved, peer.getBytesSaved());
+		peer.retire(first);
+		first.endCompress();
+
+		FrameCompressor second = new FrameCompressor();
+		metrics.connected("peer", null, second);
+		second.compress(new OutboundFrame(FrameCodec.FRAME_FILE_DATA, random(4096)));
+		assertEquals(saved, peer.getBytesSaved());
+		assertEquals(1, peer.getFramesCompressed());
+		assertEquals(2, peer.getFramesSkipped());
+
+		String dump = metrics.snapshot();
+		assertTrue(dump, dump.contains(" saved=" + saved + "B incompressible=2"));
+		second.endCompress();
+	}
+}
@@ -0,0 +1,66 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+	@Test
+	public void nothingRecordedReadsAsZero() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMean());
+		assertEquals(0, h.getPercentile(50));
+		assertEquals(0, h.getMax());
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		Histogram h = new Histogram();
+		for (int v = 1; v <= 20; v++) h.record(v);
+		assertEquals(20, h.getCount());
+		assertEquals(10, h.getMean());
+		assertEquals(1, h.getPercentile(0));
+		assertEquals(10, h.getPercentile(50));
+		assertEquals(18, h.getPercentile(90));
+		assertEquals(20, h.getPercentile(99));
+		assertEquals(20, h.getPercentile(100));
+	}
+
+	@Test
+	public void largeValuesAreKeptToTheBucketPrecision() {
+		Histogram h = new Histogram();
+		for (int v = 1; v <= 100000; v++) h.record(v);
+		assertEquals(50000, h.getMean());
+		assertEquals(100000, h.getMax());
+		assertEquals(100000, h.getPercentile(100));
+		double[] percentiles = {50, 90, 99, 99.9};
+		for (int i = 0; i < percentiles.length; i++) {
+			long exact = (long) Math.ceil(percentiles[i] * 1000);
+			long p = h.getPercentile(percentiles[i]);
+			// At or above the value, by less than a sixteenth of it
+			assertTrue(percentiles[i] + ": " + p, p >= exact && p < exact + exact / 16);
+		}
+	}
+
+	@Test
+	public void aPercentileNeverExceedsTheMaximum() {
+		Histogram h = new Histogram();
+		h.record(1000001);
+		assertEquals(1000001, h.getPercentile(50));
+	}
+
+	@Test
+	public void negativeValuesCountAsZeroAndResetStartsOver() {
+		Histogram h = new Histogram();
+		h.record(-5);
+		assertEquals(1, h.getCount());
+		assertEquals(0, h.getPercentile(100));
+		h.record(40);
+		h.reset();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getPercentile(50));
+	}
+}
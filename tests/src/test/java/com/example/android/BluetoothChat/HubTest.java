@@ -0,0 +1,482 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * BluetoothChatService as the hub and as its peers, on a plain JVM: every
+ * device runs the whole service over a PipeTransport, with plain
+ * directories for storage.
+ */
+public class HubTest {
+	private static final int PEERS = 3;
+	private static final long TIMEOUT = 10;
+	private static final int HEARTBEAT_MISSES = 3;
+	// Addresses are registered process wide, each test takes its own
+	private static final AtomicInteger sTests = new AtomicInteger();
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private final ArrayList<Device> mDevices = new ArrayList<Device>();
+	// Heartbeat interval of the devices created from now on, 0 for the default
+	private int mHeartbeat;
+
+	/**
+	 * One device: its service, where it keeps its files and what the
+	 * service told its UI.
+	 */
+	private class Device implements ChatListener, ChatStorage {
+		final String address;
+		final File files;
+		final File downloads;
+		final BluetoothChatService service;
+		final LinkedBlockingQueue<String> read = new LinkedBlockingQueue<String>();
+
+		Device(String name) throws IOException {
+			address = name + "-" + sTests.get();
+			files = mFolder.newFolder();
+			downloads = mFolder.newFolder();
+			service = new BluetoothChatService(this, this, new PipeTransport(address));
+			if (mHeartbeat > 0) service.setHeartbeat(mHeartbeat, HEARTBEAT_MISSES);
+			mDevices.add(this);
+		}
+
+		public File getFilesDir() {
+			return files;
+		}
+
+		public File getDownloadDir() {
+			return downloads;
+		}
+
+		public OutgoingFile open(String uri) {
+			return OutgoingFile.of(new File(uri));
+		}
+
+		public void onStateChange(int state) {
+		}
+
+		public void onDeviceName(String name) {
+		}
+
+		public void onMessageRead(MessageView message) {
+			read.add(message.getAuthor() + ": " + message.getText());
+		}
+
+		public void onMessageWritten(byte[] message) {
+		}
+
+		public void onToast(String text) {
+		}
+
+		void say(String text) {
+			service.write(new BluetoothMessage(address, "12:00:00", text).stamp().getBytes());
+		}
+
+		/**
+		 * @return The next thing the UI was told, waiting for it
+		 */
+		String next() throws InterruptedException {
+			String m = read.poll(TIMEOUT, TimeUnit.SECONDS);
+			assertNotNull(address + " was told nothing", m);
+			return m;
+		}
+	}
+
+	@After
+	public void tearDown() {
+		for (int i = 0; i < mDevices.size(); i++) {
+			mDevices.get(i).service.close();
+		}
+	}
+
+	/**
+	 * @return The hub, with PEERS peers connected to it
+	 */
+	private Device[] startHub() throws Exception {
+		sTests.incrementAndGet();
+		Device hub = new Device("hub");
+		hub.service.startServer();
+		Device[] peers = new Device[PEERS];
+		for (int i = 0; i < PEERS; i++) {
+			peers[i] = new Device("peer" + i);
+			peers[i].service.setServer(false);
+			peers[i].service.connect(hub.address);
+		}
+		long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+		while (hub.service.getClients().length < PEERS) {
+			assertTrue("peers did not connect", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		for (int i = 0; i < PEERS; i++) {
+			while (peers[i].service.getState() != BluetoothChatService.STATE_CONNECTED) {
+				assertTrue("peers did not connect", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		}
+		Device[] devices = new Device[PEERS + 1];
+		devices[0] = hub;
+		System.arraycopy(peers, 0, devices, 1, PEERS);
+		return devices;
+	}
+
+	@Test
+	public void chatIsRelayedToEveryOtherPeer() throws Exception {
+		Device[] devices = startHub();
+		Device hub = devices[0];
+		Device sender = devices[1];
+		for (int i = 0; i < 5; i++) {
+			sender.say("message " + i);
+		}
+
+		for (int i = 0; i < 5; i++) {
+			assertEquals(sender.address + ": message " + i, hub.next());
+		}
+		for (int d = 2; d < devices.length; d++) {
+			for (int i = 0; i < 5; i++) {
+				assertEquals(sender.address + ": message " + i, devices[d].next());
+			}
+		}
+		assertNull(sender.read.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void peersTakingTurnsDoNotResync() throws Exception {
+		Device[] devices = startHub();
+		Device hub = devices[0];
+		Device first = devices[1];
+		Device second = devices[2];
+		for (int i = 0; i < 5; i++) {
+			// Each message is seen by the other peer before it answers
+			first.say("question " + i);
+			assertEquals(first.address + ": question " + i, hub.next());
+			assertEquals(first.address + ": question " + i, second.next());
+			second.say("answer " + i);
+			assertEquals(second.address + ": answer " + i, hub.next());
+			assertEquals(second.address + ": answer " + i, first.next());
+		}
+
+		// Neither was sent its own messages back, with the history or otherwise
+		assertNull(first.read.poll(200, TimeUnit.MILLISECONDS));
+		assertNull(second.read.poll(200, TimeUnit.MILLISECONDS));
+		assertEquals(0, first.service.getMetrics().resyncs.get());
+		assertEquals(0, second.service.getMetrics().resyncs.get());
+	}
+
+	@Test
+	public void fileIsRelayedToEveryOtherPeer() throws Exception {
+		Device[] devices = startHub();
+		Device sender = devices[1];
+		// Several chunks and a short last one
+		byte[] content = new byte[5 * FileReceiver.CHUNK_SIZE + 123];
+		new Random(7).nextBytes(content);
+		File file = new File(mFolder.newFolder(), "picture.jpg");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+
+		sender.service.writeFile(file.getPath());
+
+		for (int d = 0; d < devices.length; d++) {
+			if (devices[d] == sender) continue;
+			assertEquals(sender.address + ": file picture.jpg sent", devices[d].next());
+			assertArrayEquals(content, readAll(new File(devices[d].downloads, "picture.jpg")));
+		}
+		assertNull(sender.read.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * A peer that writes frames of its own making to the hub, and notes
+	 * the types of those the hub sends it, acknowledging them.
+	 */
+	private static class RawPeer implements FrameCodec.FrameListener {
+		final Transport.Connection connection;
+		final OutputStream out;
+		final LinkedBlockingQueue<Integer> types = new LinkedBlockingQueue<Integer>();
+		// Set to stop acknowledging and sending heartbeats, so the hub hears nothing more
+		volatile boolean silent;
+
+		RawPeer(String address, String hub) throws IOException {
+			this(address, hub, 0);
+		}
+
+		/**
+		 * @param capabilities  The FrameCodec.CAP_* flags it offers in its hello
+		 */
+		RawPeer(String address, String hub, int capabilities) throws IOException {
+			connection = new PipeTransport(address).open(hub, null);
+			connection.connect();
+			out = connection.getOutputStream();
+			final InputStream in = connection.getInputStream();
+			final FrameCodec.Decoder decoder = new FrameCodec.Decoder(this);
+			Thread reader = new Thread() {
+				public void run() {
+					byte[] b = new byte[4096];
+					try {
+						int n;
+						while ((n = in.read(b)) >= 0) {
+							decoder.feed(b, 0, n);
+						}
+					} catch (IOException e) {
+						// Closed
+					}
+				}
+			};
+			reader.setDaemon(true);
+			reader.start();
+			// A session of its own, nothing of the hub's seen yet
+			byte[] hello = new byte[FrameCodec.HELLO_SIZE];
+			FrameCodec.writeLong(hello, 0, new Random().nextLong() | 1);
+			FrameCodec.writeInt(hello, 20, capabilities);
+			send(FrameCodec.FRAME_LINK_HELLO, hello);
+		}
+
+		public void onFrame(int type, int seq, byte[] buffer, int offset, int length) throws IOException {
+			types.add(type);
+			if (seq != 0 && !silent) {
+				byte[] ack = new byte[4];
+				FrameCodec.writeInt(ack, 0, seq);
+				send(FrameCodec.FRAME_ACK, ack);
+			}
+		}
+
+		/**
+		 * Send a heartbeat every interval until silent is set or the
+		 * connection closes, as a peer with nothing to say does.
+		 */
+		void startHeartbeats(final long interval) {
+			Thread heartbeats = new Thread() {
+				public void run() {
+					try {
+						while (!silent) {
+							send(FrameCodec.FRAME_HEARTBEAT, new byte[0]);
+							Thread.sleep(interval);
+						}
+					} catch (IOException e) {
+						// Closed
+					} catch (InterruptedException e) {
+						// Stop
+					}
+				}
+			};
+			heartbeats.setDaemon(true);
+			heartbeats.start();
+		}
+
+		synchronized void send(int type, byte[] payload) throws IOException {
+			out.write(FrameCodec.encode(type, 0, payload, 0, payload.length));
+			out.flush();
+		}
+
+		/**
+		 * @return How many frames of a type the hub sent, waiting a while for more
+		 */
+		int received(int type, long millis) throws InterruptedException {
+			int count = 0;
+			long deadline = System.currentTimeMillis() + millis;
+			long left;
+			while ((left = deadline - System.currentTimeMillis()) > 0) {
+				Integer t = types.poll(left, TimeUnit.MILLISECONDS);
+				if (t != null && t == type) count++;
+			}
+			return count;
+		}
+
+		void sendChunk(long id, byte[] content, int index) throws IOException {
+			int from = index * FileReceiver.CHUNK_SIZE;
+			int length = Math.min(FileReceiver.CHUNK_SIZE, content.length - from);
+			byte[] payload = new byte[16 + length];
+			CRC32 crc = new CRC32();
+			crc.update(content, from, length);
+			FrameCodec.writeLong(payload, 0, id);
+			FrameCodec.writeInt(payload, 8, index);
+			FrameCodec.writeInt(payload, 12, (int) crc.getValue());
+			System.arraycopy(content, from, payload, 16, length);
+			send(FrameCodec.FRAME_FILE_DATA, payload);
+		}
+
+		void sendEnd(long id, int chunks) throws IOException {
+			byte[] payload = new byte[12];
+			FrameCodec.writeLong(payload, 0, id);
+			FrameCodec.writeInt(payload, 8, chunks);
+			send(FrameCodec.FRAME_FILE_END, payload);
+		}
+	}
+
+	@Test
+	public void endOfARelayedFileWaitsForTheHubsCopy() throws Exception {
+		Device[] devices = startHub();
+		Device hub = devices[0];
+		RawPeer sender = new RawPeer("raw-" + sTests.get(), hub.address);
+		// Shows what the hub relays, and when
+		RawPeer watcher = new RawPeer("watcher-" + sTests.get(), hub.address);
+		long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+		while (hub.service.getClients().length < PEERS + 2) {
+			assertTrue("sender did not connect", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		try {
+			byte[] content = new byte[4 * FileReceiver.CHUNK_SIZE + 99];
+			new Random(11).nextBytes(content);
+			int chunks = 5;
+			long id = 0x1234;
+			byte[] header = new BluetoothMessage("raw", String.valueOf(content.length), "notes.txt",
+					BluetoothMessage.TYPE_FILE_START).getBytes();
+			byte[] start = new byte[8 + header.length];
+			FrameCodec.writeLong(start, 0, id);
+			System.arraycopy(header, 0, start, 8, header.length);
+			sender.send(FrameCodec.FRAME_FILE_START, start);
+
+			// Chunk 2 does not reach the hub. The other chunks are relayed as
+			// they come, but the end is not while the hub's copy lacks one
+			for (int i = 0; i < chunks; i++) {
+				if (i != 2) sender.sendChunk(id, content, i);
+			}
+			assertEquals(chunks - 1, watcher.received(FrameCodec.FRAME_FILE_DATA, 500));
+			sender.sendEnd(id, chunks);
+			assertEquals(0, watcher.received(FrameCodec.FRAME_FILE_END, 300));
+			for (int d = 0; d < devices.length; d++) {
+				assertNull(devices[d].read.poll());
+			}
+
+			// Once the hub has it all, the end goes out and the peers get
+			// what they are missing from the hub's copy
+			sender.sendChunk(id, content, 2);
+			sender.sendEnd(id, chunks);
+			for (int d = 0; d < devices.length; d++) {
+				assertEquals("raw: file notes.txt sent", devices[d].next());
+				assertArrayEquals(content, readAll(new File(devices[d].downloads, "notes.txt")));
+			}
+			assertEquals(1, watcher.received(FrameCodec.FRAME_FILE_END, 300));
+		} finally {
+			sender.connection.close();
+			watcher.connection.close();
+		}
+	}
+
+	@Test
+	public void aChunkThatDoesNotBelongInTheFileDoesNotEndTheTransfer() throws Exception {
+		Device[] devices = startHub();
+		Device hub = devices[0];
+		RawPeer sender = new RawPeer("raw-" + sTests.get(), hub.address);
+		long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+		while (hub.service.getClients().length < PEERS + 1) {
+			assertTrue("sender did not connect", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		try {
+			byte[] content = new byte[2 * FileReceiver.CHUNK_SIZE + 10];
+			new Random(13).nextBytes(content);
+			long id = 0x4321;
+			byte[] header = new BluetoothMessage("raw", String.valueOf(content.length), "bad.bin",
+					BluetoothMessage.TYPE_FILE_START).getBytes();
+			byte[] start = new byte[8 + header.length];
+			FrameCodec.writeLong(start, 0, id);
+			System.arraycopy(header, 0, start, 8, header.length);
+			sender.send(FrameCodec.FRAME_FILE_START, start);
+
+			sender.sendChunk(id, content, 0);
+			// Far beyond the end of the file, with a checksum that holds
+			byte[] bad = new byte[16 + 10];
+			CRC32 crc = new CRC32();
+			crc.update(bad, 16, 10);
+			FrameCodec.writeLong(bad, 0, id);
+			FrameCodec.writeInt(bad, 8, 1000);
+			FrameCodec.writeInt(bad, 12, (int) crc.getValue());
+			sender.send(FrameCodec.FRAME_FILE_DATA, bad);
+			for (int i = 1; i < 3; i++) {
+				sender.sendChunk(id, content, i);
+			}
+			sender.sendEnd(id, 3);
+
+			for (int d = 0; d < devices.length; d++) {
+				assertEquals("raw: file bad.bin sent", devices[d].next());
+				assertArrayEquals(content, readAll(new File(devices[d].downloads, "bad.bin")));
+			}
+		} finally {
+			sender.connection.close();
+		}
+	}
+
+	@Test
+	public void silentPeerIsEvictedAndTheOthersStay() throws Exception {
+		mHeartbeat = 100;
+		Device[] devices = startHub();
+		Device hub = devices[0];
+		RawPeer quiet = new RawPeer("quiet-" + sTests.get(), hub.address, FrameCodec.CAP_HEARTBEAT);
+		quiet.startHeartbeats(mHeartbeat);
+		try {
+			long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+			while (hub.service.getClients().length < PEERS + 1) {
+				assertTrue("peer did not connect", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+
+			// While its heartbeats come, it outlives several deadlines
+			Thread.sleep(mHeartbeat * HEARTBEAT_MISSES * 4);
+			assertEquals(PEERS + 1, hub.service.getClients().length);
+			assertEquals(0, hub.service.getMetrics().evictions.get());
+
+			// It walks out of range: its socket stays open, it just stops talking
+			quiet.silent = true;
+			long silentAt = System.nanoTime();
+			deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+			while (hub.service.getClients().length > PEERS) {
+				assertTrue("silent peer was not evicted", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			long millis = (System.nanoTime() - silentAt) / 1000000;
+			// Not before its misses, less the heartbeat it may have just sent;
+			// not after them, the heartbeat thread's tick and some room for the machine
+			assertTrue(millis + " ms", millis >= mHeartbeat * (HEARTBEAT_MISSES - 1));
+			assertTrue(millis + " ms", millis < mHeartbeat * HEARTBEAT_MISSES + 250 + 1000);
+			assertEquals(1, hub.service.getMetrics().evictions.get());
+
+			// The peers that keep sending heartbeats are kept
+			Thread.sleep(mHeartbeat * HEARTBEAT_MISSES * 3);
+			assertEquals(PEERS, hub.service.getClients().length);
+			assertEquals(1, hub.service.getMetrics().evictions.get());
+			for (int i = 1; i < devices.length; i++) {
+				assertEquals(0, devices[i].service.getMetrics().evictions.get());
+			}
+		} finally {
+			quiet.connection.close();
+		}
+	}
+
+	private static byte[] readAll(File file) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(file, "r");
+		try {
+			byte[] b = new byte[(int) f.length()];
+			f.readFully(b);
+			return b;
+		} finally {
+			f.close();
+		}
+	}
+}
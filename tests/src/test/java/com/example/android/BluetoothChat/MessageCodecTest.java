@@ -0,0 +1,188 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class MessageCodecTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static BluetoothMessage message(String text) {
+		BluetoothMessage m = new BluetoothMessage("Ann", "12:00", text);
+		m.id = 0x1234567890L;
+		m.sentAt = 987654321L;
+		return m;
+	}
+
+	private static void assertSame(BluetoothMessage expected, BluetoothMessage actual) {
+		assertNotNull(actual);
+		assertEquals(expected.type, actual.type);
+		assertEquals(expected.author, actual.author);
+		assertEquals(expected.date, actual.date);
+		assertEquals(expected.text, actual.text);
+		assertEquals(expected.id, actual.id);
+		assertEquals(expected.sentAt, actual.sentAt);
+		assertEquals(expected.relayedAt, actual.relayedAt);
+		assertEquals(expected.uplink, actual.uplink);
+	}
+
+	@Test
+	public void roundTrip() {
+		BluetoothMessage m = message("héllo € 😀");
+		byte[] bytes = new MessageCodec().toBytes(m);
+		assertSame(m, MessageCodec.decode(bytes, 0, bytes.length));
+
+		MessageView view = MessageView.of(bytes, 0, bytes.length);
+		assertEquals(m.text, view.getText());
+		assertEquals(m.author, view.getAuthor());
+		assertEquals(m.sentAt, view.getSentAt());
+		assertEquals(m.sentAt, MessageCodec.sentAt(bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void absentFieldsStayAbsent() {
+		BluetoothMessage m = new BluetoothMessage(null, null, "only text", BluetoothMessage.TYPE_FILE_START);
+		byte[] bytes = new MessageCodec().toBytes(m);
+		assertSame(m, MessageCodec.decode(bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void largeMessageGrowsTheBuffer() {
+		char[] text = new char[100 * 1000];
+		Arrays.fill(text, 'é');
+		BluetoothMessage m = message(new String(text));
+		MessageCodec codec = new MessageCodec();
+		int length = codec.encode(m);
+		assertTrue(length > 2 * text.length);
+		assertSame(m, MessageCodec.decode(codec.buffer(), 0, length));
+
+		// The grown buffer is reused for a small message
+		BluetoothMessage small = message("x");
+		length = codec.encode(small);
+		assertSame(small, MessageCodec.decode(codec.buffer(), 0, length));
+	}
+
+	@Test
+	public void decodesInPlaceAtAnOffset() {
+		BluetoothMessage m = message("offset");
+		byte[] bytes = new MessageCodec().toBytes(m);
+		byte[] padded = new byte[bytes.length + 20];
+		Arrays.fill(padded, (byte) 0x7f);
+		System.arraycopy(bytes, 0, padded, 10, bytes.length);
+		assertSame(m, MessageCodec.decode(padded, 10, bytes.length));
+	}
+
+	@Test
+	public void aCopiedViewOutlivesTheBytesItWasWrappedAround() {
+		BluetoothMessage m = message("copied");
+		m.relayedAt = 5555;
+		byte[] bytes = new MessageCodec().toBytes(m);
+		byte[] padded = new byte[bytes.length + 20];
+		System.arraycopy(bytes, 0, padded, 10, bytes.length);
+		MessageView view = MessageView.of(padded, 10, bytes.length);
+		assertEquals(m.author, view.getAuthor());
+
+		MessageView copy = view.copy();
+		Arrays.fill(padded, (byte) 0);
+		assertEquals(m.author, copy.getAuthor());
+		assertEquals(m.date, copy.getDate());
+		assertEquals(m.text, copy.getText());
+		assertEquals(m.id, copy.getId());
+		assertEquals(m.sentAt, copy.getSentAt());
+		assertEquals(m.relayedAt, copy.getRelayedAt());
+	}
+
+	@Test
+	public void trace() {
+		BluetoothMessage m = message("traced");
+		MessageCodec codec = new MessageCodec();
+		int length = codec.encode(m);
+		byte[] bytes = Arrays.copyOf(codec.buffer(), length + MessageCodec.TRACE_SIZE);
+		assertEquals(MessageCodec.TRACE_SIZE, MessageCodec.appendTrace(bytes, length, 5555, -1));
+
+		m.relayedAt = 5555;
+		m.uplink = -1;
+		assertSame(m, MessageCodec.decode(bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void unknownFieldsAreSkipped() {
+		byte[] bytes = new MessageCodec().toBytes(message("newer"));
+		byte[] extended = Arrays.copyOf(bytes, bytes.length + 5);
+		extended[bytes.length] = (byte) 99;
+		extended[bytes.length + 1] = 3;
+		assertSame(message("newer"), MessageCodec.decode(extended, 0, extended.length));
+	}
+
+	@Test
+	public void everyTruncationIsDetected() {
+		BluetoothMessage m = message("truncate me");
+		byte[] bytes = new MessageCodec().toBytes(m);
+		for (int length = 0; length < bytes.length; length++) {
+			// A cut between two fields leaves a shorter, valid message;
+			// anywhere else the message is rejected, never misread
+			BluetoothMessage decoded = MessageCodec.decode(bytes, 0, length);
+			MessageView view = new MessageView();
+			assertEquals("length " + length, decoded != null, view.wrap(bytes, 0, length));
+			if (decoded == null) continue;
+			byte[] again = new MessageCodec().toBytes(decoded);
+			assertArrayEquals("length " + length, Arrays.copyOf(bytes, length), again);
+		}
+	}
+
+	@Test
+	public void fieldLongerThanTheMessageIsRejected() {
+		byte[] bytes = {MessageCodec.SCHEMA_VERSION, 1, MessageCodec.FIELD_TEXT, 100, 'a', 'b'};
+		assertNull(MessageCodec.decode(bytes, 0, bytes.length));
+		assertFalse(new MessageView().wrap(bytes, 0, bytes.length));
+		assertEquals(0, MessageCodec.sentAt(bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void oversizedLengthIsRejected() {
+		// 2^31 - 1 as a varint, and a varint that never ends
+		byte[] huge = {MessageCodec.SCHEMA_VERSION, 1, MessageCodec.FIELD_TEXT,
+				(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 'a'};
+		assertNull(MessageCodec.decode(huge, 0, huge.length));
+		assertFalse(new MessageView().wrap(huge, 0, huge.length));
+
+		byte[] endless = new byte[40];
+		Arrays.fill(endless, (byte) 0xff);
+		endless[0] = MessageCodec.SCHEMA_VERSION;
+		endless[1] = 1;
+		endless[2] = MessageCodec.FIELD_TEXT;
+		assertNull(MessageCodec.decode(endless, 0, endless.length));
+		assertFalse(new MessageView().wrap(endless, 0, endless.length));
+		assertEquals(0, MessageCodec.sentAt(endless, 0, endless.length));
+	}
+
+	@Test
+	public void otherVersionsAreRejected() {
+		byte[] bytes = new MessageCodec().toBytes(message("v2"));
+		bytes[0] = MessageCodec.SCHEMA_VERSION + 1;
+		assertNull(MessageCodec.decode(bytes, 0, bytes.length));
+		assertNull(MessageView.of(bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void oldPeersJson() {
+		BluetoothMessage m = new BluetoothMessage("Bob", "09:30", "from an old peer");
+		byte[] json = m.getJSONStr();
+		assertEquals('{', json[0]);
+		BluetoothMessage decoded = MessageCodec.decode(json, 0, json.length);
+		assertEquals(m.author, decoded.author);
+		assertEquals(m.text, decoded.text);
+		assertEquals(m.text, MessageView.of(json, 0, json.length).getText());
+
+		byte[] broken = "{\"author\":".getBytes(UTF_8);
+		assertNull(MessageCodec.decode(broken, 0, broken.length));
+	}
+}
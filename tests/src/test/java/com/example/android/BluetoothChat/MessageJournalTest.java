@@ -0,0 +1,203 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageJournalTest {
+	// Enough records of RECORD_LENGTH bytes for several segments
+	private static final int RECORDS = 1500;
+	private static final int RECORD_LENGTH = 700;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	/**
+	 * @return The payload of record seq: its length varies, its bytes tell it apart
+	 */
+	private static byte[] payload(long seq) {
+		byte[] payload = new byte[RECORD_LENGTH + (int) (seq % 13)];
+		Arrays.fill(payload, (byte) seq);
+		FrameCodec.writeLong(payload, 0, seq);
+		return payload;
+	}
+
+	private static MessageJournal fill(File dir) throws IOException {
+		MessageJournal journal = new MessageJournal(dir);
+		for (long seq = 1; seq <= RECORDS; seq++) {
+			byte[] payload = payload(seq);
+			assertEquals(seq, journal.append(payload, 0, payload.length));
+		}
+		return journal;
+	}
+
+	private static File[] files(File dir, final String suffix) {
+		File[] files = dir.listFiles();
+		ArrayList<File> matching = new ArrayList<File>();
+		for (int i = 0; i < files.length; i++) {
+			if (files[i].getName().endsWith(suffix)) matching.add(files[i]);
+		}
+		File[] result = matching.toArray(new File[matching.size()]);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Every starting point finds its record, whichever segment and index
+	 * interval it falls in, and reading goes on into the next segments.
+	 */
+	private static void assertReadsFromEverywhere(MessageJournal journal, long first, long last) throws IOException {
+		for (long from = first; from <= last; from++) {
+			ArrayList<MessageJournal.Entry> batch = journal.read(from, 3);
+			assertEquals("from " + from, Math.min(3, last - from + 1), batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				assertEquals(from + i, batch.get(i).seq);
+				assertArrayEquals(payload(from + i), batch.get(i).payload);
+			}
+		}
+		ArrayList<MessageJournal.Entry> all = journal.read(first, Integer.MAX_VALUE);
+		assertEquals(last - first + 1, all.size());
+		assertEquals(first, all.get(0).seq);
+		assertEquals(last, all.get(all.size() - 1).seq);
+		assertTrue(journal.read(last + 1, 10).isEmpty());
+	}
+
+	@Test
+	public void readsAcrossSegments() throws IOException {
+		File dir = mFolder.newFolder();
+		MessageJournal journal = fill(dir);
+		assertTrue("only " + files(dir, ".log").length + " segments", files(dir, ".log").length >= 3);
+		assertEquals(1, journal.getFirstSeq());
+		assertEquals(RECORDS + 1, journal.getNextSeq());
+		assertReadsFromEverywhere(journal, 1, RECORDS);
+		journal.close();
+	}
+
+	@Test
+	public void closedJournalRefusesAppendsAndStillReads() throws IOException {
+		File dir = mFolder.newFolder();
+		MessageJournal journal = fill(dir);
+		journal.close();
+		journal.close();
+		byte[] payload = payload(RECORDS + 1);
+		try {
+			journal.append(payload, 0, payload.length);
+			fail("appended to a closed journal");
+		} catch (IOException expected) {
+		}
+		assertEquals(RECORDS + 1, journal.getNextSeq());
+		assertReadsFromEverywhere(journal, RECORDS - 200, RECORDS);
+
+		// Nothing was written behind the refusal
+		journal = new MessageJournal(dir);
+		assertEquals(RECORDS + 1, journal.getNextSeq());
+		journal.close();
+	}
+
+	@Test
+	public void reopenKeepsRecordsIdAndNumbering() throws IOException {
+		File dir = mFolder.newFolder();
+		MessageJournal journal = fill(dir);
+		long id = journal.getId();
+		journal.close();
+
+		journal = new MessageJournal(dir);
+		assertEquals(id, journal.getId());
+		assertEquals(RECORDS + 1, journal.getNextSeq());
+		assertReadsFromEverywhere(journal, 1, RECORDS);
+
+		byte[] payload = payload(RECORDS + 1);
+		assertEquals(RECORDS + 1, journal.append(payload, 0, payload.length));
+		assertReadsFromEverywhere(journal, RECORDS - 200, RECORDS + 1);
+		journal.close();
+	}
+
+	@Test
+	public void reopenRebuildsALostIndex() throws IOException {
+		File dir = mFolder.newFolder();
+		fill(dir).close();
+		File[] indexes = files(dir, ".idx");
+		assertTrue(indexes[0].delete());
+		// A stale index of the second segment, pointing at the wrong places
+		FileOutputStream out = new FileOutputStream(indexes[1]);
+		out.write(new byte[16 * 3]);
+		out.close();
+
+		MessageJournal journal = new MessageJournal(dir);
+		assertEquals(RECORDS + 1, journal.getNextSeq());
+		assertReadsFromEverywhere(journal, 1, RECORDS);
+		journal.close();
+	}
+
+	@Test
+	public void reopenCutsATornRecord() throws IOException {
+		File dir = mFolder.newFolder();
+		fill(dir).close();
+		File[] logs = files(dir, ".log");
+		File active = logs[logs.length - 1];
+		long length = active.length();
+		// Half of a record header and payload
+		FileOutputStream out = new FileOutputStream(active, true);
+		out.write(new byte[] {0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0x05, (byte) 0xdd, 1, 2, 3});
+		out.close();
+
+		MessageJournal journal = new MessageJournal(dir);
+		assertEquals(length, active.length());
+		assertEquals(RECORDS + 1, journal.getNextSeq());
+		byte[] payload = payload(RECORDS + 1);
+		assertEquals(RECORDS + 1, journal.append(payload, 0, payload.length));
+		assertReadsFromEverywhere(journal, RECORDS - 100, RECORDS + 1);
+		journal.close();
+	}
+
+	@Test
+	public void retentionDropsWholeSegmentsOldestFirst() throws IOException {
+		File dir = mFolder.newFolder();
+		MessageJournal journal = fill(dir);
+		int segments = files(dir, ".log").length;
+		journal.setRetention(MessageJournal.DEFAULT_SEGMENT_BYTES, MessageJournal.DEFAULT_MAX_AGE);
+
+		assertTrue(files(dir, ".log").length < segments);
+		long first = journal.getFirstSeq();
+		assertTrue(first > 1);
+		// A reader behind the oldest record kept gets what is left
+		assertEquals(first, journal.read(1, 1).get(0).seq);
+		assertReadsFromEverywhere(journal, first, RECORDS);
+		journal.close();
+
+		journal = new MessageJournal(dir);
+		assertEquals(first, journal.getFirstSeq());
+		journal.close();
+	}
+
+	@Test
+	public void wipedJournalGetsANewId() throws IOException {
+		File dir = mFolder.newFolder();
+		MessageJournal journal = fill(dir);
+		long id = journal.getId();
+		journal.close();
+
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			if (!files[i].getName().equals("id")) assertTrue(files[i].delete());
+		}
+		journal = new MessageJournal(dir);
+		assertEquals(1, journal.getNextSeq());
+		assertNotEquals(id, journal.getId());
+		assertFalse(journal.getId() == 0);
+		journal.close();
+	}
+}
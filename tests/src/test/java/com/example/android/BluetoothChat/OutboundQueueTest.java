@@ -0,0 +1,449 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * What each policy does with a frame offered to a full queue, how the
+ * streams of files are bounded and share the link with chat, and what is
+ * written again after a reconnect.
+ */
+public class OutboundQueueTest {
+	private static final int CAPACITY = 4;
+	private static final long FILE = 7;
+	private static final long OTHER_FILE = 8;
+	private static final long PEER_SESSION = 0x5eed;
+
+	private static OutboundFrame message(int n) {
+		return new OutboundFrame(FrameCodec.FRAME_MESSAGE, new byte[] {(byte) n});
+	}
+
+	private static OutboundFrame history() {
+		return new OutboundFrame(FrameCodec.FRAME_HISTORY, new byte[8]);
+	}
+
+	private static OutboundFrame chunk() {
+		return new OutboundFrame(FrameCodec.FRAME_FILE_DATA, FILE, new byte[16], 0, 16);
+	}
+
+	private static OutboundFrame chunk(long file, int n) {
+		return new OutboundFrame(FrameCodec.FRAME_FILE_DATA, file, new byte[] {(byte) n}, 0, 1);
+	}
+
+	/**
+	 * @return A queue attached to a connection whose peer has answered the hello
+	 */
+	private static OutboundQueue linked() throws InterruptedException {
+		OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.Policy.DROP_OLDEST);
+		assertEquals(FrameCodec.FRAME_LINK_HELLO, queue.take(queue.attach(0)).type);
+		queue.onHello(PEER_SESSION, 0, 0, 0);
+		return queue;
+	}
+
+	/**
+	 * @return The next frame written that is not a control frame
+	 */
+	private static OutboundFrame data(OutboundQueue queue, int generation) throws InterruptedException {
+		while (true) {
+			OutboundFrame frame = queue.take(generation);
+			if (frame == null || queue.takenSeq() != 0) return frame;
+		}
+	}
+
+	/**
+	 * A queue attached to a connection, filled to its capacity with messages 0 to CAPACITY - 1.
+	 */
+	private static class Full {
+		final OutboundQueue queue;
+		final int generation;
+		final OutboundFrame[] frames = new OutboundFrame[CAPACITY];
+
+		Full(OutboundQueue.Policy policy) {
+			queue = new OutboundQueue(CAPACITY, policy);
+			generation = queue.attach(0);
+			for (int i = 0; i < CAPACITY; i++) {
+				frames[i] = message(i);
+				assertTrue(queue.offerNow(frames[i]));
+			}
+			assertEquals(CAPACITY, queue.size());
+		}
+
+		/**
+		 * @return The next frame written that is not a control frame
+		 */
+		OutboundFrame take() throws InterruptedException {
+			return take(generation);
+		}
+
+		OutboundFrame take(int generation) throws InterruptedException {
+			return data(queue, generation);
+		}
+
+		/**
+		 * Write the hello and every queued message, none of which the peer
+		 * acknowledges.
+		 * @return Our session, from the hello
+		 */
+		long writeAll() throws InterruptedException {
+			OutboundFrame hello = queue.take(generation);
+			assertEquals(FrameCodec.FRAME_LINK_HELLO, hello.type);
+			queue.onHello(PEER_SESSION, 0, 0, 0);
+			for (int i = 0; i < CAPACITY; i++) {
+				assertSame(frames[i], take());
+				assertEquals(i + 1, queue.takenSeq());
+			}
+			assertEquals(CAPACITY, queue.inFlight());
+			return FrameCodec.readLong(hello.payload, 0);
+		}
+
+		/**
+		 * Lose the connection and attach a new one, then queue message 9.
+		 * @return The new connection's generation, its hello already taken
+		 */
+		int reconnect() throws InterruptedException {
+			queue.detach(generation);
+			int next = queue.attach(0);
+			assertEquals(FrameCodec.FRAME_LINK_HELLO, queue.take(next).type);
+			assertTrue(queue.offerNow(message(9)));
+			// Nothing but control frames until the peer says what it has
+			assertFalse(queue.isReady());
+			return next;
+		}
+	}
+
+	/**
+	 * Run a put() on a thread of its own, as the file thread does.
+	 */
+	private static class Put extends Thread {
+		final OutboundQueue queue;
+		final OutboundFrame frame;
+
+		Put(OutboundQueue queue, OutboundFrame frame) {
+			this.queue = queue;
+			this.frame = frame;
+			start();
+		}
+
+		public void run() {
+			try {
+				queue.put(frame);
+			} catch (InterruptedException e) {
+				// Leave the frame out
+			}
+		}
+
+		void assertWaiting() throws InterruptedException {
+			join(200);
+			assertTrue(getClass().getSimpleName() + " did not wait", isAlive());
+		}
+
+		void finish() throws InterruptedException {
+			join(5000);
+			assertFalse(getClass().getSimpleName() + " still waiting", isAlive());
+		}
+	}
+
+	/**
+	 * Run a blockForRoom() on a thread of its own, as the local sender does.
+	 */
+	private static class BlockForRoom extends Put {
+		BlockForRoom(OutboundQueue queue) {
+			super(queue, null);
+		}
+
+		public void run() {
+			try {
+				queue.blockForRoom();
+			} catch (InterruptedException e) {
+				// Give up waiting
+			}
+		}
+	}
+
+	@Test
+	public void disconnectGivesUpOnThePeer() {
+		Full full = new Full(OutboundQueue.Policy.DISCONNECT);
+		assertFalse(full.queue.offerNow(message(9)));
+		assertFalse(full.queue.offerNow(history()));
+		assertEquals(CAPACITY, full.queue.size());
+	}
+
+	@Test
+	public void dropOldestDropsTheOldestMessage() throws InterruptedException {
+		Full full = new Full(OutboundQueue.Policy.DROP_OLDEST);
+		OutboundFrame newest = message(9);
+		assertTrue(full.queue.offerNow(newest));
+		assertEquals(CAPACITY, full.queue.size());
+		assertEquals(1, full.queue.getDropped());
+
+		for (int i = 1; i < CAPACITY; i++) {
+			assertSame(full.frames[i], full.take());
+		}
+		assertSame(newest, full.take());
+	}
+
+	@Test
+	public void dropOldestDropsTheNewFrameWhenNothingElseMayBe() {
+		OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.Policy.DROP_OLDEST);
+		queue.attach(0);
+		for (int i = 0; i < CAPACITY; i++) {
+			queue.offerNow(history());
+		}
+		assertTrue(queue.offerNow(message(9)));
+		assertEquals(CAPACITY, queue.size());
+		assertEquals(1, queue.getDropped());
+	}
+
+	@Test
+	public void framesThatMustNotBeLostGoBeyondTheCapacity() {
+		OutboundQueue.Policy[] policies = {OutboundQueue.Policy.BLOCK, OutboundQueue.Policy.DROP_OLDEST};
+		for (int i = 0; i < policies.length; i++) {
+			Full full = new Full(policies[i]);
+			assertTrue(full.queue.offerNow(history()));
+			assertEquals(CAPACITY + 1, full.queue.size());
+			assertEquals(0, full.queue.getDropped());
+		}
+	}
+
+	@Test
+	public void aPeerWhoseOverflowIsFullIsGivenUpOn() {
+		OutboundQueue.Policy[] policies = {OutboundQueue.Policy.BLOCK, OutboundQueue.Policy.DROP_OLDEST};
+		for (int i = 0; i < policies.length; i++) {
+			Full full = new Full(policies[i]);
+			for (int j = 0; j < OutboundQueue.MAX_OVERFLOW; j++) {
+				assertTrue(full.queue.offerNow(history()));
+			}
+			assertFalse(full.queue.offerNow(history()));
+			assertEquals(CAPACITY + OutboundQueue.MAX_OVERFLOW, full.queue.size());
+		}
+	}
+
+	@Test
+	public void blockNowDropsTheNewMessage() throws InterruptedException {
+		Full full = new Full(OutboundQueue.Policy.BLOCK);
+		assertTrue(full.queue.offerNow(message(9)));
+		assertEquals(CAPACITY, full.queue.size());
+		assertEquals(1, full.queue.getDropped());
+		assertSame(full.frames[0], full.take());
+	}
+
+	@Test
+	public void blockForRoomWaitsForTheWriter() throws InterruptedException {
+		Full full = new Full(OutboundQueue.Policy.BLOCK);
+		BlockForRoom block = new BlockForRoom(full.queue);
+		block.assertWaiting();
+
+		assertSame(full.frames[0], full.take());
+		block.finish();
+		OutboundFrame newest = message(9);
+		assertTrue(full.queue.offerNow(newest));
+		assertEquals(0, full.queue.getDropped());
+		for (int i = 1; i < CAPACITY; i++) {
+			assertSame(full.frames[i], full.take());
+		}
+		assertSame(newest, full.take());
+	}
+
+	@Test
+	public void blockForRoomIsReleasedByDetach() throws InterruptedException {
+		Full full = new Full(OutboundQueue.Policy.BLOCK);
+		BlockForRoom block = new BlockForRoom(full.queue);
+		block.assertWaiting();
+		full.queue.detach(full.generation);
+		block.finish();
+	}
+
+	@Test
+	public void onlyBlockWaitsForRoom() throws InterruptedException {
+		OutboundQueue.Policy[] policies = {OutboundQueue.Policy.DROP_OLDEST, OutboundQueue.Policy.DISCONNECT};
+		for (int i = 0; i < policies.length; i++) {
+			Full full = new Full(policies[i]);
+			new BlockForRoom(full.queue).finish();
+		}
+	}
+
+	@Test
+	public void fileFramesOfferedNowStayWithinTheStreamCapacity() {
+		OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.Policy.DROP_OLDEST);
+		queue.attach(0);
+		for (int i = 0; i < OutboundQueue.STREAM_CAPACITY + 3; i++) {
+			assertTrue(queue.offerNow(chunk()));
+		}
+		assertEquals(OutboundQueue.STREAM_CAPACITY, queue.size());
+		assertEquals(3, queue.getDropped());
+		assertFalse(queue.tryPut(chunk()));
+	}
+
+	@Test
+	public void putWaitsForRoomInTheStream() throws InterruptedException {
+		OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.Policy.DROP_OLDEST);
+		int generation = queue.attach(0);
+		for (int i = 0; i < OutboundQueue.STREAM_CAPACITY; i++) {
+			assertTrue(queue.tryPut(chunk()));
+		}
+		OutboundFrame end = new OutboundFrame(FrameCodec.FRAME_FILE_END, FILE, new byte[12], 0, 12);
+		Put put = new Put(queue, end);
+		put.assertWaiting();
+
+		// The hello, then a chunk
+		queue.take(generation);
+		queue.take(generation);
+		put.finish();
+		assertEquals(OutboundQueue.STREAM_CAPACITY, queue.size());
+		assertEquals(0, queue.getDropped());
+	}
+
+	@Test
+	public void putIsReleasedByDetach() throws InterruptedException {
+		OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.Policy.DROP_OLDEST);
+		int generation = queue.attach(0);
+		for (int i = 0; i < OutboundQueue.STREAM_CAPACITY; i++) {
+			assertTrue(queue.tryPut(chunk()));
+		}
+		Put put = new Put(queue, chunk());
+		put.assertWaiting();
+		queue.detach(generation);
+		put.finish();
+	}
+
+	@Test
+	public void chatGoesAheadOfQueuedFileData() throws InterruptedException {
+		OutboundQueue queue = linked();
+		for (int i = 0; i < 3; i++) {
+			assertTrue(queue.tryPut(chunk(FILE, i)));
+		}
+		OutboundFrame chat = message(9);
+		assertTrue(queue.offerNow(chat));
+
+		assertSame(chat, data(queue, 1));
+		for (int i = 0; i < 3; i++) {
+			assertEquals(i, data(queue, 1).payload[0]);
+		}
+	}
+
+	@Test
+	public void fileStreamsTakeTurns() throws InterruptedException {
+		OutboundQueue queue = linked();
+		for (int i = 0; i < 3; i++) {
+			assertTrue(queue.tryPut(chunk(FILE, i)));
+		}
+		assertTrue(queue.tryPut(chunk(OTHER_FILE, 0)));
+		assertTrue(queue.tryPut(chunk(OTHER_FILE, 1)));
+
+		long[] streams = {FILE, OTHER_FILE, FILE, OTHER_FILE, FILE};
+		int[] chunks = {0, 0, 1, 1, 2};
+		for (int i = 0; i < streams.length; i++) {
+			OutboundFrame frame = data(queue, 1);
+			assertEquals(streams[i], frame.stream);
+			assertEquals(chunks[i], frame.payload[0]);
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void fileDataInFlightIsBoundedByTheBulkWindow() throws InterruptedException {
+		OutboundQueue queue = linked();
+		for (int i = 0; i < OutboundQueue.STREAM_CAPACITY; i++) {
+			assertTrue(queue.tryPut(chunk(FILE, i)));
+			assertTrue(queue.tryPut(chunk(OTHER_FILE, i)));
+		}
+		for (int i = 0; i < OutboundQueue.DEFAULT_BULK_WINDOW; i++) {
+			data(queue, 1);
+		}
+		assertEquals(OutboundQueue.DEFAULT_BULK_WINDOW, queue.inFlight());
+		assertFalse(queue.isReady());
+
+		// Chat is not held back by the file data in flight
+		OutboundFrame chat = message(9);
+		assertTrue(queue.offerNow(chat));
+		assertSame(chat, data(queue, 1));
+		assertFalse(queue.isReady());
+
+		// Each acknowledged chunk lets another one go
+		queue.onAck(2);
+		assertTrue(queue.isReady());
+		data(queue, 1);
+		data(queue, 1);
+		assertFalse(queue.isReady());
+		assertEquals(2 * OutboundQueue.STREAM_CAPACITY - OutboundQueue.DEFAULT_BULK_WINDOW - 2, queue.size());
+	}
+
+	@Test
+	public void tryPutRefusesWhenFull() throws InterruptedException {
+		Full full = new Full(OutboundQueue.Policy.DROP_OLDEST);
+		assertFalse(full.queue.tryPut(history()));
+		full.take();
+		assertTrue(full.queue.tryPut(history()));
+	}
+
+	@Test
+	public void whenRoomRunsOnceTheWriterMakesRoom() throws InterruptedException {
+		Full full = new Full(OutboundQueue.Policy.DROP_OLDEST);
+		final AtomicBoolean ran = new AtomicBoolean();
+		full.queue.whenRoom(full.generation, new Runnable() {
+			public void run() {
+				ran.set(true);
+			}
+		});
+		assertFalse(ran.get());
+		full.take();
+		assertTrue(ran.get());
+	}
+
+	@Test
+	public void offersWithoutAConnectionAreDiscarded() {
+		OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.Policy.DROP_OLDEST);
+		for (int i = 0; i < CAPACITY * 2; i++) {
+			assertTrue(queue.offerNow(message(i)));
+			assertTrue(queue.offerNow(chunk()));
+		}
+		assertEquals(0, queue.size());
+		assertFalse(queue.tryPut(message(0)));
+	}
+
+	@Test
+	public void whatThePeerDidNotAcknowledgeIsResentAfterAReconnect() throws InterruptedException {
+		Full full = new Full(OutboundQueue.Policy.DROP_OLDEST);
+		long session = full.writeAll();
+		int generation = full.reconnect();
+
+		// The peer had handled the first two before the link went
+		full.queue.onHello(PEER_SESSION, session, 2, 0);
+		assertEquals(CAPACITY - 2, full.queue.inFlight());
+		for (int i = 2; i < CAPACITY; i++) {
+			assertSame(full.frames[i], full.take(generation));
+			assertEquals(i + 1, full.queue.takenSeq());
+		}
+		assertEquals(CAPACITY - 2, full.queue.getRetransmitted());
+
+		// Then what was queued while waiting for the hello, numbered after them
+		OutboundFrame queued = full.take(generation);
+		assertEquals(9, queued.payload[0]);
+		assertEquals(CAPACITY + 1, full.queue.takenSeq());
+	}
+
+	@Test
+	public void aPeerThatLostOurSessionGetsEverythingAgain() throws InterruptedException {
+		Full full = new Full(OutboundQueue.Policy.DROP_OLDEST);
+		full.writeAll();
+		int generation = full.reconnect();
+
+		// The peer restarted, it cannot acknowledge anything of ours
+		full.queue.onHello(PEER_SESSION + 1, 0, CAPACITY, 0);
+		for (int i = 0; i < CAPACITY; i++) {
+			assertSame(full.frames[i], full.take(generation));
+		}
+		assertEquals(CAPACITY, full.queue.getRetransmitted());
+
+		full.queue.onAck(CAPACITY);
+		assertEquals(0, full.queue.inFlight());
+		assertEquals(9, full.take(generation).payload[0]);
+		assertEquals(CAPACITY + 1, full.queue.takenSeq());
+	}
+}
@@ -0,0 +1,127 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * What the hub allocates per chat message on its way to the peers, counted
+ * by the JVM for this thread: the message's OutboundFrame and nothing more.
+ * The steps are those of RelayBenchmark.forward(), which reports the same
+ * as gc.alloc.rate.norm, through the hub's own ChatRelay and FrameWriter.
+ */
+public class RelayAllocationTest {
+	private static final int PEERS = 3;
+	private static final int WARMUP = 20000;
+	private static final int MESSAGES = 50000;
+	// An OutboundFrame, with room for a compressed oops layout to differ
+	private static final long FRAME_BYTES = 64;
+
+	/**
+	 * Discards what is written.
+	 */
+	private static class NullStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+
+	private com.sun.management.ThreadMXBean mThreads;
+	private final BufferPool mBuffers = new BufferPool(FrameCodec.MAX_PAYLOAD);
+	private final EgressScheduler mEgress = new EgressScheduler();
+	private final MessageView mView = new MessageView();
+	private final OutboundQueue[] mQueues = new OutboundQueue[PEERS];
+	private final int[] mGenerations = new int[PEERS];
+	private final EgressScheduler.Flow[] mFlows = new EgressScheduler.Flow[PEERS];
+	private final FrameWriter[] mWriters = new FrameWriter[PEERS];
+	private byte[] mMessage;
+
+	@Before
+	public void setUp() throws InterruptedException {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+		mThreads.setThreadAllocatedMemoryEnabled(true);
+
+		// Never dry, so only the bookkeeping runs
+		mEgress.setLinkRate(1L << 40, EgressScheduler.DEFAULT_LATENCY_TARGET_MILLIS);
+		mEgress.setPeerRate(null, 1L << 40);
+		ChatMetrics metrics = new ChatMetrics();
+		for (int i = 0; i < PEERS; i++) {
+			mQueues[i] = new OutboundQueue(16, OutboundQueue.Policy.DROP_OLDEST);
+			mGenerations[i] = mQueues[i].attach(FrameCodec.CAP_DEFLATE);
+			mQueues[i].onHello(i + 1, 0, 0, FrameCodec.CAP_DEFLATE);
+			mFlows[i] = mEgress.register("peer" + i);
+			mWriters[i] = new FrameWriter(new NullStream(), mQueues[i], new FrameCompressor(),
+					mEgress, mFlows[i], metrics.peer("peer" + i));
+			// The hello and the first ping
+			while (mQueues[i].isReady()) mQueues[i].take(mGenerations[i]).release();
+		}
+		mMessage = new BluetoothMessage("Galaxy Nexus", "12:34:56", "Are we still on for lunch at the usual place?").stamp().getBytes();
+	}
+
+	private long allocated() {
+		return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Read, publish and write one message, as the hub's lane and writers do.
+	 */
+	private void relay() throws IOException, InterruptedException {
+		int length = mMessage.length;
+		byte[] read = mBuffers.acquire(length);
+		System.arraycopy(mMessage, 0, read, 0, length);
+		assertTrue(mView.wrap(read, 0, length));
+
+		OutboundFrame frame = ChatRelay.message(mBuffers, read, 0, length, mView.getSentAt(), ChatMetrics.now(), -1);
+		ChatRelay.number(null, frame, length);
+		mBuffers.release(read);
+		for (int i = 0; i < PEERS; i++) {
+			assertTrue(mQueues[i].offerNow(frame));
+		}
+		frame.release();
+
+		for (int i = 0; i < PEERS; i++) {
+			assertTrue(mWriters[i].write(mQueues[i].take(mGenerations[i])));
+			mQueues[i].onAck(mQueues[i].takenSeq());
+		}
+	}
+
+	@Test
+	public void relayAllocatesOnlyTheFrame() throws IOException, InterruptedException {
+		for (int i = 0; i < WARMUP; i++) relay();
+		long before = allocated();
+		for (int i = 0; i < MESSAGES; i++) relay();
+		long perMessage = (allocated() - before) / MESSAGES;
+		assertTrue(perMessage + " bytes per message", perMessage <= FRAME_BYTES);
+		for (int i = 0; i < PEERS; i++) {
+			assertEquals(0, mQueues[i].getDropped());
+		}
+	}
+
+	@Test
+	public void egressAllocatesNothing() throws InterruptedException {
+		EgressScheduler.Flow flow = mFlows[0];
+		for (int i = 0; i < WARMUP; i++) {
+			mEgress.tryAcquire(flow, EgressScheduler.BULK, 8 * 1024 + 25);
+			mEgress.acquire(flow, EgressScheduler.INTERACTIVE, 80);
+		}
+		long before = allocated();
+		for (int i = 0; i < MESSAGES; i++) {
+			assertTrue(mEgress.tryAcquire(flow, EgressScheduler.BULK, 8 * 1024 + 25));
+			assertTrue(mEgress.acquire(flow, EgressScheduler.INTERACTIVE, 80));
+		}
+		assertEquals(0, (allocated() - before) / MESSAGES);
+	}
+}
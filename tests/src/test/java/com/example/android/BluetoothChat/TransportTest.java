@@ -0,0 +1,245 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * Two peers and a hub on the in-process and the TCP transports: framed
+ * data goes both ways, and a peer that reconnects is known by the same
+ * address as before.
+ */
+public class TransportTest {
+	private static final UUID UUID_ANY = UUID.randomUUID();
+
+	/**
+	 * Accepts connections on a thread of its own.
+	 */
+	private static class Acceptor extends Thread {
+		final Transport.Server server;
+		final ArrayList<Transport.Connection> accepted = new ArrayList<Transport.Connection>();
+
+		Acceptor(Transport.Server server) {
+			this.server = server;
+			setDaemon(true);
+			start();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Transport.Connection connection = server.accept();
+					synchronized (this) {
+						accepted.add(connection);
+						notifyAll();
+					}
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+
+		synchronized Transport.Connection next(int index) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+			while (accepted.size() <= index) {
+				long left = end - System.currentTimeMillis();
+				if (left <= 0) fail("No connection accepted");
+				wait(left);
+			}
+			return accepted.get(index);
+		}
+	}
+
+	private static byte[] frame(int seq, int length) {
+		byte[] payload = new byte[length];
+		new Random(seq).nextBytes(payload);
+		return FrameCodec.encode(FrameCodec.FRAME_MESSAGE, seq, payload, 0, length);
+	}
+
+	private static byte[] readFrame(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		byte[] header = new byte[FrameCodec.HEADER_SIZE];
+		in.readFully(header);
+		byte[] frame = new byte[FrameCodec.HEADER_SIZE + FrameCodec.readLength(header, 0)];
+		System.arraycopy(header, 0, frame, 0, header.length);
+		in.readFully(frame, header.length, frame.length - header.length);
+		return frame;
+	}
+
+	/**
+	 * Frames larger than a pipe, written by both sides at once.
+	 */
+	private static void exchange(Transport.Connection a, final Transport.Connection b, int seq) throws Exception {
+		final byte[] up = frame(seq, FrameCodec.MAX_PAYLOAD);
+		byte[] down = frame(seq + 1, 1000);
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					OutputStream out = b.getOutputStream();
+					out.write(up);
+					out.flush();
+				} catch (IOException e) {
+					// Shows as a short read below
+				}
+			}
+		};
+		writer.start();
+		a.getOutputStream().write(down);
+		a.getOutputStream().flush();
+		assertArrayEquals(up, readFrame(a.getInputStream()));
+		assertArrayEquals(down, readFrame(b.getInputStream()));
+		writer.join();
+	}
+
+	/**
+	 * Connect two peers to the hub, exchange frames with each, then have
+	 * the first reconnect.
+	 * @return The hub's ends of the three connections
+	 */
+	private static Transport.Connection[] twoPeers(Transport hub, Transport one, String oneAddress,
+			Transport two, String twoAddress, String hubAddress) throws Exception {
+		Transport.Server server = hub.listen("chat", UUID_ANY);
+		try {
+			Acceptor acceptor = new Acceptor(server);
+			Transport.Connection[] accepted = new Transport.Connection[3];
+
+			Transport.Connection first = one.open(hubAddress, UUID_ANY);
+			first.connect();
+			accepted[0] = acceptor.next(0);
+			Transport.Connection second = two.open(hubAddress, UUID_ANY);
+			second.connect();
+			accepted[1] = acceptor.next(1);
+
+			assertEquals(hubAddress, first.getRemoteAddress());
+			assertEquals(oneAddress, accepted[0].getRemoteAddress());
+			assertEquals(twoAddress, accepted[1].getRemoteAddress());
+			exchange(first, accepted[0], 1);
+			exchange(accepted[1], second, 3);
+			exchange(second, accepted[1], 5);
+
+			first.close();
+			assertEquals(-1, accepted[0].getInputStream().read());
+			first = one.open(hubAddress, UUID_ANY);
+			first.connect();
+			accepted[2] = acceptor.next(2);
+			assertEquals(oneAddress, accepted[2].getRemoteAddress());
+			exchange(accepted[2], first, 7);
+
+			first.close();
+			second.close();
+			for (int i = 0; i < accepted.length; i++) {
+				accepted[i].close();
+			}
+			return accepted;
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void pipe() throws Exception {
+		Transport.Connection[] accepted = twoPeers(new PipeTransport("test-hub"),
+				new PipeTransport("test-a"), "test-a", new PipeTransport("test-b"), "test-b", "test-hub");
+		assertEquals("test-b", accepted[1].getRemoteName());
+	}
+
+	@Test
+	public void pipeWithoutListener() throws IOException {
+		try {
+			new PipeTransport("test-c").open("test-nobody", UUID_ANY).connect();
+			fail("Connected to nobody");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void tcp() throws Exception {
+		int hub = freePort();
+		int a = freePort();
+		int b = freePort();
+		Transport.Connection[] accepted = twoPeers(new TcpTransport("hub", hub),
+				new TcpTransport("Ann", a), "127.0.0.1:" + a,
+				new TcpTransport("Bob", b), "127.0.0.1:" + b, "127.0.0.1:" + hub);
+		assertEquals("Ann", accepted[0].getRemoteName());
+		assertEquals("Bob", accepted[1].getRemoteName());
+	}
+
+	@Test
+	public void tcpSkipsConnectionsWithoutHello() throws Exception {
+		int hub = freePort();
+		Transport.Server server = new TcpTransport("hub", hub).listen("chat", UUID_ANY);
+		try {
+			Acceptor acceptor = new Acceptor(server);
+			// Not a peer: connects and sends nothing of ours
+			Socket stranger = new Socket("127.0.0.1", hub);
+			stranger.getOutputStream().write(new byte[] {'G', 'E', 'T', ' ', '/', '\n', 0, 0, 0, 0, 0});
+			int a = freePort();
+			Transport.Connection peer = new TcpTransport("Ann", a).open("127.0.0.1:" + hub, UUID_ANY);
+			peer.connect();
+			assertEquals("127.0.0.1:" + a, acceptor.next(0).getRemoteAddress());
+			stranger.close();
+			peer.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void tcpSilentStrangerDoesNotHoldUpThePeersAfterIt() throws Exception {
+		int hub = freePort();
+		Transport.Server server = new TcpTransport("hub", hub).listen("chat", UUID_ANY);
+		try {
+			Acceptor acceptor = new Acceptor(server);
+			// Connects and then says nothing, its hello would time out in 5 s
+			Socket stranger = new Socket("127.0.0.1", hub);
+			int a = freePort();
+			Transport.Connection peer = new TcpTransport("Ann", a).open("127.0.0.1:" + hub, UUID_ANY);
+			long start = System.nanoTime();
+			peer.connect();
+			assertEquals("127.0.0.1:" + a, acceptor.next(0).getRemoteAddress());
+			long millis = (System.nanoTime() - start) / 1000000;
+			assertTrue(millis + " ms", millis < 2000);
+			stranger.close();
+			peer.close();
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test
+	public void tcpUnresolvedHost() throws IOException {
+		Transport.Connection connection = new TcpTransport("Ann", 1).open("no-such-host.invalid:4000", UUID_ANY);
+		assertEquals("no-such-host.invalid:4000", connection.getRemoteAddress());
+		assertEquals("no-such-host.invalid:4000", connection.getRemoteName());
+		try {
+			connection.connect();
+			fail("Connected to an unresolved host");
+		} catch (IOException e) {
+			// Expected
+		}
+		connection.close();
+	}
+}
@@ -0,0 +1,131 @@
+package com.example.android.BluetoothChat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class WorkerPoolTest {
+	private static final int LANES = 8;
+	private static final int TASKS = 5000;
+
+	@Test
+	public void statisticsCountEveryTaskFromEveryThread() throws InterruptedException {
+		WorkerPool pool = new WorkerPool("test", 4);
+		final CountDownLatch done = new CountDownLatch(LANES * TASKS);
+		final AtomicInteger ran = new AtomicInteger();
+		for (int l = 0; l < LANES; l++) {
+			WorkerPool.Lane lane = pool.serial();
+			for (int i = 0; i < TASKS; i++) {
+				final boolean fail = (i % 1000 == 999);
+				lane.execute(new Runnable() {
+					public void run() {
+						ran.incrementAndGet();
+						done.countDown();
+						if (fail) throw new IllegalStateException("expected");
+					}
+				});
+			}
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+
+		// The last tasks may still be being counted
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.getTasks() < LANES * TASKS && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(LANES * TASKS, ran.get());
+		assertEquals(LANES * TASKS, pool.getTasks());
+		assertEquals(LANES * TASKS / 1000, pool.getFailures());
+		assertTrue(pool.getMaxWaitMicros() >= pool.getAverageWaitMicros());
+		assertTrue(pool.getMaxRunMicros() >= pool.getAverageRunMicros());
+
+		pool.resetStats();
+		assertEquals(0, pool.getTasks());
+		assertEquals(0, pool.getMaxRunMicros());
+	}
+
+	@Test
+	public void aSerialLaneRunsItsTasksInOrderOneAtATime() throws InterruptedException {
+		WorkerPool pool = new WorkerPool("test", 4);
+		final CountDownLatch done = new CountDownLatch(LANES * TASKS);
+		final List<List<Integer>> order = new ArrayList<List<Integer>>();
+		final AtomicInteger overlaps = new AtomicInteger();
+		for (int l = 0; l < LANES; l++) {
+			// Only the lane's tasks write it, the lane orders them
+			final List<Integer> seen = new ArrayList<Integer>();
+			final AtomicInteger running = new AtomicInteger();
+			order.add(seen);
+			WorkerPool.Lane lane = pool.serial();
+			for (int i = 0; i < TASKS; i++) {
+				final int n = i;
+				lane.execute(new Runnable() {
+					public void run() {
+						if (running.incrementAndGet() != 1) overlaps.incrementAndGet();
+						seen.add(n);
+						// Give another thread the chance to run the lane's next task
+						Thread.yield();
+						running.decrementAndGet();
+						done.countDown();
+					}
+				});
+			}
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+
+		assertEquals(0, overlaps.get());
+		for (int l = 0; l < LANES; l++) {
+			List<Integer> seen = order.get(l);
+			assertEquals(TASKS, seen.size());
+			for (int i = 0; i < TASKS; i++) {
+				assertEquals(i, seen.get(i).intValue());
+			}
+		}
+	}
+
+	@Test
+	public void shutdownFinishesWhatRunsAndDropsWhatComesAfter() throws InterruptedException {
+		WorkerPool pool = new WorkerPool("test", 1);
+		WorkerPool.Lane lane = pool.serial();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger ran = new AtomicInteger();
+		lane.execute(new Runnable() {
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				ran.incrementAndGet();
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		pool.shutdown();
+		assertTrue(pool.isShutdown());
+
+		// Submitting to a lane of a pool shut down must not throw at the caller
+		WorkerPool.Lane other = pool.serial();
+		other.execute(new Runnable() {
+			public void run() {
+				ran.addAndGet(100);
+			}
+		});
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.getPoolSize() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, pool.getPoolSize());
+		assertEquals(1, ran.get());
+		assertFalse(pool.getQueued() > 0);
+	}
+}